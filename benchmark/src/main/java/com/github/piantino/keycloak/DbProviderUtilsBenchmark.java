@@ -0,0 +1,67 @@
+package com.github.piantino.keycloak;
+
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DbProviderUtilsBenchmark {
+
+    private Map<String, Object> data;
+    private Timestamp timestamp;
+
+    @Setup
+    public void setup() {
+        data = new HashMap<>();
+        data.put("email_verified", "y");
+        data.put("enabled", Boolean.TRUE);
+        timestamp = new Timestamp(System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public boolean toBooleanString() {
+        return DbProviderUtils.toBoolean(data, "email_verified");
+    }
+
+    @Benchmark
+    public boolean toBooleanBoolean() {
+        return DbProviderUtils.toBoolean(data, "enabled");
+    }
+
+    @Benchmark
+    public boolean toBooleanMissing() {
+        return DbProviderUtils.toBoolean(data, "missing");
+    }
+
+    @Benchmark
+    public String toAttributeValueTimestamp() {
+        return DbProviderUtils.toAttributeValue(timestamp);
+    }
+
+    @Benchmark
+    public String toAttributeValueString() {
+        return DbProviderUtils.toAttributeValue("teleport");
+    }
+
+    @Benchmark
+    public String toAttributeValueInteger() {
+        return DbProviderUtils.toAttributeValue(42);
+    }
+}
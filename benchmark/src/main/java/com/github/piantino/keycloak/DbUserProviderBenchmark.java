@@ -0,0 +1,136 @@
+package com.github.piantino.keycloak;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.piantino.keycloak.DbUserProvider.Importation;
+import com.github.piantino.keycloak.sync.LookupCache;
+
+/**
+ * Per user work of the import through the provider, against in memory Keycloak models.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DbUserProviderBenchmark {
+
+    private static final String IMPORT_ID = "bench";
+
+    private ComponentModel model;
+    private Fakes.Realm realm;
+    private DbUserProvider provider;
+
+    private Map<String, Object> data;
+    private Map<String, Object> otherData;
+    private List<String> roles;
+    private List<String> otherRoles;
+    private List<GroupModel> groups;
+    private List<GroupModel> otherGroups;
+    private int counter;
+
+    @Setup
+    public void setup() {
+        model = new ComponentModel();
+        model.setId("db-user-provider-bench");
+
+        realm = new Fakes.Realm("bench-realm");
+        realm.addRole("default-roles-bench-realm");
+        KeycloakSession session = realm.session();
+        provider = new DbUserProvider(session, model, new LookupCache().attach(session, realm.model));
+
+        data = new HashMap<>();
+        data.put("username", "presto");
+        data.put("email", "presto@wizard.com");
+        data.put("email_verified", "y");
+        data.put("first_name", "Presto");
+        data.put("last_name", "Wizard");
+        data.put("enabled", Boolean.TRUE);
+        data.put("required_actions", "VERIFY_EMAIL, UPDATE_PROFILE,UPDATE_PASSWORD");
+        data.put("updated", new Timestamp(System.currentTimeMillis()));
+        data.put("ability", "spells");
+        data.put("level", 12);
+        data.put("guild", null);
+
+        otherData = new HashMap<>(data);
+        otherData.put("first_name", "Prestissimo");
+        otherData.put("level", 13);
+
+        roles = Arrays.asList("role1", "role2", "role3");
+        otherRoles = Arrays.asList("role1", "role4", "role5");
+
+        List<GroupModel> all = IntStream.range(0, 6).mapToObj(gid -> realm.addGroup(String.valueOf(gid)))
+                .collect(Collectors.toList());
+        groups = all.subList(0, 3);
+        otherGroups = all.subList(2, 6);
+
+        UserModel user = realm.addUser("presto");
+        user.setFederationLink(model.getId());
+        provider.importUser(IMPORT_ID, realm.model, model, data, roles, groups);
+    }
+
+    @Benchmark
+    public Importation importUserUnchanged() {
+        return provider.importUser(IMPORT_ID, realm.model, model, data, roles, groups);
+    }
+
+    @Benchmark
+    public Importation importUserRolesChanged() {
+        return provider.importUser(IMPORT_ID, realm.model, model, data, (counter++ & 1) == 0 ? roles : otherRoles,
+                groups);
+    }
+
+    @Benchmark
+    public Importation importUserGroupsChanged() {
+        return provider.importUser(IMPORT_ID, realm.model, model, data, roles,
+                (counter++ & 1) == 0 ? groups : otherGroups);
+    }
+
+    @Benchmark
+    public Importation importUserAttributesChanged() {
+        return provider.importUser(IMPORT_ID, realm.model, model, (counter++ & 1) == 0 ? data : otherData, roles,
+                groups);
+    }
+
+    @Benchmark
+    public boolean isImported() {
+        return provider.isImported(realm.model, model, data, roles, groups);
+    }
+
+    @Benchmark
+    public void importUserAdded(Blackhole blackhole) {
+        Map<String, Object> added = new HashMap<>(data);
+        added.put("username", "user" + counter++);
+        added.remove("required_actions");
+        blackhole.consume(provider.importUser(IMPORT_ID, realm.model, model, added, Collections.emptyList(),
+                Collections.emptyList()));
+
+        // Keeps the fake realm small
+        realm.usersByUsername.remove(added.get("username"));
+    }
+}
@@ -0,0 +1,317 @@
+package com.github.piantino.keycloak;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.keycloak.cache.AlternativeLookupProvider;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.GroupProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.RoleProvider;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+/**
+ * In memory Keycloak models, only with the methods used by the import. Thread-safe, but without transactions:
+ * a rollback doesn't undo the changes.
+ */
+final class Fakes {
+
+    private Fakes() {
+        // empty
+    }
+
+    static class Realm {
+        final String id;
+        final RealmModel model;
+        final Map<String, RoleModel> rolesByName = new ConcurrentHashMap<>();
+        final Map<String, RoleModel> rolesById = new ConcurrentHashMap<>();
+        final Map<String, Group> groupsById = new ConcurrentHashMap<>();
+        final Map<String, UserModel> usersByUsername = new ConcurrentHashMap<>();
+        final SingleUseObjectProvider singleUseObjects = singleUseObjects();
+
+        Realm(String id) {
+            this.id = id;
+            this.model = proxy(RealmModel.class, (p, method, args) -> switch (method.getName()) {
+                case "getId", "getName" -> id;
+                case "getRole" -> rolesByName.get(args[0]);
+                case "createGroup" -> args.length == 3 ? addGroup((String) args[0], (String) args[1],
+                        (GroupModel) args[2]) : fallback(p, method, args);
+                case "moveGroup" -> groupsById.get(((GroupModel) args[0]).getId()).parent = (GroupModel) args[1];
+                case "removeGroup" -> groupsById.remove(((GroupModel) args[0]).getId()) != null;
+                default -> fallback(p, method, args);
+            });
+        }
+
+        RoleModel addRole(String name) {
+            String roleId = UUID.randomUUID().toString();
+            RoleModel role = proxy(RoleModel.class, (p, method, args) -> switch (method.getName()) {
+                case "getId" -> roleId;
+                case "getName" -> name;
+                default -> fallback(p, method, args);
+            });
+            rolesByName.put(name, role);
+            rolesById.put(roleId, role);
+            return role;
+        }
+
+        GroupModel addGroup(String gid) {
+            return addGroup(id + "_" + gid, gid, null);
+        }
+
+        GroupModel addGroup(String groupId, String name, GroupModel parent) {
+            Group group = new Group(groupId, name, parent);
+            groupsById.put(groupId, group);
+            return group.model;
+        }
+
+        UserModel addUser(String username) {
+            User user = new User(username);
+            usersByUsername.put(username, user.model);
+            return user.model;
+        }
+
+        KeycloakSessionFactory sessionFactory() {
+            return proxy(KeycloakSessionFactory.class, (p, method, args) -> switch (method.getName()) {
+                case "create" -> session();
+                default -> fallback(p, method, args);
+            });
+        }
+
+        KeycloakSession session() {
+            UserProvider users = proxy(UserProvider.class, (p, method, args) -> switch (method.getName()) {
+                case "getUserByUsername" -> usersByUsername.get(args[1]);
+                case "addUser" -> addUser((String) args[1]);
+                case "removeUser" -> usersByUsername.remove(((UserModel) args[1]).getUsername()) != null;
+                case "searchForUserStream" -> args.length == 4 && args[1] instanceof Map
+                        ? usersByUsername.keySet().stream().sorted().skip((Integer) args[2]).limit((Integer) args[3])
+                                .map(usersByUsername::get)
+                        : fallback(p, method, args);
+                default -> fallback(p, method, args);
+            });
+            RoleProvider roles = proxy(RoleProvider.class, (p, method, args) -> switch (method.getName()) {
+                case "getRoleById" -> rolesById.get(args[1]);
+                case "addRealmRole" -> addRole((String) args[1]);
+                default -> fallback(p, method, args);
+            });
+            GroupProvider groups = proxy(GroupProvider.class, (p, method, args) -> switch (method.getName()) {
+                case "getGroupById" -> {
+                    Group group = groupsById.get(args[1]);
+                    yield group == null ? null : group.model;
+                }
+                case "getGroupsStream" -> args.length == 1
+                        ? new ArrayList<>(groupsById.values()).stream().map(group -> group.model)
+                        : fallback(p, method, args);
+                case "searchGroupsByAttributes" -> {
+                    Map<String, String> search = (Map<String, String>) args[1];
+                    yield new ArrayList<>(groupsById.values()).stream()
+                            .filter(group -> group.attributes.entrySet().containsAll(search.entrySet()))
+                            .map(group -> group.model);
+                }
+                default -> fallback(p, method, args);
+            });
+            RealmProvider realms = proxy(RealmProvider.class, (p, method, args) -> switch (method.getName()) {
+                case "getRealm" -> id.equals(args[0]) ? model : null;
+                default -> fallback(p, method, args);
+            });
+            Map<String, Object> attributes = new HashMap<>();
+            KeycloakTransactionManager transaction = transaction();
+            AlternativeLookupProvider lookup = proxy(AlternativeLookupProvider.class,
+                    (p, method, args) -> switch (method.getName()) {
+                        case "lookupRoleFromString" -> rolesByName.get(args[1]);
+                        default -> fallback(p, method, args);
+                    });
+            KeycloakContext context = proxy(KeycloakContext.class, (p, method, args) -> switch (method.getName()) {
+                case "getRealm" -> model;
+                default -> fallback(p, method, args);
+            });
+            return proxy(KeycloakSession.class, (p, method, args) -> switch (method.getName()) {
+                case "users" -> users;
+                case "roles" -> roles;
+                case "groups" -> groups;
+                case "realms" -> realms;
+                case "getContext" -> context;
+                case "getTransactionManager" -> transaction;
+                case "singleUseObjects" -> singleUseObjects;
+                case "getAttribute" -> args.length == 1 ? attributes.get(args[0]) : fallback(p, method, args);
+                case "setAttribute" -> attributes.put((String) args[0], args[1]);
+                case "removeAttribute" -> attributes.remove(args[0]);
+                case "getProvider" -> args[0] == AlternativeLookupProvider.class ? lookup : null;
+                default -> fallback(p, method, args);
+            });
+        }
+    }
+
+    static KeycloakTransactionManager transaction() {
+        boolean[] state = new boolean[2];
+        return proxy(KeycloakTransactionManager.class, (p, method, args) -> switch (method.getName()) {
+            case "begin" -> state[0] = true;
+            case "isActive" -> state[0];
+            case "commit", "rollback" -> state[0] = false;
+            case "setRollbackOnly" -> state[1] = true;
+            case "getRollbackOnly" -> state[1];
+            default -> fallback(p, method, args);
+        });
+    }
+
+    /**
+     * Shared by the sessions, like the cluster cache of Keycloak. The entries expire by their lifespan in seconds.
+     */
+    static SingleUseObjectProvider singleUseObjects() {
+        Map<String, Entry> entries = new ConcurrentHashMap<>();
+        return proxy(SingleUseObjectProvider.class, (p, method, args) -> {
+            long now = System.currentTimeMillis();
+            entries.values().removeIf(entry -> entry.expiry < now);
+            return switch (method.getName()) {
+                case "put" -> entries.put((String) args[0], new Entry(now + (Long) args[1] * 1000,
+                        (Map<String, String>) args[2]));
+                case "putIfAbsent" -> entries.putIfAbsent((String) args[0],
+                        new Entry(now + (Long) args[1] * 1000, Map.of())) == null;
+                case "get" -> {
+                    Entry entry = entries.get(args[0]);
+                    yield entry == null ? null : entry.notes;
+                }
+                case "contains" -> entries.containsKey(args[0]);
+                case "remove" -> {
+                    Entry entry = entries.remove(args[0]);
+                    yield entry == null ? null : entry.notes;
+                }
+                default -> fallback(p, method, args);
+            };
+        });
+    }
+
+    private record Entry(long expiry, Map<String, String> notes) {
+    }
+
+    static class Group {
+        final String id;
+        final Map<String, String> attributes = new ConcurrentHashMap<>();
+        final GroupModel model;
+        volatile String name;
+        volatile GroupModel parent;
+
+        Group(String id, String name, GroupModel parent) {
+            this.id = id;
+            this.name = name;
+            this.parent = parent;
+            this.model = proxy(GroupModel.class, (p, method, args) -> switch (method.getName()) {
+                case "getId" -> id;
+                case "getName" -> this.name;
+                case "setName" -> this.name = (String) args[0];
+                case "getParent" -> this.parent;
+                case "getParentId" -> this.parent == null ? null : this.parent.getId();
+                case "getFirstAttribute" -> attributes.get(args[0]);
+                case "setSingleAttribute" -> args[1] == null ? attributes.remove(args[0])
+                        : attributes.put((String) args[0], (String) args[1]);
+                case "removeAttribute" -> attributes.remove(args[0]);
+                default -> fallback(p, method, args);
+            });
+        }
+    }
+
+    static class User {
+        final String id = UUID.randomUUID().toString();
+        final String username;
+        final Map<String, String> attributes = new ConcurrentHashMap<>();
+        final Set<RoleModel> roles = ConcurrentHashMap.newKeySet();
+        final Set<GroupModel> groups = ConcurrentHashMap.newKeySet();
+        final Set<Object> requiredActions = ConcurrentHashMap.newKeySet();
+        final UserModel model;
+        volatile String federationLink;
+
+        User(String username) {
+            this.username = username;
+            this.model = proxy(UserModel.class, (p, method, args) -> switch (method.getName()) {
+                case "getId" -> id;
+                case "getUsername" -> username;
+                case "getFederationLink" -> federationLink;
+                case "setFederationLink" -> federationLink = (String) args[0];
+                case "setEmail", "setFirstName", "setLastName" -> args[0] == null ? attributes.remove(method.getName())
+                        : attributes.put(method.getName(), (String) args[0]);
+                case "setEmailVerified", "setEnabled" -> attributes.put(method.getName(), args[0].toString());
+                case "isEnabled" -> !"false".equals(attributes.get("setEnabled"));
+                case "isEmailVerified" -> "true".equals(attributes.get("setEmailVerified"));
+                case "getEmail", "getFirstName", "getLastName" -> attributes.get("s" + method.getName().substring(1));
+                case "setSingleAttribute" -> args[1] == null ? attributes.remove(args[0])
+                        : attributes.put((String) args[0], (String) args[1]);
+                case "removeAttribute" -> attributes.remove(args[0]);
+                case "getFirstAttribute" -> attributes.get(args[0]);
+                case "getRealmRoleMappingsStream" -> new ArrayList<>(roles).stream();
+                case "hasRole" -> roles.contains(args[0]);
+                case "grantRole" -> roles.add((RoleModel) args[0]);
+                case "deleteRoleMapping" -> roles.remove(args[0]);
+                case "getGroupsStream" -> new ArrayList<>(groups).stream();
+                case "joinGroup" -> groups.add((GroupModel) args[0]);
+                case "leaveGroup" -> groups.remove(args[0]);
+                case "addRequiredAction" -> requiredActions.add(args[0]);
+                default -> fallback(p, method, args);
+            });
+        }
+    }
+
+    /**
+     * A result set positioned on a single row.
+     */
+    static ResultSet row(List<String> columns, List<Object> values) {
+        ResultSetMetaData md = proxy(ResultSetMetaData.class, (p, method, args) -> switch (method.getName()) {
+            case "getColumnCount" -> columns.size();
+            case "getColumnName" -> columns.get((Integer) args[0] - 1);
+            default -> fallback(p, method, args);
+        });
+        return proxy(ResultSet.class, (p, method, args) -> switch (method.getName()) {
+            case "getMetaData" -> md;
+            case "getObject" -> values.get((Integer) args[0] - 1);
+            default -> fallback(p, method, args);
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(Fakes.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static Object fallback(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return method.getDeclaringClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+            default:
+                break;
+        }
+        if (method.isDefault()) {
+            return InvocationHandler.invokeDefault(proxy, method, args);
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        return null;
+    }
+}
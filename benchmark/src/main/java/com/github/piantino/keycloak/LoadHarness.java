@@ -0,0 +1,436 @@
+package com.github.piantino.keycloak;
+
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.ACQUISITION_TIMEOUT_S;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.CREDENTIAL;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.INITIAL_SIZE;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.JDBC_URL;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.MAX_LIFETIME_S;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.MAX_SIZE;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.METRICS_ENABLED;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.MIN_SIZE;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.PRINCIPAL;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.PROVIDER_CLASS_NAME;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import com.github.piantino.keycloak.datasource.DataSouceConfiguration;
+import com.github.piantino.keycloak.sync.ShardLeases;
+
+/**
+ * End-to-end load of the sync path, without Docker: an in memory H2 database filled with synthetic users, roles,
+ * groups and memberships, imported by {@link DbUserProviderFactory} into the in memory Keycloak models of
+ * {@link Fakes}.
+ *
+ * Arguments are {@code key=value}: {@code users}, {@code roles}, {@code groups}, {@code rolesPerUser},
+ * {@code groupsPerUser}, {@code changed} (fraction of users and groups updated before the sync since),
+ * {@code lookups} (number of single user syncs), {@code shards}, {@code nodes} and {@code deadNodes} (a sharded full
+ * sync into a new realm, by nodes simulated with a factory each, when shards is set; the dead nodes claim a shard
+ * and stop). Any other key is a provider configuration, like {@code syncParallelism=4}.
+ */
+public class LoadHarness {
+
+    private static final String REALM_ID = "load-realm";
+
+    // Keeps the configured level, the JUL loggers are weakly referenced
+    private static final java.util.logging.Logger LOG_LEVEL = java.util.logging.Logger
+            .getLogger("com.github.piantino.keycloak");
+
+    private static final String USER_COLUMNS = "username, email, email_verified, first_name, last_name, enabled, "
+            + "required_actions, updated, ability";
+
+    private final Map<String, String> options = new LinkedHashMap<>();
+    private final Map<String, String> config = new LinkedHashMap<>();
+    private final Random random = new Random(42);
+
+    private int users;
+    private int roles;
+    private int groups;
+    private int rolesPerUser;
+    private int groupsPerUser;
+    private double changed;
+    private int lookups;
+    private int shards;
+    private int nodes;
+    private int deadNodes;
+
+    public static void main(String[] args) throws Exception {
+        // The sync logs every batch and user failure, only the warnings are kept
+        LOG_LEVEL.setLevel(Level.parse(System.getProperty("harness.log", "WARNING")));
+        new LoadHarness(args).run();
+    }
+
+    LoadHarness(String[] args) {
+        options.put("users", "100000");
+        options.put("roles", "50");
+        options.put("groups", "200");
+        options.put("rolesPerUser", "3");
+        options.put("groupsPerUser", "2");
+        options.put("changed", "0.1");
+        options.put("lookups", "1000");
+        options.put("shards", "0");
+        options.put("nodes", "4");
+        options.put("deadNodes", "0");
+
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("Invalid argument " + arg + ", expected key=value");
+            }
+            String key = arg.substring(0, index);
+            String value = arg.substring(index + 1);
+            (options.containsKey(key) ? options : config).put(key, value);
+        }
+        users = Integer.parseInt(options.get("users"));
+        roles = Integer.parseInt(options.get("roles"));
+        groups = Integer.parseInt(options.get("groups"));
+        rolesPerUser = Math.min(Integer.parseInt(options.get("rolesPerUser")), roles);
+        groupsPerUser = Math.min(Integer.parseInt(options.get("groupsPerUser")), groups);
+        changed = Double.parseDouble(options.get("changed"));
+        lookups = Math.min(Integer.parseInt(options.get("lookups")), users);
+        shards = Integer.parseInt(options.get("shards"));
+        nodes = Math.max(Integer.parseInt(options.get("nodes")), 1);
+        deadNodes = Integer.parseInt(options.get("deadNodes"));
+    }
+
+    void run() throws Exception {
+        String url = "jdbc:h2:mem:load-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+
+        UserStorageProviderModel model = createModel(url, true);
+        Fakes.Realm realm = new Fakes.Realm(REALM_ID);
+        realm.addRole("default-roles-" + REALM_ID);
+        KeycloakSessionFactory sessionFactory = realm.sessionFactory();
+        DbUserProviderFactory factory = new DbUserProviderFactory();
+
+        System.out.printf("Options %s, config %s%n", options, config);
+        System.out.printf("%-14s %10s %10s %12s %12s  %s%n", "phase", "rows", "time ms", "rows/s", "heap peak MB",
+                "result");
+
+        try (Connection con = DriverManager.getConnection(url, "sa", "")) {
+            phase("populate", users, () -> {
+                populate(con);
+                return null;
+            });
+            phase("full sync", users, () -> factory.sync(sessionFactory, REALM_ID, model));
+            phase("full sync #2", users, () -> factory.sync(sessionFactory, REALM_ID, model));
+
+            if (shards > 1) {
+                phase("sharded sync", users, () -> syncShards(url));
+            }
+
+            Date lastSync = new Date();
+            Thread.sleep(10);
+            int updated = update(con);
+            phase("sync since", updated, () -> factory.syncSince(lastSync, sessionFactory, REALM_ID, model));
+
+            int logged = logChanges(con);
+            phase("outbox", logged, () -> factory.pollOutbox(sessionFactory, REALM_ID, model));
+
+            phase("sync username", lookups, () -> {
+                SynchronizationResult total = new SynchronizationResult();
+                for (int i = 0; i < lookups; i++) {
+                    total.add(factory.syncUsername(username(random.nextInt(users)), sessionFactory, REALM_ID, model));
+                }
+                return total;
+            });
+        } finally {
+            factory.close();
+        }
+        System.out.printf("Keycloak users %d, groups %d, roles %d%n", realm.usersByUsername.size(),
+                realm.groupsById.size(), realm.rolesByName.size());
+    }
+
+    /**
+     * A full sync by shards into a new realm, writing all users: the first node starts it, the others poll it
+     * like the shard task of each Keycloak node. The shards of the dead nodes are imported by another node when
+     * their lease expires, each user must be added once.
+     */
+    private SynchronizationResult syncShards(String url) throws Exception {
+        UserStorageProviderModel model = createModel(url, false);
+        model.getConfig().putSingle(DataSouceConfiguration.SYNC_SHARDS, String.valueOf(shards));
+        if (deadNodes > 0 && !config.containsKey(DataSouceConfiguration.SYNC_SHARD_LEASE)) {
+            model.getConfig().putSingle(DataSouceConfiguration.SYNC_SHARD_LEASE, "2");
+        }
+        Fakes.Realm realm = new Fakes.Realm(REALM_ID);
+        realm.addRole("default-roles-" + REALM_ID);
+        KeycloakSessionFactory sessionFactory = realm.sessionFactory();
+
+        DbUserProviderFactory coordinator = new DbUserProviderFactory();
+        ExecutorService others = Executors.newFixedThreadPool(nodes + deadNodes);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger takenOver = new AtomicInteger();
+        for (int i = 0; i < deadNodes; i++) {
+            others.execute(() -> {
+                long lease = model.get(DataSouceConfiguration.SYNC_SHARD_LEASE,
+                        DataSouceConfiguration.DEFAULT_SYNC_SHARD_LEASE);
+                while (running.get()) {
+                    ShardLeases leases = ShardLeases.find(sessionFactory, model.getId());
+                    for (int shard = 0; leases != null && shard < leases.getShards(); shard++) {
+                        if (leases.claim(shard, "dead-node", lease)) {
+                            takenOver.incrementAndGet();
+                            return;
+                        }
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+        }
+        for (int i = 1; i < nodes; i++) {
+            DbUserProviderFactory node = new DbUserProviderFactory();
+            others.execute(() -> {
+                while (running.get()) {
+                    node.joinShards(sessionFactory, REALM_ID, model);
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+        }
+        SynchronizationResult result;
+        try {
+            result = coordinator.sync(sessionFactory, REALM_ID, model);
+        } finally {
+            running.set(false);
+            others.shutdown();
+            others.awaitTermination(1, TimeUnit.MINUTES);
+            System.out.printf("Sharded realm users %d, shards of dead nodes %d%n", realm.usersByUsername.size(),
+                    takenOver.get());
+        }
+        if (realm.usersByUsername.size() != users || result.getAdded() != users || result.getUpdated() != 0) {
+            throw new IllegalStateException("Users not added once by the shards: " + result);
+        }
+        return result;
+    }
+
+    private UserStorageProviderModel createModel(String url, boolean skipUnchanged) {
+        UserStorageProviderModel model = new UserStorageProviderModel();
+        model.setId(UUID.randomUUID().toString());
+        model.setParentId(REALM_ID);
+        model.setProviderId(DbUserProviderFactory.PROVIDER_ID);
+        model.setName("load");
+
+        model.getConfig().putSingle(PROVIDER_CLASS_NAME, "org.h2.Driver");
+        model.getConfig().putSingle(JDBC_URL, url);
+        model.getConfig().putSingle(PRINCIPAL, "sa");
+        model.getConfig().putSingle(CREDENTIAL, "");
+        model.getConfig().putSingle(MAX_SIZE, "20");
+        model.getConfig().putSingle(MIN_SIZE, "0");
+        model.getConfig().putSingle(INITIAL_SIZE, "1");
+        model.getConfig().putSingle(MAX_LIFETIME_S, "0");
+        model.getConfig().putSingle(ACQUISITION_TIMEOUT_S, "30");
+        model.getConfig().putSingle(METRICS_ENABLED, "false");
+
+        model.getConfig().putSingle(DataSouceConfiguration.SYNC_SQL,
+                "SELECT " + USER_COLUMNS + " FROM db_user_users ORDER BY username");
+        model.getConfig().putSingle(DataSouceConfiguration.SYNC_COUNT_SQL, "SELECT count(*) FROM db_user_users");
+        model.getConfig().putSingle(DataSouceConfiguration.SYNC_SINCE_SQL,
+                "SELECT " + USER_COLUMNS + " FROM db_user_users WHERE updated > ? ORDER BY username");
+        model.getConfig().putSingle(DataSouceConfiguration.SYNC_ONE_SQL,
+                "SELECT " + USER_COLUMNS + " FROM db_user_users WHERE username = ?");
+        model.getConfig().putSingle(DataSouceConfiguration.SYNC_ROLE_SQL,
+                "SELECT name FROM db_user_roles WHERE username = ?");
+        model.getConfig().putSingle(DataSouceConfiguration.SYNC_ROLE_BULK_SQL,
+                "SELECT username, name FROM db_user_roles ORDER BY username");
+        // Children first, the sync must import the parents before them
+        model.getConfig().putSingle(DataSouceConfiguration.SYNC_GROUP_SQL,
+                "SELECT gid, gid_parent, name, attr1 FROM db_group_groups ORDER BY gid DESC");
+        model.getConfig().putSingle(DataSouceConfiguration.SYNC_GROUP_SINCE_SQL,
+                "SELECT gid, gid_parent, name, attr1 FROM db_group_groups WHERE updated > ?");
+        model.getConfig().putSingle(DataSouceConfiguration.SYNC_GROUP_USER_SQL,
+                "SELECT gid FROM db_user_groups WHERE username = ?");
+        model.getConfig().putSingle(DataSouceConfiguration.SYNC_GROUP_USER_BULK_SQL,
+                "SELECT username, gid FROM db_user_groups ORDER BY username");
+        model.getConfig().putSingle(DataSouceConfiguration.OUTBOX_SQL,
+                "SELECT id, username FROM db_user_changes WHERE id > ? ORDER BY id");
+        model.getConfig().putSingle(DataSouceConfiguration.SYNC_SHARD_SQL, "SELECT " + USER_COLUMNS
+                + " FROM db_user_users WHERE MOD(CAST(SUBSTRING(username, 5) AS INT), ?) = ? ORDER BY username");
+        model.getConfig().putSingle(DataSouceConfiguration.SYNC_SKIP_UNCHANGED, String.valueOf(skipUnchanged));
+
+        config.forEach(model.getConfig()::putSingle);
+        return model;
+    }
+
+    private void populate(Connection con) throws SQLException {
+        try (Statement st = con.createStatement()) {
+            st.execute("CREATE TABLE db_user_users (username varchar(40) PRIMARY KEY, email varchar(60) NOT NULL, "
+                    + "email_verified varchar(1) NOT NULL, first_name varchar(40) NOT NULL, "
+                    + "last_name varchar(40) NOT NULL, enabled boolean NOT NULL, required_actions varchar(80), "
+                    + "updated timestamp NOT NULL, ability varchar(40))");
+            st.execute("CREATE TABLE db_user_roles (username varchar(40) NOT NULL, name varchar(40) NOT NULL)");
+            st.execute("CREATE TABLE db_group_groups (gid integer PRIMARY KEY, name varchar(255) NOT NULL, "
+                    + "gid_parent integer, attr1 varchar(255), updated timestamp NOT NULL)");
+            st.execute("CREATE TABLE db_user_groups (username varchar(40) NOT NULL, gid integer NOT NULL)");
+            st.execute("CREATE TABLE db_user_changes (id integer GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "username varchar(40) NOT NULL)");
+            st.execute("CREATE INDEX db_user_roles_username ON db_user_roles (username)");
+            st.execute("CREATE INDEX db_user_groups_username ON db_user_groups (username)");
+            st.execute("CREATE INDEX db_user_users_updated ON db_user_users (updated)");
+        }
+        con.setAutoCommit(false);
+
+        try (PreparedStatement ps = con.prepareStatement(
+                "INSERT INTO db_group_groups (gid, name, gid_parent, attr1, updated) VALUES (?, ?, ?, ?, ?)")) {
+            Timestamp created = new Timestamp(System.currentTimeMillis());
+            for (int gid = 1; gid <= groups; gid++) {
+                ps.setInt(1, gid);
+                ps.setString(2, "group " + gid);
+                // A forest, the parent is always inserted first
+                if (gid > 10) {
+                    ps.setInt(3, 1 + random.nextInt(gid - 1));
+                } else {
+                    ps.setNull(3, java.sql.Types.INTEGER);
+                }
+                ps.setString(4, "attr " + gid);
+                ps.setTimestamp(5, created);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        try (PreparedStatement psUser = con.prepareStatement("INSERT INTO db_user_users (" + USER_COLUMNS
+                + ") VALUES (?, ?, 'y', ?, ?, true, null, ?, ?)");
+                PreparedStatement psRole = con.prepareStatement(
+                        "INSERT INTO db_user_roles (username, name) VALUES (?, ?)");
+                PreparedStatement psGroup = con.prepareStatement(
+                        "INSERT INTO db_user_groups (username, gid) VALUES (?, ?)")) {
+
+            for (int i = 0; i < users; i++) {
+                String username = username(i);
+                psUser.setString(1, username);
+                psUser.setString(2, username + "@load.test");
+                psUser.setString(3, "First " + i);
+                psUser.setString(4, "Last " + i);
+                psUser.setTimestamp(5, now);
+                psUser.setString(6, "ability " + (i % 7));
+                psUser.addBatch();
+
+                int firstRole = random.nextInt(roles);
+                for (int r = 0; r < rolesPerUser; r++) {
+                    psRole.setString(1, username);
+                    psRole.setString(2, "role" + ((firstRole + r) % roles));
+                    psRole.addBatch();
+                }
+                int firstGroup = random.nextInt(groups);
+                for (int g = 0; g < groupsPerUser; g++) {
+                    psGroup.setString(1, username);
+                    psGroup.setInt(2, 1 + (firstGroup + g) % groups);
+                    psGroup.addBatch();
+                }
+                if (i % 1000 == 999) {
+                    psUser.executeBatch();
+                    psRole.executeBatch();
+                    psGroup.executeBatch();
+                }
+            }
+            psUser.executeBatch();
+            psRole.executeBatch();
+            psGroup.executeBatch();
+        }
+        con.commit();
+        con.setAutoCommit(true);
+    }
+
+    private int update(Connection con) throws SQLException {
+        int count = (int) (users * changed);
+        try (PreparedStatement ps = con.prepareStatement(
+                "UPDATE db_user_users SET first_name = ?, updated = ? WHERE username = ?")) {
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            for (int i = 0; i < count; i++) {
+                ps.setString(1, "Changed " + i);
+                ps.setTimestamp(2, now);
+                ps.setString(3, username(i * (users / Math.max(count, 1))));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        try (PreparedStatement ps = con.prepareStatement(
+                "UPDATE db_group_groups SET attr1 = ?, updated = ? WHERE gid = ?")) {
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            int groupCount = (int) (groups * changed);
+            for (int i = 0; i < groupCount; i++) {
+                ps.setString(1, "changed " + i);
+                ps.setTimestamp(2, now);
+                ps.setInt(3, 1 + i * (groups / Math.max(groupCount, 1)));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        return count;
+    }
+
+    /**
+     * Changes the users again, logging them in the outbox table.
+     */
+    private int logChanges(Connection con) throws SQLException {
+        int count = (int) (users * changed);
+        try (PreparedStatement psUser = con.prepareStatement(
+                "UPDATE db_user_users SET first_name = ? WHERE username = ?");
+                PreparedStatement psChange = con.prepareStatement(
+                        "INSERT INTO db_user_changes (username) VALUES (?)")) {
+            for (int i = 0; i < count; i++) {
+                String username = username(random.nextInt(users));
+                psUser.setString(1, "Logged " + i);
+                psUser.setString(2, username);
+                psUser.addBatch();
+                psChange.setString(1, username);
+                psChange.addBatch();
+            }
+            psUser.executeBatch();
+            psChange.executeBatch();
+        }
+        return count;
+    }
+
+    private void phase(String name, int rows, Callable<SynchronizationResult> job) throws Exception {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long start = System.nanoTime();
+        SynchronizationResult result = job.call();
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+
+        long heapPeak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPeak += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.printf("%-14s %10d %10d %12.0f %12.1f  %s%n", name, rows, elapsed / 1_000_000,
+                rows * 1e9 / elapsed, heapPeak / (1024.0 * 1024), result == null ? "" : result);
+    }
+
+    private static String username(int i) {
+        return String.format("user%08d", i);
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.piantino.keycloak;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversion of a users query row to the map given to the import.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowMappingBenchmark {
+
+    private ResultSet rs;
+    private ResultSetMetaData md;
+    private int columns;
+
+    @Setup
+    public void setup() throws SQLException {
+        List<String> names = Arrays.asList("USERNAME", "EMAIL", "EMAIL_VERIFIED", "FIRST_NAME", "LAST_NAME",
+                "ENABLED", "TEMP_PASSWORD", "REQUIRED_ACTIONS", "UPDATED", "ABILITY");
+        List<Object> values = Arrays.asList("presto", "presto@wizard.com", "y", "Presto", "Wizard", Boolean.TRUE,
+                null, "VERIFY_PROFILE", new Timestamp(System.currentTimeMillis()), "spells");
+
+        rs = Fakes.row(names, values);
+        md = rs.getMetaData();
+        columns = md.getColumnCount();
+    }
+
+    @Benchmark
+    public HashMap<String, Object> readRow() throws SQLException {
+        return DbUserProviderFactory.readRow(rs, md, columns);
+    }
+}
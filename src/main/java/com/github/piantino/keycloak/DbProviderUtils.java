@@ -1,6 +1,11 @@
 package com.github.piantino.keycloak;
 
+import java.sql.Array;
+import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 public class DbProviderUtils {
@@ -41,6 +46,33 @@ public class DbProviderUtils {
 		return value.toString();
 	}
 
+	/**
+	 * Values of an array column or of a string column separated by comma.
+	 */
+	public static List<String> toList(Object value) throws SQLException {
+		if (value == null) {
+			return Collections.emptyList();
+		}
+
+		List<String> list = new ArrayList<>();
+
+		if (value instanceof Array) {
+			for (Object item : (Object[]) ((Array) value).getArray()) {
+				if (item != null) {
+					list.add(toAttributeValue(item));
+				}
+			}
+			return list;
+		}
+
+		for (String item : value.toString().split(",")) {
+			if (!item.isBlank()) {
+				list.add(item.trim());
+			}
+		}
+		return list;
+	}
+
 	public static boolean hasColumn(Map<String, Object> data, String key) {
 		return data.get(key) != null;
 	}
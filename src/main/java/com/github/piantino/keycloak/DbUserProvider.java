@@ -9,12 +9,16 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.jboss.logging.Logger;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.credential.CredentialInput;
+import org.keycloak.credential.CredentialInputValidator;
 import org.keycloak.credential.PasswordCredentialProviderFactory;
+import org.keycloak.credential.hash.PasswordHashProvider;
 import org.keycloak.models.Constants;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
@@ -22,18 +26,28 @@ import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.UserModel.RequiredAction;
+import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.services.validation.Validation;
 import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.UserStorageProviderModel;
 import org.keycloak.storage.user.ImportedUserValidation;
+import org.keycloak.storage.user.UserLookupProvider;
+import org.keycloak.utils.StringUtil;
 
+import com.github.piantino.keycloak.credential.SourcePasswordHash;
+import com.github.piantino.keycloak.credential.VerifiedCredentialCache;
+import com.github.piantino.keycloak.datasource.DataSouceConfiguration;
 import com.github.piantino.keycloak.exception.DbUserProviderException;
+import com.github.piantino.keycloak.sync.LookupCache;
+import com.github.piantino.keycloak.sync.MissCache;
 
-public class DbUserProvider implements UserStorageProvider, ImportedUserValidation {
+public class DbUserProvider
+        implements UserStorageProvider, UserLookupProvider, CredentialInputValidator, ImportedUserValidation {
 
     public enum Column {
         username, email, email_verified, enabled, first_name, last_name, temp_password, required_actions, updated,
-        marked_for_removal
+        marked_for_removal, roles, groups
     }
 
     public enum ColumnGroups {
@@ -41,18 +55,31 @@ public class DbUserProvider implements UserStorageProvider, ImportedUserValidati
     }
 
     public enum Importation {
-        ADDED, UPDATED
+        ADDED, UPDATED, UNCHANGED
     }
 
     private static final Logger LOGGER = Logger.getLogger(DbUserProvider.class);
 
+    /**
+     * Session attribute set while a user is imported by a lookup, the import looks the user up again.
+     */
+    private static final String LOOKUP_IMPORTING = DbUserProvider.class.getName() + ".importing";
+
     private static final List<String> COLUMN_KEYS = Arrays.asList(Column.values()).stream().map(a -> a.name())
             .collect(Collectors.toList());
 
     private KeycloakSession session;
+    private ComponentModel model;
+    private LookupCache.Attached lookups;
+
+    public DbUserProvider(KeycloakSession session, ComponentModel model) {
+        this(session, model, new LookupCache().attach(session, session.getContext().getRealm()));
+    }
 
-    public DbUserProvider(KeycloakSession session) {
+    public DbUserProvider(KeycloakSession session, ComponentModel model, LookupCache.Attached lookups) {
         this.session = session;
+        this.model = model;
+        this.lookups = lookups;
     }
 
     public Importation importUser(String importId, RealmModel realm, ComponentModel model, Map<String, Object> data,
@@ -63,7 +90,7 @@ public class DbUserProvider implements UserStorageProvider, ImportedUserValidati
         validateDbData(username, email, data);
         Set<RequiredAction> actions = getRequiredActions(data);
 
-        UserModel user = session.users().getUserByUsername(realm, username);
+        UserModel user = getLocalUser(session, realm, username);
 
         Importation importation;
 
@@ -98,6 +125,54 @@ public class DbUserProvider implements UserStorageProvider, ImportedUserValidati
         return importation;
     }
 
+    /**
+     * Returns true when the user in Keycloak is the one written by the import of the row, so an unchanged row can be
+     * skipped. A user removed or edited in Keycloak since the last import is imported again.
+     */
+    public boolean isImported(RealmModel realm, ComponentModel model, Map<String, Object> data, List<String> roles,
+            List<GroupModel> groups) {
+        String username = (String) data.get(Column.username.name());
+        UserModel user = getLocalUser(session, realm, username);
+
+        if (user == null || !model.getId().equals(user.getFederationLink())) {
+            return false;
+        }
+        // Keycloak stores the e-mail in lower case
+        String email = (String) data.get(Column.email.name());
+        if (email == null ? user.getEmail() != null : !email.equalsIgnoreCase(user.getEmail())) {
+            return false;
+        }
+        if (user.isEmailVerified() != toBoolean(data, Column.email_verified.name())
+                || user.isEnabled() != toBoolean(data, Column.enabled.name())
+                || !Objects.equals(data.get(Column.first_name.name()), user.getFirstName())
+                || !Objects.equals(data.get(Column.last_name.name()), user.getLastName())
+                || !Objects.equals(toAttributeValue(data.get(Column.updated.name())),
+                        user.getFirstAttribute(Column.updated.name()))) {
+            return false;
+        }
+        boolean attributes = data.entrySet().stream()
+                .filter(entry -> !COLUMN_KEYS.contains(entry.getKey()))
+                .allMatch(entry -> Objects.equals(toAttributeValue(entry.getValue()),
+                        user.getFirstAttribute(entry.getKey())));
+        if (!attributes) {
+            return false;
+        }
+
+        Set<String> roleNames = new HashSet<>(roles);
+        RoleModel defaultRole = getDefaultRole(realm);
+        if (defaultRole != null) {
+            roleNames.add(defaultRole.getName());
+        }
+        Set<String> actualRoles = user.getRealmRoleMappingsStream().map(RoleModel::getName)
+                .collect(Collectors.toSet());
+        if (!roleNames.equals(actualRoles)) {
+            return false;
+        }
+
+        Set<String> ids = groups.stream().map(GroupModel::getId).collect(Collectors.toSet());
+        return ids.equals(user.getGroupsStream().map(GroupModel::getId).collect(Collectors.toSet()));
+    }
+
     private void synchronizeUserGroups(UserModel user, List<GroupModel> groups) {
         Set<String> ids = groups.stream().map(GroupModel::getId).collect(Collectors.toSet());
 
@@ -123,6 +198,10 @@ public class DbUserProvider implements UserStorageProvider, ImportedUserValidati
     }
 
     private RoleModel getRole(String importId, RealmModel realm, RoleModel roleRoot, String roleName) {
+        return lookups.getRole(roleName, () -> loadRole(importId, realm, roleRoot, roleName));
+    }
+
+    private RoleModel loadRole(String importId, RealmModel realm, RoleModel roleRoot, String roleName) {
         RoleModel role = KeycloakModelUtils.getRoleFromString(this.session, realm, roleName);
 
         if (role == null) {
@@ -137,6 +216,10 @@ public class DbUserProvider implements UserStorageProvider, ImportedUserValidati
     }
 
     private RoleModel getRoleRoot(RealmModel realm) {
+        return lookups.getRoleRoot(() -> loadRoleRoot(realm));
+    }
+
+    private RoleModel loadRoleRoot(RealmModel realm) {
         String rootRoleName = "db-user-provider-roles";
         RoleModel roleRoot = KeycloakModelUtils.getRoleFromString(this.session, realm, rootRoleName);
 
@@ -147,6 +230,125 @@ public class DbUserProvider implements UserStorageProvider, ImportedUserValidati
         return roleRoot;
     }
 
+    @Override
+    public UserModel getUserById(RealmModel realm, String id) {
+        // The imported users are local users, found by Keycloak before asking the providers
+        return null;
+    }
+
+    @Override
+    public UserModel getUserByUsername(RealmModel realm, String username) {
+        return importOnLookup(realm, DataSouceConfiguration.SYNC_ONE_SQL, username);
+    }
+
+    @Override
+    public UserModel getUserByEmail(RealmModel realm, String email) {
+        return importOnLookup(realm, DataSouceConfiguration.SYNC_ONE_EMAIL_SQL, email);
+    }
+
+    /**
+     * Keycloak only asks the providers for users not found locally, so the user is new or was removed.
+     */
+    private UserModel importOnLookup(RealmModel realm, String key, String value) {
+        if (value == null || session.getAttribute(LOOKUP_IMPORTING) != null
+                || !model.get(DataSouceConfiguration.LOOKUP_IMPORT, false)) {
+            return null;
+        }
+        MissCache misses = DbUserProviderFactory.getMissCache(model);
+        String missKey = realm.getId() + "/" + key + "/" + value;
+
+        if (misses != null && misses.contains(missKey)) {
+            LOGGER.debugv("User {0} {1} not found in the source (cached)", realm.getId(), value);
+            return null;
+        }
+
+        session.setAttribute(LOOKUP_IMPORTING, Boolean.TRUE);
+        try {
+            UserModel user = DbUserProviderFactory.importOnLookup(session, realm, new UserStorageProviderModel(model),
+                    key, value);
+
+            if (user == null && misses != null) {
+                misses.put(missKey);
+            }
+            return user;
+        } catch (RuntimeException e) {
+            // The login goes on as an unknown user, also for an error of Keycloak like a duplicated e-mail
+            LOGGER.warnv(e, "User {0} {1} not imported on lookup", realm.getId(), value);
+            return null;
+        } finally {
+            session.removeAttribute(LOOKUP_IMPORTING);
+        }
+    }
+
+    /**
+     * The user in Keycloak, without the import on lookup: a user being imported is looked up before it exists.
+     */
+    static UserModel getLocalUser(KeycloakSession session, RealmModel realm, String username) {
+        Object importing = session.getAttribute(LOOKUP_IMPORTING);
+        session.setAttribute(LOOKUP_IMPORTING, Boolean.TRUE);
+        try {
+            return session.users().getUserByUsername(realm, username);
+        } finally {
+            if (importing == null) {
+                session.removeAttribute(LOOKUP_IMPORTING);
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsCredentialType(String credentialType) {
+        return PasswordCredentialModel.TYPE.equals(credentialType)
+                && !StringUtil.isBlank(model.get(DataSouceConfiguration.PASSWORD_SQL));
+    }
+
+    @Override
+    public boolean isConfiguredFor(RealmModel realm, UserModel user, String credentialType) {
+        return supportsCredentialType(credentialType) && model.getId().equals(user.getFederationLink());
+    }
+
+    /**
+     * Checks the password against the hash in the source. When not valid Keycloak goes on to its own password,
+     * like the temp_password imported on creation.
+     */
+    @Override
+    public boolean isValid(RealmModel realm, UserModel user, CredentialInput input) {
+        if (!isConfiguredFor(realm, user, input.getType()) || input.getChallengeResponse() == null) {
+            return false;
+        }
+        String username = user.getUsername();
+        String password = input.getChallengeResponse();
+
+        try {
+            // Read on every login, a password changed in the source is checked at once
+            String hash = DbUserProviderFactory.readPasswordHash(realm, new UserStorageProviderModel(model), username);
+            if (hash == null) {
+                return false;
+            }
+            VerifiedCredentialCache verified = DbUserProviderFactory.getVerifiedCache(model);
+            if (verified != null && verified.contains(realm.getId(), username, hash, password)) {
+                return true;
+            }
+
+            PasswordCredentialModel credential = SourcePasswordHash.parse(hash);
+            String algorithm = credential.getPasswordCredentialData().getAlgorithm();
+            PasswordHashProvider hashProvider = session.getProvider(PasswordHashProvider.class, algorithm);
+
+            if (hashProvider == null) {
+                LOGGER.warnv("No password hash provider {0} for user {1} {2}", algorithm, realm.getId(), username);
+                return false;
+            }
+            boolean valid = hashProvider.verify(password, credential);
+
+            if (valid && verified != null) {
+                verified.put(realm.getId(), username, hash, password);
+            }
+            return valid;
+        } catch (RuntimeException e) {
+            LOGGER.warnv(e, "Password of user {0} {1} not checked in the source", realm.getId(), username);
+            return false;
+        }
+    }
+
     @Override
     public void close() {
         // Do nothing
@@ -227,6 +429,10 @@ public class DbUserProvider implements UserStorageProvider, ImportedUserValidati
     }
 
     private RoleModel getDefaultRole(RealmModel realm) {
+        return lookups.getDefaultRole(() -> loadDefaultRole(realm));
+    }
+
+    private RoleModel loadDefaultRole(RealmModel realm) {
         String roleName = Constants.DEFAULT_ROLES_ROLE_PREFIX + "-" + realm.getId();
         return KeycloakModelUtils.getRoleFromString(this.session,realm, roleName);
     }
@@ -1,6 +1,7 @@
 package com.github.piantino.keycloak;
 
 import static com.github.piantino.keycloak.DbProviderUtils.toAttributeValue;
+import static com.github.piantino.keycloak.DbProviderUtils.toList;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -9,10 +10,16 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -20,41 +27,142 @@ import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.GroupProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
-import org.keycloak.models.KeycloakSessionTask;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.StorageProviderRealmModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderFactory;
 import org.keycloak.storage.UserStorageProviderModel;
 import org.keycloak.storage.user.ImportSynchronization;
 import org.keycloak.storage.user.SynchronizationResult;
+import org.keycloak.timer.ScheduledTask;
+import org.keycloak.timer.TimerProvider;
 import org.keycloak.utils.StringUtil;
 
 import com.github.piantino.keycloak.DbUserProvider.Column;
 import com.github.piantino.keycloak.DbUserProvider.ColumnGroups;
 import com.github.piantino.keycloak.DbUserProvider.Importation;
+import com.github.piantino.keycloak.credential.VerifiedCredentialCache;
+import com.github.piantino.keycloak.datasource.BorrowedConnections;
 import com.github.piantino.keycloak.datasource.DataSouceConfiguration;
 import com.github.piantino.keycloak.datasource.DataSourceProvider;
+import com.github.piantino.keycloak.datasource.StatementCache;
+import com.github.piantino.keycloak.datasource.StreamingSettings;
 import com.github.piantino.keycloak.exception.DbUserProviderException;
+import com.github.piantino.keycloak.sync.BatchBisector;
+import com.github.piantino.keycloak.sync.GroupTree;
+import com.github.piantino.keycloak.sync.ImportExecutor;
+import com.github.piantino.keycloak.sync.LookupCache;
+import com.github.piantino.keycloak.sync.MergeJoinCursor;
+import com.github.piantino.keycloak.sync.MissCache;
+import com.github.piantino.keycloak.sync.MissingUsers;
+import com.github.piantino.keycloak.sync.OutboxState;
+import com.github.piantino.keycloak.sync.ShardLeases;
+import com.github.piantino.keycloak.sync.SinceWatermark;
+import com.github.piantino.keycloak.sync.SyncCounter;
+import com.github.piantino.keycloak.sync.SyncCounter.Outcome;
+import com.github.piantino.keycloak.sync.SyncMetrics;
+import com.github.piantino.keycloak.sync.SyncMetrics.Entity;
+import com.github.piantino.keycloak.sync.SyncMetrics.Phase;
+import com.github.piantino.keycloak.sync.SyncProgress;
+import com.github.piantino.keycloak.sync.SyncType;
+import com.github.piantino.keycloak.sync.UserRow;
+import com.github.piantino.keycloak.sync.UsernameSet;
 
 import io.agroal.api.AgroalDataSource;
+import io.agroal.api.AgroalDataSource.FlushMode;
 import io.agroal.api.AgroalDataSourceMetrics;
+import io.agroal.api.configuration.supplier.AgroalPropertiesReader;
 
 public class DbUserProviderFactory implements UserStorageProviderFactory<DbUserProvider>, ImportSynchronization {
     private static final int LOG_PARTIAL_COUNT = 1000;
 
+    /**
+     * Oracle accepts at most 1000 expressions in a list.
+     */
+    public static final int USERNAMES_CHUNK_SIZE = 1000;
+
+    /**
+     * Group attribute with the id of the provider that created the group, to find its groups by an indexed query.
+     */
+    public static final String GROUP_PROVIDER_ATTRIBUTE = "db_user_provider_id";
+
+    private static final int MISSING_USERS_PAGE_SIZE = 1000;
+
+    private static final Map<String, String> ALL_USERS = Map.of(UserModel.SEARCH, "*",
+            UserModel.INCLUDE_SERVICE_ACCOUNT, Boolean.FALSE.toString());
+
+    private static final String OUTBOX_TASK_PREFIX = "db-user-outbox-";
+    private static final String OUTBOX_ID_COLUMN = "id";
+
+    /**
+     * A poll running longer is considered failed, another node can poll.
+     */
+    private static final int OUTBOX_TASK_TIMEOUT_SECONDS = 600;
+
+    private static final String SHARD_TASK_PREFIX = "db-user-shards-";
+    private static final String SYNC_TASK_PREFIX = "db-user-sync-";
+    /**
+     * Lifespan of the cluster lock of a full or since sync, removed at its end: the lock of a dead node blocks the
+     * syncs of the provider until it expires.
+     */
+    private static final int SYNC_LOCK_TIMEOUT_SECONDS = 3 * 60 * 60;
+    private static final int SHARD_POLL_SECONDS = 5;
+    private static final int SHARD_WAIT_MILLIS = 1000;
+
+    /**
+     * A sharded run and its results are dropped after it.
+     */
+    private static final long SHARD_RUN_TTL_SECONDS = 24 * 60 * 60;
+
+    /**
+     * A replaced pool is closed when its connections return, or after this time.
+     */
+    private static final int POOL_DRAIN_TIMEOUT_SECONDS = 60 * 60;
+    private static final int POOL_DRAIN_WAIT_MILLIS = 1000;
+
+    /**
+     * Saved by the provider and Keycloak in the settings, not a change of the caches.
+     */
+    private static final Set<String> STATE_KEYS = Set.of(UserStorageProviderModel.LAST_SYNC,
+            DataSouceConfiguration.OUTBOX_LAST_ID, DataSouceConfiguration.SYNC_SINCE_WATERMARK,
+            DataSouceConfiguration.SYNC_CHECKPOINT);
+
+    /**
+     * The queries of the logins and syncs by user, prepared by the warm-up of the pool.
+     */
+    private static final List<String> WARM_UP_SQL = List.of(DataSouceConfiguration.SYNC_ONE_SQL,
+            DataSouceConfiguration.SYNC_ONE_EMAIL_SQL, DataSouceConfiguration.PASSWORD_SQL,
+            DataSouceConfiguration.SYNC_USERNAMES_SQL, DataSouceConfiguration.SYNC_ROLE_SQL,
+            DataSouceConfiguration.SYNC_GROUP_USER_SQL);
+
+    private static final Pattern IN_LIST = Pattern.compile("IN\\s*\\(\\s*\\?\\s*\\)", Pattern.CASE_INSENSITIVE);
+
     protected static final Logger LOGGER = Logger.getLogger(DbUserProviderFactory.class);
 
     public static final String PROVIDER_ID = "db-user-provider";
@@ -66,6 +174,21 @@ public class DbUserProviderFactory implements UserStorageProviderFactory<DbUserP
     }
 
     private static final Map<String, AgroalDataSource> DB_BY_MODEL_ID = new ConcurrentHashMap<>();
+    private static final Map<String, MissCache> MISS_BY_MODEL_ID = new ConcurrentHashMap<>();
+    private static final Map<String, VerifiedCredentialCache> VERIFIED_BY_MODEL_ID = new ConcurrentHashMap<>();
+
+    /**
+     * The factory is one by node: its id in the results of the shards and the runs it's importing.
+     */
+    private final String nodeId = RandomStringUtils.secure().nextAlphanumeric(7);
+    private final Set<String> shardRuns = ConcurrentHashMap.newKeySet();
+
+    private static final AtomicInteger JOB_COUNTER = new AtomicInteger();
+    private static final ExecutorService JOBS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "db-user-sync-job-" + JOB_COUNTER.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
 
     @Override
     public String getId() {
@@ -74,7 +197,59 @@ public class DbUserProviderFactory implements UserStorageProviderFactory<DbUserP
 
     @Override
     public DbUserProvider create(KeycloakSession session, ComponentModel model) {
-        return new DbUserProvider(session);
+        return new DbUserProvider(session, model);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        factory.register(event -> {
+            if (event instanceof PostMigrationEvent) {
+                scheduleTasks(factory);
+            }
+        });
+    }
+
+    @Override
+    public void onCreate(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        scheduleOutbox(session, realm.getId(), model);
+        scheduleShards(session, realm.getId(), model);
+        warmUp(realm.getId(), model);
+    }
+
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel,
+            ComponentModel newModel) {
+        // Each poll saves the last id, an update too
+        if (!getOutboxSettings(oldModel).equals(getOutboxSettings(newModel))) {
+            scheduleOutbox(session, realm.getId(), newModel);
+        }
+        if (!getShardSettings(oldModel).equals(getShardSettings(newModel))) {
+            scheduleShards(session, realm.getId(), newModel);
+        }
+        if (!DataSourceProvider.getSettings(oldModel).equals(DataSourceProvider.getSettings(newModel))) {
+            replaceDataSource(realm.getId(), newModel);
+        }
+        if (!getSettings(oldModel).equals(getSettings(newModel))) {
+            // Another source or TTL, the next lookups create them again
+            MISS_BY_MODEL_ID.remove(newModel.getId());
+            VERIFIED_BY_MODEL_ID.remove(newModel.getId());
+        }
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        TimerProvider timer = session.getProvider(TimerProvider.class);
+        if (timer != null) {
+            timer.cancelTask(OUTBOX_TASK_PREFIX + model.getId());
+            timer.cancelTask(SHARD_TASK_PREFIX + model.getId());
+        }
+        MISS_BY_MODEL_ID.remove(model.getId());
+        VERIFIED_BY_MODEL_ID.remove(model.getId());
+
+        AgroalDataSource ds = DB_BY_MODEL_ID.remove(model.getParentId());
+        if (ds != null) {
+            drainDataSource(realm.getId(), ds);
+        }
     }
 
     @Override
@@ -86,210 +261,1483 @@ public class DbUserProviderFactory implements UserStorageProviderFactory<DbUserP
     public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel config)
             throws ComponentValidationException {
 
-        // Add validations
+        // The per user query is the fallback of an unordered bulk query
+        requireFallback(config, DataSouceConfiguration.SYNC_ROLE_BULK_SQL, DataSouceConfiguration.SYNC_ROLE_SQL);
+        requireFallback(config, DataSouceConfiguration.SYNC_GROUP_USER_BULK_SQL,
+                DataSouceConfiguration.SYNC_GROUP_USER_SQL);
+
+        // Only the drivers of PostgreSQL and H2 create an array of the usernames
+        String usernamesSql = config.get(DataSouceConfiguration.SYNC_USERNAMES_SQL);
+        String url = config.get(AgroalPropertiesReader.JDBC_URL, "");
+        if (!StringUtil.isBlank(usernamesSql) && !IN_LIST.matcher(usernamesSql).find()
+                && !url.startsWith("jdbc:postgresql:") && !url.startsWith("jdbc:h2:")) {
+            throw new ComponentValidationException(DataSouceConfiguration.SYNC_USERNAMES_SQL
+                    + " requires \"IN (?)\", the array parameter is supported only by PostgreSQL and H2");
+        }
+
+        // Oracle reads the empty username of the first page as null
+        String pageSql = config.get(DataSouceConfiguration.SYNC_PAGE_SQL);
+        if (!StringUtil.isBlank(pageSql) && countParameters(pageSql) != 2 && url.startsWith("jdbc:oracle:")) {
+            throw new ComponentValidationException(DataSouceConfiguration.SYNC_PAGE_SQL
+                    + " requires two parameters on Oracle, like \"? IS NULL OR username > ?\"");
+        }
+    }
+
+    private static long countParameters(String sql) {
+        return sql.chars().filter(c -> c == '?').count();
+    }
+
+    private static void requireFallback(ComponentModel config, String bulkKey, String key) {
+        if (!StringUtil.isBlank(config.get(bulkKey)) && StringUtil.isBlank(config.get(key))) {
+            throw new ComponentValidationException(bulkKey + " requires " + key);
+        }
+    }
+
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model) {
+
+        String importId = createImportId();
+        SyncProgress progress = SyncProgress.startExclusive(importId, realmId, SyncType.FULL);
+
+        if (progress == null) {
+            LOGGER.infov("[{0}] Sync all {1} ignored, another sync is running", importId, realmId);
+            return SynchronizationResult.ignored();
+        }
+        return syncExclusive(importId, progress, sessionFactory, realmId, model,
+                () -> sync(importId, progress, sessionFactory, realmId, model));
+    }
+
+    /**
+     * Starts a full sync ({@code lastSync} null) or a sync since in background, unless another one is running in
+     * the realm.
+     *
+     * @param useWatermark the sync since starts from the saved watermark of the source, if any, instead of
+     *            {@code lastSync}
+     * @return the progress, to follow or cancel the sync
+     */
+    public SyncProgress syncAsync(Date lastSync, boolean useWatermark, KeycloakSessionFactory sessionFactory,
+            String realmId, UserStorageProviderModel model) {
+
+        String importId = createImportId();
+        SyncType syncType = lastSync == null ? SyncType.FULL : SyncType.SINCE;
+        SyncProgress progress = SyncProgress.startExclusive(importId, realmId, syncType);
+
+        if (progress == null) {
+            throw new DbUserProviderException("A sync is already running in " + realmId);
+        }
+        LOGGER.infov("[{0}] Sync {1} {2} submitted", importId, syncType, realmId);
+
+        JOBS.execute(() -> {
+            try {
+                syncExclusive(importId, progress, sessionFactory, realmId, model, () -> lastSync == null
+                        ? sync(importId, progress, sessionFactory, realmId, model)
+                        : syncSince(importId, progress, lastSync, useWatermark, sessionFactory, realmId, model));
+            } catch (RuntimeException e) {
+                LOGGER.errorv(e, "[{0}] Sync {1} {2} failed", importId, syncType, realmId);
+            }
+        });
+        return progress;
+    }
+
+    /**
+     * Runs the sync unless another full or since sync of the provider runs in a node of the cluster, then it's
+     * ignored and its progress failed.
+     */
+    private SynchronizationResult syncExclusive(String importId, SyncProgress progress,
+            KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model,
+            Supplier<SynchronizationResult> sync) {
+
+        KeycloakSession session = sessionFactory.create();
+        try {
+            ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+            if (cluster == null) {
+                return sync.get();
+            }
+            ExecutionResult<SynchronizationResult> execution = cluster.executeIfNotExecuted(
+                    SYNC_TASK_PREFIX + model.getId(), SYNC_LOCK_TIMEOUT_SECONDS, sync::get);
+            if (execution.isExecuted()) {
+                return execution.getResult();
+            }
+            LOGGER.infov("[{0}] Sync {1} ignored, another sync is running in the cluster", importId, realmId);
+            progress.fail(new DbUserProviderException("A sync is already running in the cluster for " + realmId));
+            return SynchronizationResult.ignored();
+        } finally {
+            // The lock is released by the cluster, the progress ends here if an error stopped the sync
+            progress.failIfRunning();
+            session.close();
+        }
+    }
+
+    private SynchronizationResult sync(String importId, SyncProgress progress, KeycloakSessionFactory sessionFactory,
+            String realmId, UserStorageProviderModel model) {
+
+        LOGGER.infov("[{0}] Sync all {1} started", importId, realmId);
+
+        try {
+            LOGGER.infov("[{0}] Sync all groups {1} started", importId, realmId);
+            SynchronizationResult groupsResult = importGroups(importId, sessionFactory, realmId, model, progress);
+            LOGGER.infov("[{0}] Sync all groups {1} finished: {2}", importId, realmId, groupsResult);
+
+            if (progress.isCancelled()) {
+                return cancelled(importId, realmId, progress);
+            }
+
+            LOGGER.infov("[{0}] Sync all users {1} started", importId, realmId);
+            String sql = model.get(DataSouceConfiguration.SYNC_SQL);
+            MissingUsers missingUsers = MissingUsers.of(model.get(DataSouceConfiguration.SYNC_MISSING_USERS));
+            UsernameSet seen = missingUsers == MissingUsers.KEEP ? null : new UsernameSet();
+            SinceWatermark watermark = new SinceWatermark();
+            Consumer<Map<String, Object>> rowListener = row -> {
+                String username = (String) row.get(Column.username.name());
+                if (seen != null && username != null) {
+                    seen.add(username);
+                }
+                watermark.offer(row.get(Column.updated.name()), username);
+            };
+
+            String pageSql = model.get(DataSouceConfiguration.SYNC_PAGE_SQL);
+            String checkpoint = model.get(DataSouceConfiguration.SYNC_CHECKPOINT);
+            boolean sharded = isSharded(model);
+            boolean resumed = !sharded && !StringUtil.isBlank(pageSql) && !StringUtil.isBlank(checkpoint);
+
+            SynchronizationResult usersResult;
+            if (sharded) {
+                usersResult = importShards(importId, sessionFactory, realmId, model, progress, watermark);
+            } else if (StringUtil.isBlank(pageSql)) {
+                usersResult = importUsers(importId, sessionFactory, realmId, model, progress, new SyncCounter(),
+                        rowListener, sql,
+                        (ps) -> {
+                        });
+            } else {
+                usersResult = importUserPages(importId, sessionFactory, realmId, model, progress, rowListener,
+                        pageSql, resumed ? checkpoint : null);
+            }
+
+            if (!progress.isCancelled()) {
+                saveWatermark(importId, sessionFactory, realmId, model, watermark);
+            }
+            if (seen != null && (resumed || sharded)) {
+                // The users before the checkpoint, or of the shards of other nodes, weren't read here
+                LOGGER.infov("[{0}] Sync all users {1} {2}, missing users not checked", importId, realmId,
+                        sharded ? "sharded" : "resumed");
+            } else if (seen != null && !progress.isCancelled()) {
+                usersResult.add(reconcileMissingUsers(importId, sessionFactory, realmId, model, progress,
+                        missingUsers, seen));
+            }
+            LOGGER.infov("[{0}] Sync all users {1} finished: {2}", importId, realmId, usersResult);
+
+            progress.finish(usersResult);
+            return usersResult;
+        } catch (RuntimeException e) {
+            progress.fail(e);
+            throw e;
+        } finally {
+            progress.failIfRunning();
+        }
+    }
+
+    /**
+     * Publishes a run of the shards, imports shards in this node like the other nodes and waits for all of them. The
+     * shards whose node died are claimed again when their lease expires.
+     */
+    private SynchronizationResult importShards(String importId, KeycloakSessionFactory sessionFactory,
+            String realmId, UserStorageProviderModel model, SyncProgress progress, SinceWatermark watermark) {
+        int shards = model.get(DataSouceConfiguration.SYNC_SHARDS, 0);
+        ShardLeases leases = ShardLeases.publish(sessionFactory, model.getId(), importId, shards,
+                SHARD_RUN_TTL_SECONDS);
+        LOGGER.infov("[{0}] Sync all users {1} in {2} shards", importId, realmId, shards);
+
+        progress.stage("shards", shards);
+        shardRuns.add(importId);
+        try {
+            Map<Integer, Map<String, String>> results;
+            while (true) {
+                workShards(sessionFactory, realmId, model, leases, progress);
+                results = leases.getResults();
+                progress.setCounter(results.size());
+
+                if (results.size() == shards || progress.isCancelled()) {
+                    break;
+                }
+                try {
+                    Thread.sleep(SHARD_WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DbUserProviderException("Interrupted waiting the shards of " + realmId, e);
+                }
+            }
+            String error = ShardLeases.getError(results);
+            if (error != null) {
+                throw new DbUserProviderException("Sync failed in " + error);
+            }
+            SynchronizationResult result = ShardLeases.sum(results, watermark);
+            SyncMetrics.get(realmId, SyncType.FULL).recordResult(Entity.USER, result);
+
+            LOGGER.infov("[{0}] Sync all users {1}: {2} of {3} shards", importId, realmId, results.size(), shards);
+            return result;
+        } finally {
+            shardRuns.remove(importId);
+            leases.finish();
+        }
+    }
+
+    /**
+     * Imports the shards of the running sharded full sync of the provider, if any, like the node that started it.
+     *
+     * @return the shards imported by this node
+     */
+    public int joinShards(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        ShardLeases leases = ShardLeases.find(sessionFactory, model.getId());
+
+        // Already importing it
+        if (leases == null || !shardRuns.add(leases.getRunId())) {
+            return 0;
+        }
+        try {
+            return workShards(sessionFactory, realmId, model, leases, null);
+        } finally {
+            shardRuns.remove(leases.getRunId());
+        }
+    }
+
+    /**
+     * Imports the shards claimed by this node, until there is none left to claim.
+     *
+     * @param runProgress the progress of the run, if started by this node
+     */
+    private int workShards(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model,
+            ShardLeases leases, SyncProgress runProgress) {
+        int shards = leases.getShards();
+        long lease = model.get(DataSouceConfiguration.SYNC_SHARD_LEASE,
+                DataSouceConfiguration.DEFAULT_SYNC_SHARD_LEASE);
+        int imported = 0;
+
+        // The nodes start in different shards, fewer claims fail
+        int first = ThreadLocalRandom.current().nextInt(shards);
+        for (int i = 0; i < shards; i++) {
+            if (runProgress != null && runProgress.isCancelled() || !leases.isActive()) {
+                break;
+            }
+            int shard = (first + i) % shards;
+            if (leases.claim(shard, nodeId, lease)) {
+                importShard(sessionFactory, realmId, model, leases, shard, lease);
+                imported++;
+            }
+        }
+        return imported;
+    }
+
+    /**
+     * The lease of the shard is renewed while its rows are read, each third of the lease. When another node claimed
+     * it, the import stops between batches without result.
+     */
+    private void importShard(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model,
+            ShardLeases leases, int shard, long lease) {
+        int shards = leases.getShards();
+        String importId = leases.getRunId() + "-" + shard;
+        SyncProgress progress = SyncProgress.start(importId, realmId, SyncType.SHARD);
+        SinceWatermark watermark = new SinceWatermark();
+        String sql = model.get(DataSouceConfiguration.SYNC_SHARD_SQL);
+        long renewNanos = TimeUnit.SECONDS.toNanos(lease) / 3;
+        long[] renewAt = { System.nanoTime() + renewNanos };
+
+        LOGGER.infov("[{0}] Shard {1} of {2} {3} started in {4}", importId, shard, shards, realmId, nodeId);
+        try {
+            SynchronizationResult result = importUsers(importId, sessionFactory, realmId, model, progress,
+                    new SyncCounter(), row -> {
+                        watermark.offer(row.get(Column.updated.name()), (String) row.get(Column.username.name()));
+                        if (System.nanoTime() >= renewAt[0] && !progress.isCancelled()) {
+                            renewAt[0] = System.nanoTime() + renewNanos;
+                            renewShard(importId, leases, shard, lease, progress);
+                        }
+                    },
+                    sql,
+                    (ps) -> {
+                        try {
+                            ps.setInt(1, shards);
+                            ps.setInt(2, shard);
+                        } catch (SQLException e) {
+                            throw new DbUserProviderException("Error configure shard " + shard + " in " + realmId,
+                                    e);
+                        }
+                    });
+
+            // Without result, the shard is imported again when the lease expires
+            if (!progress.isCancelled()) {
+                renewShard(importId, leases, shard, lease, progress);
+            }
+            if (!progress.isCancelled()) {
+                leases.complete(shard, nodeId, result, watermark);
+            }
+            LOGGER.infov("[{0}] Shard {1} of {2} {3} finished: {4}", importId, shard, shards, realmId, result);
+            progress.finish(result);
+        } catch (RuntimeException e) {
+            LOGGER.errorv(e, "[{0}] Shard {1} of {2} {3} failed", importId, shard, shards, realmId);
+            leases.fail(shard, nodeId, e.getMessage());
+            progress.fail(e);
+        } finally {
+            progress.failIfRunning();
+        }
+    }
+
+    private void renewShard(String importId, ShardLeases leases, int shard, long lease, SyncProgress progress) {
+        if (!leases.renew(shard, nodeId, lease)) {
+            LOGGER.warnv("[{0}] Shard {1} claimed by another node after its lease expired, stopped", importId, shard);
+            progress.cancel();
+        }
+    }
+
+    /**
+     * Reads the users by pages of usernames after the last one of the previous page, each page with its own
+     * connection. The last username of each page imported is saved as checkpoint, a sync not finished (restarted
+     * node or cancelled) resumes from it.
+     *
+     * @param after the checkpoint, null from the first page
+     */
+    private SynchronizationResult importUserPages(String importId, KeycloakSessionFactory sessionFactory,
+            String realmId, UserStorageProviderModel model, SyncProgress progress,
+            Consumer<Map<String, Object>> rowListener, String sql, String after) {
+        SynchronizationResult result = new SynchronizationResult();
+        int pageSize = model.get(DataSouceConfiguration.SYNC_PAGE_SIZE, DataSouceConfiguration.DEFAULT_SYNC_PAGE_SIZE);
+
+        if (after != null) {
+            LOGGER.infov("[{0}] Sync all users {1} resumed after {2}", importId, realmId, after);
+        }
+        UserPage page = new UserPage(after, pageSize, 0);
+        while (true) {
+            // The counters of each page are recorded in the metrics, the result is their sum
+            result.add(importUsers(importId, sessionFactory, realmId, model, progress, new SyncCounter(),
+                    rowListener, sql,
+                    (ps) -> {
+                    }, page));
+
+            if (progress.isCancelled()) {
+                return result;
+            }
+            if (page.rows < pageSize) {
+                break;
+            }
+            if (page.last == null) {
+                throw new DbUserProviderException("Page of " + DataSouceConfiguration.SYNC_PAGE_SQL
+                        + " without username in " + realmId);
+            }
+            saveProviderState(sessionFactory, realmId, model, DataSouceConfiguration.SYNC_CHECKPOINT, page.last);
+            LOGGER.debugv("[{0}] Sync all users {1} checkpoint {2}", importId, realmId, page.last);
+
+            page = new UserPage(page.last, pageSize, page.offset + page.rows);
+        }
+
+        if (!StringUtil.isBlank(model.get(DataSouceConfiguration.SYNC_CHECKPOINT))) {
+            saveProviderState(sessionFactory, realmId, model, DataSouceConfiguration.SYNC_CHECKPOINT, null);
+        }
+        return result;
+    }
+
+    private SynchronizationResult importGroups(String importId, KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model, SyncProgress progress) {
+        SynchronizationResult result = new SynchronizationResult();
+        SyncMetrics metrics = SyncMetrics.get(realmId, progress.getSyncType());
+
+        String sql = model.get(DataSouceConfiguration.SYNC_GROUP_SQL);
+
+        if (StringUtil.isBlank(sql)) {
+            return result;
+        }
+
+        Set<String> allGroupGids = getAllSynchronizedGroupIds(importId, sessionFactory, realmId, model);
+        Set<String> existingGids = new HashSet<>(allGroupGids);
+
+        GroupTree tree = readGroups(realmId, model, progress, sql, (ps) -> {
+        }, metrics);
+        allGroupGids.removeAll(tree.getGids());
+
+        importGroupTree(importId, sessionFactory, realmId, model, progress, tree, existingGids, result, metrics);
+
+        if (progress.isCancelled()) {
+            // The groups not read yet would be removed
+            metrics.recordResult(Entity.GROUP, result);
+            return result;
+        }
+
+        LOGGER.infov("[{0}] Removing groups no longer synced: {1}", importId, allGroupGids.size());
+        removeGroups(importId, sessionFactory, realmId, model, allGroupGids, result, metrics);
+
+        metrics.recordResult(Entity.GROUP, result);
+        return result;
+    }
+
+    /**
+     * Only the groups changed and deleted since the last sync, without looking up all the synchronized groups.
+     */
+    private SynchronizationResult importGroupsSince(String importId, Timestamp timeStamp,
+            KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model,
+            SyncProgress progress) {
+        SynchronizationResult result = new SynchronizationResult();
+        SyncMetrics metrics = SyncMetrics.get(realmId, progress.getSyncType());
+
+        Consumer<PreparedStatement> sinceParameter = (ps) -> {
+            try {
+                ps.setTimestamp(1, timeStamp);
+            } catch (SQLException e) {
+                throw new DbUserProviderException("Error configure sync since " + timeStamp + " in " + realmId, e);
+            }
+        };
+
+        String sql = model.get(DataSouceConfiguration.SYNC_GROUP_SINCE_SQL);
+        GroupTree tree = readGroups(realmId, model, progress, sql, sinceParameter, metrics);
+
+        importGroupTree(importId, sessionFactory, realmId, model, progress, tree, null, result, metrics);
+
+        String deletedSql = model.get(DataSouceConfiguration.SYNC_GROUP_DELETED_SQL);
+
+        if (!progress.isCancelled() && !StringUtil.isBlank(deletedSql)) {
+            Set<String> deletedGids = new LinkedHashSet<>();
+
+            try (Connection con = getDataSource(model).getConnection();
+                    PreparedStatement ps = con.prepareStatement(deletedSql);) {
+                sinceParameter.accept(ps);
+                try (ResultSet rs = ps.executeQuery();) {
+                    while (rs.next()) {
+                        deletedGids.add(toAttributeValue(rs.getObject(ColumnGroups.gid.name())));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new DbUserProviderException("Error on connect to database in " + realmId, e);
+            }
+            // Deleted and created again
+            deletedGids.removeAll(tree.getGids());
+
+            LOGGER.infov("[{0}] Removing groups deleted: {1}", importId, deletedGids.size());
+            removeGroups(importId, sessionFactory, realmId, model, deletedGids, result, metrics);
+        }
+
+        metrics.recordResult(Entity.GROUP, result);
+        return result;
+    }
+
+    private GroupTree readGroups(String realmId, UserStorageProviderModel model, SyncProgress progress, String sql,
+            Consumer<PreparedStatement> parameters, SyncMetrics metrics) {
+
+        // The rows are staged and imported parent first, the query order doesn't matter
+        GroupTree tree = new GroupTree(ColumnGroups.gid.name(), ColumnGroups.gid_parent.name());
+        progress.stage("groups", -1);
+
+        long start = System.nanoTime();
+
+        try (Connection con = getDataSource(model).getConnection()) {
+            // Restored before the connection returns to the pool
+            StreamingSettings streaming = StreamingSettings.apply(con, model);
+            try (PreparedStatement ps = StreamingSettings.prepare(con, model, sql);) {
+
+                parameters.accept(ps);
+
+                try (ResultSet rs = ps.executeQuery();) {
+                    ResultSetMetaData md = rs.getMetaData();
+                    int columns = md.getColumnCount();
+                    int counter = 0;
+
+                    while (rs.next()) {
+                        if (progress.isCancelled()) {
+                            break;
+                        }
+                        counter++;
+
+                        HashMap<String, String> data = new HashMap<>(columns);
+                        for (int i = 1; i <= columns; ++i) {
+                            data.put(md.getColumnName(i).toLowerCase(), toAttributeValue(rs.getObject(i)));
+                        }
+                        start = metrics.record(Phase.GROUP_SELECT, start);
+
+                        logDebugData(progress.getImportId(), data);
+
+                        tree.add(data);
+
+                        progress.setCounter(counter);
+                        start = System.nanoTime();
+                    }
+                }
+            } finally {
+                if (streaming != null) {
+                    streaming.close();
+                }
+            }
+        } catch (SQLException e) {
+            throw new DbUserProviderException("Error on connect to database in " + realmId, e);
+        }
+        return tree;
+    }
+
+    /**
+     * @param existingGids groups synchronized before, null when unknown
+     */
+    private void importGroupTree(String importId, KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model, SyncProgress progress, GroupTree tree, Set<String> existingGids,
+            SynchronizationResult result, SyncMetrics metrics) {
+
+        GroupCounter counter = new GroupCounter(result);
+        progress.stage("groups", tree.size());
+
+        for (Map<String, String> data : tree.getCycles()) {
+            counter.failed.add(data.get(ColumnGroups.gid.name()));
+            result.increaseFailed();
+            LOGGER.errorv("[{0}] Sync group error {1}: cycle of parents", importId, data.get(ColumnGroups.name.name()));
+        }
+
+        int batchSize = getBatchSize(model);
+        List<List<Map<String, String>>> levels = tree.getLevels();
+
+        for (int level = 0; level < levels.size() && !progress.isCancelled(); level++) {
+            List<Map<String, String>> rows = new ArrayList<>(levels.get(level).size());
+
+            for (Map<String, String> data : levels.get(level)) {
+                // Created at the root, the group would be moved by the next sync
+                if (counter.failed.contains(data.get(ColumnGroups.gid_parent.name()))) {
+                    counter.failed.add(data.get(ColumnGroups.gid.name()));
+                    result.increaseFailed();
+                    LOGGER.errorv("[{0}] Sync group error {1}: parent group failed", importId,
+                            data.get(ColumnGroups.name.name()));
+                } else {
+                    rows.add(data);
+                }
+            }
+            for (int i = 0; i < rows.size() && !progress.isCancelled(); i += batchSize) {
+                List<Map<String, String>> batch = rows.subList(i, Math.min(i + batchSize, rows.size()));
+                importGroupBatch(importId, sessionFactory, realmId, model, batch, existingGids, counter, metrics);
+                progress.setCounter(counter.imported);
+            }
+            LOGGER.debugv("[{0}] Sync groups level {1} finished: {2}", importId, level, levels.get(level).size());
+        }
+        if (counter.unchanged > 0) {
+            LOGGER.infov("[{0}] Unchanged groups skipped: {1}", importId, counter.unchanged);
+        }
+        metrics.recordSkipped(Entity.GROUP, counter.unchanged);
+
+        if (progress.isCancelled()) {
+            LOGGER.infov("[{0}] Sync groups cancelled after {1} groups", importId, counter.imported);
+        }
+    }
+
+    private void removeGroups(String importId, KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model, Set<String> gids, SynchronizationResult result, SyncMetrics metrics) {
+        int batchSize = getBatchSize(model);
+        List<String> removed = new ArrayList<>(gids);
+
+        for (int i = 0; i < removed.size(); i += batchSize) {
+            List<String> batch = removed.subList(i, Math.min(i + batchSize, removed.size()));
+            removeGroupBatch(importId, sessionFactory, realmId, batch, result, metrics);
+        }
+    }
+
+    /**
+     * Groups imported by a sync, the groups are imported by one thread.
+     */
+    private static class GroupCounter {
+        private final SynchronizationResult result;
+        private final Set<String> failed = new HashSet<>();
+        private int imported;
+        private int unchanged;
+
+        private GroupCounter(SynchronizationResult result) {
+            this.result = result;
+        }
+    }
+
+    private void importGroupBatch(String importId, KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model, List<Map<String, String>> batch, Set<String> existingGids,
+            GroupCounter counter, SyncMetrics metrics) {
+
+        // Process the batch in one transaction, bisecting it on failure to avoid global fail
+        BatchBisector.run(importId, batch, rows -> {
+            long start = System.nanoTime();
+            List<Importation> importations = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                    session -> {
+                        RealmModel currentRealm = session.realms().getRealm(realmId);
+                        session.getContext().setRealm(currentRealm);
+
+                        // The siblings are together in the batch, their parent is looked up once
+                        Map<String, GroupModel> parents = new HashMap<>();
+
+                        List<Importation> list = new ArrayList<>(rows.size());
+                        for (Map<String, String> data : rows) {
+                            list.add(importGroup(importId, session, currentRealm, model, data, existingGids,
+                                    parents));
+                            BatchBisector.checkRollbackOnly(session, data.get(ColumnGroups.gid.name()));
+                        }
+                        return list;
+                    });
+            metrics.record(Phase.GROUP_IMPORT, start);
+
+            for (Importation importation : importations) {
+                if (importation == Importation.ADDED) {
+                    counter.result.increaseAdded();
+                } else {
+                    counter.result.increaseUpdated();
+                }
+                if (importation == Importation.UNCHANGED) {
+                    counter.unchanged++;
+                }
+            }
+            counter.imported += rows.size();
+        }, (data, e) -> {
+            counter.failed.add(data.get(ColumnGroups.gid.name()));
+            counter.result.increaseFailed();
+            counter.imported++;
+            metrics.recordFailure(Entity.GROUP, e);
+            LOGGER.errorv(e, "[{0}] Sync group error {1}", importId, data.get(ColumnGroups.name.name()));
+        });
+    }
+
+    /**
+     * Only the changed name, parent and attributes are written.
+     *
+     * @param existingGids groups synchronized before, the other ones are created without looking them up. Null
+     *                     when unknown
+     * @param parents      cache of the parents in the transaction
+     */
+    private Importation importGroup(String importId, KeycloakSession session, RealmModel realm,
+            UserStorageProviderModel model, Map<String, String> data, Set<String> existingGids,
+            Map<String, GroupModel> parents) {
+        String name = data.get(ColumnGroups.name.name());
+        String gid = data.get(ColumnGroups.gid.name());
+        String gidParent = data.get(ColumnGroups.gid_parent.name());
+
+        GroupModel gmParent = gidParent == null ? null
+                : parents.computeIfAbsent(gidParent, key -> getGroupModelByGid(session.groups(), realm, key));
+
+        GroupModel gm = existingGids == null || existingGids.contains(gid)
+                ? getGroupModelByGid(session.groups(), realm, gid)
+                : null;
+        if (gm == null) {
+            String uuidGid = getGroupUuid(realm.getId(), gid);
+            gm = realm.createGroup(uuidGid, name, gmParent);
+            LOGGER.debugv("[{0}] Created group {1}", importId, name);
+
+            for (Entry<String, String> entry : data.entrySet()) {
+                if (!ColumnGroups.name.name().equals(entry.getKey())) {
+                    gm.setSingleAttribute(entry.getKey(), entry.getValue());
+                }
+            }
+            gm.setSingleAttribute(GROUP_PROVIDER_ATTRIBUTE, model.getId());
+            return Importation.ADDED;
+        }
+
+        // Groups created before the attribute existed
+        boolean changed = false;
+        if (!model.getId().equals(gm.getFirstAttribute(GROUP_PROVIDER_ATTRIBUTE))) {
+            gm.setSingleAttribute(GROUP_PROVIDER_ATTRIBUTE, model.getId());
+            changed = true;
+        }
+        if (!Objects.equals(name, gm.getName())) {
+            gm.setName(name);
+            changed = true;
+        }
+
+        // A parent not found (not synchronized) keeps the group where it is
+        String parentId = gmParent == null ? null : gmParent.getId();
+        if ((gidParent == null || gmParent != null) && !Objects.equals(parentId, gm.getParentId())) {
+            realm.moveGroup(gm, gmParent);
+            changed = true;
+        }
+
+        for (Entry<String, String> entry : data.entrySet()) {
+            if (!ColumnGroups.name.name().equals(entry.getKey())
+                    && !Objects.equals(entry.getValue(), gm.getFirstAttribute(entry.getKey()))) {
+                gm.setSingleAttribute(entry.getKey(), entry.getValue());
+                changed = true;
+            }
+        }
+        return changed ? Importation.UPDATED : Importation.UNCHANGED;
+    }
+
+    private void removeGroupBatch(String importId, KeycloakSessionFactory sessionFactory, String realmId,
+            List<String> batch, SynchronizationResult result, SyncMetrics metrics) {
+
+        // Process the batch in one transaction, bisecting it on failure to avoid global fail
+        BatchBisector.run(importId, batch, gids -> {
+            long start = System.nanoTime();
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel currentRealm = session.realms().getRealm(realmId);
+                session.getContext().setRealm(currentRealm);
+
+                for (String gid : gids) {
+                    GroupModel gm = getGroupModelByGid(session.groups(), currentRealm, gid);
+
+                    // Already removed with its parent
+                    if (gm != null) {
+                        currentRealm.removeGroup(gm);
+                        LOGGER.debugv("[{0}] Removed group {1}", importId, gm.getName());
+                    }
+                }
+            });
+            metrics.record(Phase.GROUP_REMOVE, start);
+
+            for (int i = 0; i < gids.size(); i++) {
+                result.increaseRemoved();
+            }
+        }, (gid, e) -> {
+            result.increaseFailed();
+            metrics.recordFailure(Entity.GROUP, e);
+            LOGGER.errorv(e, "[{0}] Remove group error {1}", importId, gid);
+        });
+    }
+
+    /**
+     * The gids of the groups created by the provider, found by {@link #GROUP_PROVIDER_ATTRIBUTE}. The gid comes
+     * from the group id ({@code realmId_gid}), without loading the attributes.
+     *
+     * Until the first sync marks the groups, they are found by the id of all groups.
+     */
+    private Set<String> getAllSynchronizedGroupIds(String importId, KeycloakSessionFactory sessionFactory,
+            String realmId, UserStorageProviderModel model) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, (session) -> {
+            RealmModel currentRealm = session.realms().getRealm(realmId);
+            session.getContext().setRealm(currentRealm);
+
+            Set<String> gids = toGids(realmId, session.groups().searchGroupsByAttributes(currentRealm,
+                    Map.of(GROUP_PROVIDER_ATTRIBUTE, model.getId()), null, null));
+
+            if (gids.isEmpty()) {
+                LOGGER.debugv("[{0}] No group with {1}, looking up all groups", importId, GROUP_PROVIDER_ATTRIBUTE);
+                gids = toGids(realmId, session.groups().getGroupsStream(currentRealm));
+            }
+            return gids;
+        });
+    }
+
+    private Set<String> toGids(String realmId, Stream<GroupModel> groups) {
+        String prefix = getGroupUuid(realmId, "");
+        return groups.map(GroupModel::getId)
+                .filter(id -> id.startsWith(prefix))
+                .map(id -> id.substring(prefix.length()))
+                .collect(Collectors.toSet());
+    }
+
+    private static GroupModel getGroupModelByGid(GroupProvider gp, RealmModel realm, String gid) {
+        return gp.getGroupById(realm, getGroupUuid(realm.getId(), gid));
+    }
+
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model) {
+
+        String importId = createImportId();
+        SyncProgress progress = SyncProgress.startExclusive(importId, realmId, SyncType.SINCE);
+
+        if (progress == null) {
+            LOGGER.infov("[{0}] Sync since {1} ignored, another sync is running", importId, realmId);
+            return SynchronizationResult.ignored();
+        }
+        return syncExclusive(importId, progress, sessionFactory, realmId, model,
+                () -> syncSince(importId, progress, lastSync, true, sessionFactory, realmId, model));
+    }
+
+    /**
+     * The watermark saved by the last sync is used instead of {@code lastSync}, the clock of the Keycloak node, when
+     * {@code useWatermark}.
+     */
+    private SynchronizationResult syncSince(String importId, SyncProgress progress, Date lastSync,
+            boolean useWatermark, KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model) {
+
+        SinceWatermark saved = SinceWatermark.parse(model.get(DataSouceConfiguration.SYNC_SINCE_WATERMARK));
+        SinceWatermark from = useWatermark && saved != null ? saved : new SinceWatermark(lastSync);
+        Timestamp timeStamp = from.getUpdated();
+
+        LOGGER.infov("[{0}] Sync since {1} started {2}", importId, realmId, from);
+
+        try {
+            LOGGER.infov("[{0}] Sync since groups {1} started", importId, realmId);
+            SynchronizationResult groupsResult;
+            if (StringUtil.isBlank(model.get(DataSouceConfiguration.SYNC_GROUP_SINCE_SQL))) {
+                groupsResult = importGroups(importId, sessionFactory, realmId, model, progress);
+            } else {
+                groupsResult = importGroupsSince(importId, timeStamp, sessionFactory, realmId, model, progress);
+            }
+            LOGGER.infov("[{0}] Sync since groups {1} finished: {2}", importId, realmId, groupsResult);
+
+            if (progress.isCancelled()) {
+                return cancelled(importId, realmId, progress);
+            }
+
+            String sql = model.get(DataSouceConfiguration.SYNC_SINCE_SQL);
+            SinceWatermark watermark = new SinceWatermark();
+
+            SynchronizationResult result = importUsers(importId, sessionFactory, realmId, model, progress,
+                    new SyncCounter(), row -> watermark.offer(row.get(Column.updated.name()),
+                            (String) row.get(Column.username.name())),
+                    sql,
+                    (ps) -> {
+                        try {
+                            from.bind(ps, sql);
+                        } catch (SQLException e) {
+                            throw new DbUserProviderException("Error configure sync since " + from
+                                    + " in " + realmId, e);
+                        }
+                    });
+            if (!progress.isCancelled()) {
+                saveWatermark(importId, sessionFactory, realmId, model, watermark);
+            }
+            LOGGER.infov("[{0}] Sync since {1} finished: {2}", importId, realmId, result);
+
+            progress.finish(result);
+            return result;
+        } catch (RuntimeException e) {
+            progress.fail(e);
+            throw e;
+        } finally {
+            progress.failIfRunning();
+        }
+    }
+
+    /**
+     * Saves the greatest row read, unless it's before the saved one. Like the last sync, a failed user is read again
+     * when changed or by the full sync.
+     */
+    private void saveWatermark(String importId, KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model, SinceWatermark watermark) {
+        SinceWatermark saved = SinceWatermark.parse(model.get(DataSouceConfiguration.SYNC_SINCE_WATERMARK));
+        if (watermark.isAfter(saved)) {
+            saveProviderState(sessionFactory, realmId, model, DataSouceConfiguration.SYNC_SINCE_WATERMARK,
+                    watermark.toString());
+            LOGGER.infov("[{0}] Watermark {1}: {2}", importId, realmId, watermark);
+        }
+    }
+
+    private SynchronizationResult cancelled(String importId, String realmId, SyncProgress progress) {
+        LOGGER.infov("[{0}] Sync {1} cancelled before the users", importId, realmId);
+        SynchronizationResult result = new SynchronizationResult();
+        progress.finish(result);
+        return result;
+    }
+
+    @Override
+    public void close() {
+        for (Entry<String, AgroalDataSource> entry : DB_BY_MODEL_ID.entrySet()) {
+            LOGGER.debugv("Close DataSource {0}", entry.getKey());
+            entry.getValue().close();
+        }
+    }
+
+    public SynchronizationResult syncUsername(String username, KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model) {
+
+        String importId = createImportId();
+
+        LOGGER.infov("[{0}] Sync user {1} {2}", importId, realmId, username);
+        SyncProgress progress = SyncProgress.start(importId, realmId, SyncType.SINGLE);
+
+        try {
+            String sql = model.get(DataSouceConfiguration.SYNC_ONE_SQL);
+            SynchronizationResult result = importUsers(importId, sessionFactory, realmId, model, progress,
+                    new SyncCounter(), null, sql,
+                    (ps) -> {
+                        try {
+                            ps.setString(1, username);
+                        } catch (SQLException e) {
+                            throw new DbUserProviderException("Error configure sync user " + username
+                                    + " in " + realmId, e);
+                        }
+                    });
+            LOGGER.infov("[{0}] Sync user {1} {2}: ({3})", importId, realmId, username, result);
+
+            progress.finish(result);
+            return result;
+        } catch (RuntimeException e) {
+            progress.fail(e);
+            throw e;
+        } finally {
+            progress.failIfRunning();
+        }
+    }
+
+    /**
+     * Imports a user not found in Keycloak in the transaction of the session, for the lookups of a login. The
+     * transaction is not committed yet.
+     *
+     * @param key the query setting, by username or e-mail
+     * @return the imported user, null when not in the source
+     */
+    static UserModel importOnLookup(KeycloakSession session, RealmModel realm, UserStorageProviderModel model,
+            String key, String value) {
+        String sql = model.get(key);
+
+        if (StringUtil.isBlank(sql)) {
+            return null;
+        }
+        String importId = createImportId();
+        SyncMetrics metrics = SyncMetrics.get(realm.getId(), SyncType.SINGLE);
+        long start = System.nanoTime();
+
+        try (Connection con = getDataSource(model).getConnection();
+                PreparedStatement ps = con.prepareStatement(sql);
+                StatementCache statements = new StatementCache(con);) {
+            ps.setString(1, value);
+
+            HashMap<String, Object> data;
+            try (ResultSet rs = ps.executeQuery();) {
+                if (!rs.next()) {
+                    metrics.record(Phase.USER_SELECT, start);
+                    return null;
+                }
+                ResultSetMetaData md = rs.getMetaData();
+                data = readRow(rs, md, md.getColumnCount());
+            }
+            start = metrics.record(Phase.USER_SELECT, start);
+
+            logDebugData(importId, data);
+
+            List<String> roles = getRoles(importId, model, statements, data, null);
+            start = metrics.record(Phase.ROLE_SELECT, start);
+            List<String> gids = getUserGroupGids(importId, model, statements, data, null);
+            start = metrics.record(Phase.GROUP_USER_SELECT, start);
+
+            LookupCache.Attached attached = new LookupCache().attach(session, realm);
+            List<GroupModel> groups = getGroupModels(session.groups(), realm, attached, gids);
+            start = metrics.record(Phase.GROUP_LOOKUP, start);
+
+            String username = (String) data.get(Column.username.name());
+            Importation importation = new DbUserProvider(session, model, attached).importUser(importId, realm, model,
+                    data, roles, groups);
+            metrics.record(Phase.USER_IMPORT, start);
+
+            SynchronizationResult result = new SynchronizationResult();
+            if (importation == Importation.ADDED) {
+                result.increaseAdded();
+            } else {
+                result.increaseUpdated();
+            }
+            metrics.recordResult(Entity.USER, result);
+            LOGGER.infov("[{0}] Imported user {1} {2} on lookup by {3}", importId, realm.getId(), username, key);
+
+            return session.users().getUserByUsername(realm, username);
+        } catch (SQLException e) {
+            throw new DbUserProviderException("Error on connect to database in " + realm.getId(), e);
+        }
+    }
+
+    /**
+     * Returns null when the cache of lookups not found is disabled.
+     */
+    public static MissCache getMissCache(ComponentModel model) {
+        int ttl = model.get(DataSouceConfiguration.LOOKUP_MISS_TTL, DataSouceConfiguration.DEFAULT_LOOKUP_MISS_TTL);
+
+        if (ttl <= 0) {
+            return null;
+        }
+        return MISS_BY_MODEL_ID.computeIfAbsent(model.getId(), key -> new MissCache(ttl * 1000L));
+    }
+
+    /**
+     * @return the password hash of the user in the source, null when not found
+     */
+    static String readPasswordHash(RealmModel realm, UserStorageProviderModel model, String username) {
+        try (Connection con = getDataSource(model).getConnection();
+                PreparedStatement ps = con.prepareStatement(model.get(DataSouceConfiguration.PASSWORD_SQL));) {
+            ps.setString(1, username);
+
+            try (ResultSet rs = ps.executeQuery();) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        } catch (SQLException e) {
+            throw new DbUserProviderException("Error on connect to database in " + realm.getId(), e);
+        }
+    }
+
+    /**
+     * Returns null when the cache of verified passwords is disabled.
+     */
+    public static VerifiedCredentialCache getVerifiedCache(ComponentModel model) {
+        int ttl = model.get(DataSouceConfiguration.PASSWORD_CACHE_TTL,
+                DataSouceConfiguration.DEFAULT_PASSWORD_CACHE_TTL);
+
+        if (ttl <= 0) {
+            return null;
+        }
+        return VERIFIED_BY_MODEL_ID.computeIfAbsent(model.getId(), key -> new VerifiedCredentialCache(ttl * 1000L));
+    }
+
+    /**
+     * Syncs a list of usernames with one query by chunk of {@link #USERNAMES_CHUNK_SIZE}, or one query by username
+     * when {@link DataSouceConfiguration#SYNC_USERNAMES_SQL} isn't configured.
+     *
+     * @return the outcome of each username, in the requested order
+     */
+    public Map<String, Outcome> syncUsernames(Collection<String> usernames, KeycloakSessionFactory sessionFactory,
+            String realmId, UserStorageProviderModel model) {
+
+        Map<String, Outcome> outcomes = new LinkedHashMap<>();
+        usernames.forEach(username -> outcomes.put(username, Outcome.NOT_FOUND));
+
+        String importId = createImportId();
+
+        LOGGER.infov("[{0}] Sync users {1}: {2} usernames", importId, realmId, outcomes.size());
+        SyncProgress progress = SyncProgress.start(importId, realmId, SyncType.USERNAMES);
+
+        try {
+            SynchronizationResult result = importUsernames(importId, sessionFactory, realmId, model, progress,
+                    outcomes);
+            LOGGER.infov("[{0}] Sync users {1}: {2}", importId, realmId, result);
+
+            progress.finish(result);
+            return outcomes;
+        } catch (RuntimeException e) {
+            progress.fail(e);
+            throw e;
+        } finally {
+            progress.failIfRunning();
+        }
+    }
+
+    /**
+     * @param outcomes the usernames to import, with the outcome of each one when imported
+     */
+    private SynchronizationResult importUsernames(String importId, KeycloakSessionFactory sessionFactory,
+            String realmId, UserStorageProviderModel model, SyncProgress progress, Map<String, Outcome> outcomes) {
+        SynchronizationResult result = new SynchronizationResult();
+
+        String sql = model.get(DataSouceConfiguration.SYNC_USERNAMES_SQL);
+        boolean byList = !StringUtil.isBlank(sql);
+        String oneSql = model.get(DataSouceConfiguration.SYNC_ONE_SQL);
+        int chunkSize = byList ? USERNAMES_CHUNK_SIZE : 1;
+
+        List<String> all = new ArrayList<>(outcomes.keySet());
+        for (int start = 0; start < all.size() && !progress.isCancelled(); start += chunkSize) {
+            List<String> chunk = all.subList(start, Math.min(start + chunkSize, all.size()));
+            SyncCounter counter = new SyncCounter(true);
+
+            result.add(importUsers(importId, sessionFactory, realmId, model, progress, counter, null,
+                    byList ? expandInList(sql, chunk.size()) : oneSql,
+                    (ps) -> {
+                        try {
+                            if (byList) {
+                                bindUsernames(ps, sql, chunk);
+                            } else {
+                                ps.setString(1, chunk.get(0));
+                            }
+                        } catch (SQLException e) {
+                            throw new DbUserProviderException("Error configure sync users " + chunk.size()
+                                    + " in " + realmId, e);
+                        }
+                    }));
+            chunk.forEach(username -> outcomes.put(username, counter.getOutcome(username)));
+        }
+        return result;
+    }
+
+    /**
+     * Expands {@code IN (?)} to one parameter by username.
+     */
+    private String expandInList(String sql, int size) {
+        Matcher matcher = IN_LIST.matcher(sql);
+        if (!matcher.find()) {
+            return sql;
+        }
+        String params = String.join(", ", Collections.nCopies(size, "?"));
+        return sql.substring(0, matcher.start()) + "IN (" + params + ")" + sql.substring(matcher.end());
+    }
+
+    private void bindUsernames(PreparedStatement ps, String sql, List<String> usernames) throws SQLException {
+        if (IN_LIST.matcher(sql).find()) {
+            for (int i = 0; i < usernames.size(); i++) {
+                ps.setString(i + 1, usernames.get(i));
+            }
+            return;
+        }
+        ps.setArray(1, ps.getConnection().createArrayOf("varchar", usernames.toArray()));
     }
 
-    @Override
-    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId,
+    /**
+     * Imports the users of the outbox rows after the last id imported, by pages of
+     * {@link DataSouceConfiguration#OUTBOX_BATCH_SIZE} rows, keeping the last id in the {@link OutboxState} after
+     * each page. The usernames no longer in the source are disabled or removed like in the full sync with
+     * {@link DataSouceConfiguration#SYNC_MISSING_USERS}. Ignored while another poll of the provider runs.
+     */
+    public SynchronizationResult pollOutbox(KeycloakSessionFactory sessionFactory, String realmId,
             UserStorageProviderModel model) {
+        SynchronizationResult result = new SynchronizationResult();
+        String sql = model.get(DataSouceConfiguration.OUTBOX_SQL);
 
-        String importId = createImportId();
-        LOGGER.infov("[{0}] Sync all {1} started", importId, realmId);
-
-        LOGGER.infov("[{0}] Sync all groups {1} started", importId, realmId);
-        SynchronizationResult groupsResult = importGroups(importId, sessionFactory, realmId, model);
-        LOGGER.infov("[{0}] Sync all groups {1} finished: {2}", importId, realmId, groupsResult);
+        if (StringUtil.isBlank(sql)) {
+            return result;
+        }
+        int batchSize = model.get(DataSouceConfiguration.OUTBOX_BATCH_SIZE,
+                DataSouceConfiguration.DEFAULT_OUTBOX_BATCH_SIZE);
+        OutboxState state = OutboxState.claim(sessionFactory, model.getId(),
+                model.get(DataSouceConfiguration.OUTBOX_LAST_ID, 0L), OUTBOX_TASK_TIMEOUT_SECONDS);
 
-        LOGGER.infov("[{0}] Sync all users {1} started", importId, realmId);
-        String sql = model.get(DataSouceConfiguration.SYNC_SQL);
-        SynchronizationResult usersResult = importUsers(importId, sessionFactory, realmId, model, sql, (ps) -> {
-        });
-        LOGGER.infov("[{0}] Sync all users {1} finished: {2}", importId, realmId, usersResult);
-        return usersResult;
-    }
+        if (state == null) {
+            LOGGER.debugv("Outbox {0} polled by another node", realmId);
+            return result;
+        }
+        long firstId = state.getLastId();
 
-    private SynchronizationResult importGroups(String importId, KeycloakSessionFactory sessionFactory, String realmId,
-            UserStorageProviderModel model) {
-        SynchronizationResult result = new SynchronizationResult();
+        String importId = createImportId();
+        SyncProgress progress = SyncProgress.start(importId, realmId, SyncType.OUTBOX);
 
-        AgroalDataSource ds = DbUserProviderFactory.getDataSource(model);
+        try {
+            OutboxPage page;
+            do {
+                page = readOutbox(realmId, model, sql, state.getLastId(), batchSize);
+                if (page.rows == 0) {
+                    break;
+                }
+                LOGGER.infov("[{0}] Outbox {1}: {2} rows after {3}, {4} usernames", importId, realmId, page.rows,
+                        state.getLastId(), page.usernames.size());
 
-        Set<String> allGroupGids = getAllSynchronizedGroupIds(sessionFactory, realmId);
+                result.add(importOutbox(importId, sessionFactory, realmId, model, progress, page.usernames));
+                if (progress.isCancelled()) {
+                    break;
+                }
+                state.advance(page.lastId);
+            } while (page.rows == batchSize);
 
-        String sql = model.get(DataSouceConfiguration.SYNC_GROUP_SQL);
+            state.checkpoint(lastId -> saveProviderState(sessionFactory, realmId, model,
+                    DataSouceConfiguration.OUTBOX_LAST_ID, String.valueOf(lastId)));
 
-        if (StringUtil.isBlank(sql)) {
+            if (state.getLastId() > firstId) {
+                LOGGER.infov("[{0}] Outbox {1} imported until {2}: {3}", importId, realmId, state.getLastId(),
+                        result);
+            }
+            progress.finish(result);
             return result;
+        } catch (RuntimeException e) {
+            progress.fail(e);
+            throw e;
+        } finally {
+            progress.failIfRunning();
+            state.release();
         }
+    }
 
-        try (Connection con = ds.getConnection();
-                PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_SCROLL_INSENSITIVE,
-                        ResultSet.CONCUR_READ_ONLY);
-                ResultSet rs = ps.executeQuery();) {
-
-            ResultSetMetaData md = rs.getMetaData();
-            int columns = md.getColumnCount();
-
-            float total = getUserTotal(importId, rs);
-            int counter = 0;
+    private OutboxPage readOutbox(String realmId, UserStorageProviderModel model, String sql, long lastId,
+            int batchSize) {
+        SyncMetrics metrics = SyncMetrics.get(realmId, SyncType.OUTBOX);
+        long start = System.nanoTime();
+        OutboxPage page = new OutboxPage(lastId);
 
-            while (rs.next()) {
-                counter++;
+        try (Connection con = getDataSource(model).getConnection();
+                PreparedStatement ps = con.prepareStatement(sql);) {
+            ps.setLong(1, lastId);
+            ps.setMaxRows(batchSize);
 
-                HashMap<String, String> data = new HashMap<>(columns);
-                for (int i = 1; i <= columns; ++i) {
-                    data.put(md.getColumnName(i).toLowerCase(), toAttributeValue(rs.getObject(i)));
+            try (ResultSet rs = ps.executeQuery();) {
+                while (rs.next()) {
+                    page.rows++;
+                    page.lastId = Math.max(page.lastId, rs.getLong(OUTBOX_ID_COLUMN));
+                    String username = rs.getString(Column.username.name());
+                    if (username != null) {
+                        page.usernames.add(username);
+                    }
                 }
+            }
+        } catch (SQLException e) {
+            throw new DbUserProviderException("Error on read outbox in " + realmId, e);
+        }
+        metrics.record(Phase.OUTBOX_SELECT, start);
+        return page;
+    }
 
-                logDebugData(importId, data);
+    private SynchronizationResult importOutbox(String importId, KeycloakSessionFactory sessionFactory,
+            String realmId, UserStorageProviderModel model, SyncProgress progress, Set<String> usernames) {
+        Map<String, Outcome> outcomes = new LinkedHashMap<>();
+        usernames.forEach(username -> outcomes.put(username, Outcome.NOT_FOUND));
 
-                // Process each user in it's own transaction to avoid global fail
-                KeycloakModelUtils.runJobInTransaction(sessionFactory, new KeycloakSessionTask() {
+        SynchronizationResult result = importUsernames(importId, sessionFactory, realmId, model, progress,
+                outcomes);
 
-                    @Override
-                    public void run(KeycloakSession session) {
-                        RealmModel currentRealm = session.realms().getRealm(realmId);
-                        session.getContext().setRealm(currentRealm);
+        MissingUsers missingUsers = MissingUsers.of(model.get(DataSouceConfiguration.SYNC_MISSING_USERS));
+        List<String> missing = outcomes.entrySet().stream().filter(e -> e.getValue() == Outcome.NOT_FOUND)
+                .map(Entry::getKey).collect(Collectors.toList());
 
-                        String name = data.get(ColumnGroups.name.name());
-                        String gid = data.get(ColumnGroups.gid.name());
-                        String gidParent = data.get(ColumnGroups.gid_parent.name());
+        if (missingUsers != MissingUsers.KEEP && !missing.isEmpty() && !progress.isCancelled()) {
+            SyncCounter counter = new SyncCounter();
+            changeMissingUsers(importId, sessionFactory, realmId, model, progress, missingUsers, missing, counter);
 
-                        try {
-                            allGroupGids.remove(gid);
+            SynchronizationResult changed = counter.toResult();
+            SyncMetrics.get(realmId, SyncType.OUTBOX).recordResult(Entity.USER, changed);
+            result.add(changed);
+        }
+        return result;
+    }
 
-                            GroupModel gmParent = getGroupModelByGid(session.groups(), currentRealm, gidParent);
+    /**
+     * Saves a value of the provider in its component, like the last sync of Keycloak. A null value is removed.
+     */
+    private void saveProviderState(KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model, String key, String value) {
+        putProviderState(model, key, value);
 
-                            GroupModel gm = getGroupModelByGid(session.groups(), currentRealm, gid);
-                            if (gm == null) {
-                                String uuidGid = getGroupUuid(realmId, data.get(ColumnGroups.gid.name()));
-                                gm = currentRealm.createGroup(uuidGid, name, gmParent);
-                                LOGGER.debugv("[{0}] Created group {1}", importId, name);
-                                result.increaseAdded();
-                            } else {
-                                gm.setName(name);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            ComponentModel component = realm == null ? null : realm.getComponent(model.getId());
 
-                                if (gmParent != null && !gm.getParent().getId().equals(gmParent.getId())) {
-                                    currentRealm.moveGroup(gm, gmParent);
-                                }
-                                result.increaseUpdated();
-                            }
+            // Removed while syncing
+            if (component == null) {
+                return;
+            }
+            putProviderState(component, key, value);
+            realm.updateComponent(component);
+        });
+    }
 
-                            for (Entry<String, String> entry : data.entrySet()) {
-                                if (!ColumnGroups.name.name().equals(entry.getKey())) {
-                                    gm.setSingleAttribute(entry.getKey(), entry.getValue());
-                                }
-                            }
+    private static void putProviderState(ComponentModel model, String key, String value) {
+        if (value == null) {
+            model.getConfig().remove(key);
+        } else {
+            model.getConfig().putSingle(key, value);
+        }
+    }
 
-                        } catch (Throwable e) {
-                            result.increaseFailed();
-                            LOGGER.errorv(e, "[{0}] Sync group error {1}", importId, name);
-                        }
-                    }
+    private void scheduleTasks(KeycloakSessionFactory sessionFactory) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> session.realms()
+                .getRealmsWithProviderTypeStream(UserStorageProvider.class)
+                .forEach(realm -> ((StorageProviderRealmModel) realm).getUserStorageProvidersStream()
+                        .filter(model -> PROVIDER_ID.equals(model.getProviderId()))
+                        .forEach(model -> {
+                            scheduleOutbox(session, realm.getId(), model);
+                            scheduleShards(session, realm.getId(), model);
+                            warmUp(realm.getId(), model);
+                        })));
+    }
 
-                });
+    /**
+     * Schedules the outbox poll of the provider in this node, or cancels it when the outbox isn't configured. The
+     * poll runs in one node of the cluster at a time.
+     */
+    private void scheduleOutbox(KeycloakSession session, String realmId, ComponentModel model) {
+        TimerProvider timer = session.getProvider(TimerProvider.class);
+        if (timer == null) {
+            return;
+        }
+        String taskName = OUTBOX_TASK_PREFIX + model.getId();
+        timer.cancelTask(taskName);
 
-                logPartial(importId, total, counter);
-            }
+        int interval = model.get(DataSouceConfiguration.OUTBOX_POLL_INTERVAL,
+                DataSouceConfiguration.DEFAULT_OUTBOX_POLL_INTERVAL);
 
-            LOGGER.infov("[{0}] Removing groups no longer synced: {1}", importId, allGroupGids.size());
+        if (StringUtil.isBlank(model.get(DataSouceConfiguration.OUTBOX_SQL)) || interval <= 0
+                || !new UserStorageProviderModel(model).isEnabled()) {
+            return;
+        }
+        timer.scheduleTask(new OutboxTask(realmId, model.getId(), taskName), interval * 1000L, taskName);
+        LOGGER.infov("Outbox {0} polled every {1}s", realmId, interval);
+    }
 
-            for (String gid : allGroupGids) {
-                // Process each user in it's own transaction to avoid global fail
-                KeycloakModelUtils.runJobInTransaction(sessionFactory, new KeycloakSessionTask() {
+    /**
+     * Schedules the check of a sharded full sync of the provider in this node, to import its shards too, or
+     * cancels it when the full sync isn't sharded.
+     */
+    private void scheduleShards(KeycloakSession session, String realmId, ComponentModel model) {
+        TimerProvider timer = session.getProvider(TimerProvider.class);
+        if (timer == null) {
+            return;
+        }
+        String taskName = SHARD_TASK_PREFIX + model.getId();
+        timer.cancelTask(taskName);
 
-                    @Override
-                    public void run(KeycloakSession session) {
-                        RealmModel currentRealm = session.realms().getRealm(realmId);
-                        session.getContext().setRealm(currentRealm);
+        if (!isSharded(model) || !new UserStorageProviderModel(model).isEnabled()) {
+            return;
+        }
+        timer.scheduleTask(new ShardTask(realmId, model.getId(), taskName), SHARD_POLL_SECONDS * 1000L, taskName);
+    }
 
-                        GroupModel gm = getGroupModelByGid(session.groups(), currentRealm, gid);
+    /**
+     * Creates the pool of the provider in background when enabled, so the first login or sync doesn't wait for the
+     * connections.
+     */
+    private void warmUp(String realmId, ComponentModel component) {
+        UserStorageProviderModel model = new UserStorageProviderModel(component);
 
-                        // removing associated users before removing groups
-                        // TODO: check if this is needed
-                        // session.users().getGroupMembersStream(currentRealm, gm)
-                        // .forEach(um -> {um.leaveGroup(gm);});
+        if (!model.get(DataSouceConfiguration.POOL_WARM_UP, false) || !model.isEnabled()) {
+            return;
+        }
+        JOBS.execute(() -> warmUpPool(realmId, model));
+    }
 
-                        currentRealm.removeGroup(gm);
-                        result.increaseRemoved();
+    /**
+     * Opens the min size of the pool (at least one connection) and prepares the queries by user in each one. A
+     * failure is only logged, the pool is created again by the first login or sync.
+     */
+    private void warmUpPool(String realmId, UserStorageProviderModel model) {
+        long start = System.nanoTime();
+        List<Connection> connections = new ArrayList<>();
 
-                        LOGGER.debugv("[{0}] Removed group {1}", importId, gm.getName());
+        try {
+            int size = Math.max(1, Math.max(model.get(AgroalPropertiesReader.MIN_SIZE, 0),
+                    model.get(AgroalPropertiesReader.INITIAL_SIZE, 0)));
+            int maxSize = model.get(AgroalPropertiesReader.MAX_SIZE, 0);
+            if (maxSize > 0) {
+                size = Math.min(size, maxSize);
+            }
+            AgroalDataSource ds = getDataSource(model);
+
+            // Borrowed together, so each one is another connection
+            for (int i = 0; i < size; i++) {
+                Connection con = ds.getConnection();
+                connections.add(con);
+
+                try (StatementCache statements = new StatementCache(con);) {
+                    for (String key : WARM_UP_SQL) {
+                        String sql = model.get(key);
+                        if (!StringUtil.isBlank(sql)) {
+                            statements.prepare(sql);
+                        }
                     }
-                });
+                }
+            }
+            LOGGER.infov("Pool {0} warmed up with {1} connections in {2}ms", realmId, size,
+                    (System.nanoTime() - start) / 1000000);
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.warnv(e, "Fail to warm up the pool {0}", realmId);
+        } finally {
+            for (Connection con : connections) {
+                try {
+                    con.close();
+                } catch (SQLException e) {
+                    LOGGER.debugv(e, "Fail to return a connection to the pool {0}", realmId);
+                }
             }
-
-        } catch (SQLException e) {
-            throw new DbUserProviderException("Error on connect to database in " + realmId, e);
         }
-        return result;
     }
 
-    private Set<String> getAllSynchronizedGroupIds(KeycloakSessionFactory sessionFactory, String realmId) {
-        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, (session) -> {
-            RealmModel currentRealm = session.realms().getRealm(realmId);
-            session.getContext().setRealm(currentRealm);
-            return session.groups().getGroupsStream(currentRealm)
-                    .map(gm -> gm.getFirstAttribute(ColumnGroups.gid.name()))
-                    .collect(Collectors.toSet());
-        });
+    private static Map<String, List<String>> getSettings(ComponentModel model) {
+        Map<String, List<String>> settings = new HashMap<>(model.getConfig());
+        settings.keySet().removeAll(STATE_KEYS);
+        return settings;
     }
 
-    private GroupModel getGroupModelByGid(GroupProvider gp, RealmModel realm, String gid) {
-        return gp.getGroupById(realm, getGroupUuid(realm.getId(), gid));
+    private static boolean isSharded(ComponentModel model) {
+        return !StringUtil.isBlank(model.get(DataSouceConfiguration.SYNC_SHARD_SQL))
+                && model.get(DataSouceConfiguration.SYNC_SHARDS, 0) > 1;
     }
 
-    @Override
-    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId,
-            UserStorageProviderModel model) {
+    private static List<String> getShardSettings(ComponentModel model) {
+        return Arrays.asList(model.get(DataSouceConfiguration.SYNC_SHARD_SQL),
+                model.get(DataSouceConfiguration.SYNC_SHARDS),
+                String.valueOf(new UserStorageProviderModel(model).isEnabled()));
+    }
 
-        String importId = createImportId();
-        Timestamp timeStamp = new Timestamp(lastSync.getTime());
+    private static List<String> getOutboxSettings(ComponentModel model) {
+        return Arrays.asList(model.get(DataSouceConfiguration.OUTBOX_SQL),
+                model.get(DataSouceConfiguration.OUTBOX_POLL_INTERVAL),
+                String.valueOf(new UserStorageProviderModel(model).isEnabled()));
+    }
 
-        LOGGER.infov("[{0}] Sync since {1} started {2}", importId, realmId, timeStamp);
+    private static class UserPage {
+        private final String after;
+        private final int size;
+        private final int offset;
+        private String last;
+        private int rows;
+
+        UserPage(String after, int size, int offset) {
+            this.after = after;
+            this.size = size;
+            this.offset = offset;
+        }
 
-        LOGGER.infov("[{0}] Sync since groups {1} started", importId, realmId);
-        SynchronizationResult groupsResult = importGroups(importId, sessionFactory, realmId, model);
-        LOGGER.infov("[{0}] Sync since groups {1} finished: {2}", importId, realmId, groupsResult);
+        /**
+         * Binds the username before the page, null on the first page: twice in a query with two parameters, like
+         * {@code ? IS NULL OR username > ?}, or an empty username in a query with one.
+         */
+        void bind(PreparedStatement ps, String sql) throws SQLException {
+            if (countParameters(sql) != 2) {
+                ps.setString(1, after == null ? "" : after);
+            } else if (after == null) {
+                ps.setNull(1, Types.VARCHAR);
+                ps.setNull(2, Types.VARCHAR);
+            } else {
+                ps.setString(1, after);
+                ps.setString(2, after);
+            }
+        }
+    }
 
-        String sql = model.get(DataSouceConfiguration.SYNC_SINCE_SQL);
+    private static class OutboxPage {
+        private final Set<String> usernames = new LinkedHashSet<>();
+        private long lastId;
+        private int rows;
 
-        SynchronizationResult result = importUsers(importId, sessionFactory, realmId, model, sql, (ps) -> {
-            try {
-                ps.setTimestamp(1, timeStamp);
-            } catch (SQLException e) {
-                throw new DbUserProviderException("Error configure sync since " + timeStamp + " in " + realmId, e);
-            }
-        });
-        LOGGER.infov("[{0}] Sync since {1} finished: {2}", importId, realmId, result);
-        return result;
+        OutboxPage(long lastId) {
+            this.lastId = lastId;
+        }
     }
 
-    @Override
-    public void close() {
-        for (Entry<String, AgroalDataSource> entry : DB_BY_MODEL_ID.entrySet()) {
-            LOGGER.debugv("Close DataSource {0}", entry.getKey());
-            entry.getValue().close();
+    private class OutboxTask implements ScheduledTask {
+        private final String realmId;
+        private final String modelId;
+        private final String taskName;
+
+        OutboxTask(String realmId, String modelId, String taskName) {
+            this.realmId = realmId;
+            this.modelId = modelId;
+            this.taskName = taskName;
+        }
+
+        @Override
+        public void run(KeycloakSession session) {
+            RealmModel realm = session.realms().getRealm(realmId);
+            ComponentModel component = realm == null ? null : realm.getComponent(modelId);
+
+            if (component == null) {
+                return;
+            }
+            // Read each time, with the last id saved by the poll of any node
+            UserStorageProviderModel model = new UserStorageProviderModel(component);
+            KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+            ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+
+            if (cluster == null) {
+                pollOutbox(sessionFactory, realmId, model);
+                return;
+            }
+            cluster.executeIfNotExecuted(taskName, OUTBOX_TASK_TIMEOUT_SECONDS,
+                    () -> pollOutbox(sessionFactory, realmId, model));
+        }
+
+        @Override
+        public String getTaskName() {
+            return taskName;
         }
     }
 
-    public SynchronizationResult syncUsername(String username, KeycloakSessionFactory sessionFactory, String realmId,
-            UserStorageProviderModel model) {
+    private class ShardTask implements ScheduledTask {
+        private final String realmId;
+        private final String modelId;
+        private final String taskName;
 
-        String importId = createImportId();
+        ShardTask(String realmId, String modelId, String taskName) {
+            this.realmId = realmId;
+            this.modelId = modelId;
+            this.taskName = taskName;
+        }
 
-        LOGGER.infov("[{0}] Sync user {1} {2}", importId, realmId, username);
+        @Override
+        public void run(KeycloakSession session) {
+            RealmModel realm = session.realms().getRealm(realmId);
+            ComponentModel component = realm == null ? null : realm.getComponent(modelId);
 
-        String sql = model.get(DataSouceConfiguration.SYNC_ONE_SQL);
-        SynchronizationResult result = importUsers(importId, sessionFactory, realmId, model, sql, (ps) -> {
-            try {
-                ps.setString(1, username);
-            } catch (SQLException e) {
-                throw new DbUserProviderException("Error configure sync user " + username + " in " + realmId, e);
+            if (component == null) {
+                return;
             }
-        });
-        LOGGER.infov("[{0}] Sync user {1} {2}: ({3})", importId, realmId, username, result);
+            UserStorageProviderModel model = new UserStorageProviderModel(component);
+            KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+
+            // The shards take long, the timer thread is shared by Keycloak
+            JOBS.execute(() -> {
+                try {
+                    joinShards(sessionFactory, realmId, model);
+                } catch (RuntimeException e) {
+                    LOGGER.errorv(e, "Shards {0} failed", realmId);
+                }
+            });
+        }
 
-        return result;
+        @Override
+        public String getTaskName() {
+            return taskName;
+        }
     }
 
     public static AgroalDataSource getDataSource(RealmModel realm) {
@@ -309,127 +1757,489 @@ public class DbUserProviderFactory implements UserStorageProviderFactory<DbUserP
                 .orElseThrow(() -> new DbUserProviderException(DbUserProviderFactory.PROVIDER_ID + " not configured"));
     }
 
+    /**
+     * @param rowListener called with each row read, even if its import fails, if not null
+     */
+    private SynchronizationResult importUsers(String importId, KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model, SyncProgress progress, SyncCounter result,
+            Consumer<Map<String, Object>> rowListener, String sql, Consumer<PreparedStatement> psConsumer) {
+        return importUsers(importId, sessionFactory, realmId, model, progress, result, rowListener, sql, psConsumer,
+                null);
+    }
+
+    /**
+     * @param page the query is a page of users after a username, without the bulk queries, if not null
+     */
     private SynchronizationResult importUsers(String importId, KeycloakSessionFactory sessionFactory, String realmId,
-            UserStorageProviderModel model, String sql, Consumer<PreparedStatement> psConsumer) {
+            UserStorageProviderModel model, SyncProgress progress, SyncCounter result,
+            Consumer<Map<String, Object>> rowListener, String sql, Consumer<PreparedStatement> psConsumer,
+            UserPage page) {
 
-        SynchronizationResult result = new SynchronizationResult();
+        SyncType syncType = progress.getSyncType();
+        long runStart = System.nanoTime();
+        SyncMetrics metrics = SyncMetrics.get(realmId, syncType);
+        int counter = 0;
 
         AgroalDataSource ds = DbUserProviderFactory.getDataSource(model);
+        int parallelism = model.get(DataSouceConfiguration.SYNC_PARALLELISM, 1);
+        boolean skipUnchanged = model.get(DataSouceConfiguration.SYNC_SKIP_UNCHANGED, false);
+        LookupCache lookups = new LookupCache();
 
+        // The roles and groups statements are prepared once, then bound by user
         try (Connection con = ds.getConnection();
-                PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_SCROLL_INSENSITIVE,
-                        ResultSet.CONCUR_READ_ONLY);) {
+                StreamingSettings streaming = StreamingSettings.apply(con, model);
+                PreparedStatement ps = StreamingSettings.prepare(con, model, sql);
+                StatementCache statements = new StatementCache(con);) {
 
             psConsumer.accept(ps);
-
-            try (ResultSet rs = ps.executeQuery();) {
+            if (page != null) {
+                page.bind(ps, sql);
+                ps.setMaxRows(page.size);
+            }
+            int offset = page == null ? 0 : page.offset;
+            long start = System.nanoTime();
+
+            // The executor is closed first, waiting the workers before the connection is released
+            try (ResultSet rs = ps.executeQuery();
+                    MergeJoinCursor roleCursor = page != null ? null
+                            : openMergeJoinCursor(syncType, model, con, streaming,
+                                    DataSouceConfiguration.SYNC_ROLE_BULK_SQL, "name");
+                    MergeJoinCursor groupCursor = page != null ? null
+                            : openMergeJoinCursor(syncType, model, con, streaming,
+                                    DataSouceConfiguration.SYNC_GROUP_USER_BULK_SQL, ColumnGroups.gid.name());
+                    ImportExecutor executor = new ImportExecutor(importId, parallelism);) {
 
                 ResultSetMetaData md = rs.getMetaData();
                 int columns = md.getColumnCount();
 
-                float total = getUserTotal(importId, rs);
-                int counter = 0;
+                float total;
+                if (offset == 0) {
+                    String countSql = syncType == SyncType.FULL ? model.get(DataSouceConfiguration.SYNC_COUNT_SQL)
+                            : null;
+                    // The result set of a page isn't all the users
+                    total = page == null ? getTotal(importId, model, con, countSql, rs)
+                            : getCount(importId, con, countSql);
+                    progress.stage("users", total);
+                } else {
+                    // The next pages continue the stage of the first one
+                    total = progress.getTotal();
+                }
+
+                int batchSize = getBatchSize(model);
+                List<UserRow> batch = new ArrayList<>(batchSize);
 
                 while (rs.next()) {
+                    if (progress.isCancelled()) {
+                        break;
+                    }
                     counter++;
 
-                    HashMap<String, Object> data = new HashMap<String, Object>(columns);
-                    for (int i = 1; i <= columns; ++i) {
-                        data.put(md.getColumnName(i).toLowerCase(), rs.getObject(i));
-                    }
+                    HashMap<String, Object> data = readRow(rs, md, columns);
                     String username = (String) data.get(Column.username.toString());
+                    start = metrics.record(Phase.USER_SELECT, start);
+
+                    // Even if it fails, the user is still in the source
+                    if (rowListener != null) {
+                        rowListener.accept(data);
+                    }
+                    if (page != null && username != null) {
+                        page.last = username;
+                    }
 
                     logDebugData(importId, data);
 
-                    // Process each user in it's own transaction to avoid global fail
-                    KeycloakModelUtils.runJobInTransaction(sessionFactory, new KeycloakSessionTask() {
-
-                        @Override
-                        public void run(KeycloakSession session) {
-                            RealmModel currentRealm = session.realms().getRealm(realmId);
-                            session.getContext().setRealm(currentRealm);
-
-                            DbUserProvider provider = create(session, model);
-
-                            try {
-                                List<GroupModel> groups = getUserGroupModels(session, currentRealm, model, con,
-                                        username);
-                                List<String> roles = getRoles(model, con, username);
-                                Importation importation = provider.importUser(importId, currentRealm, model, data,
-                                        roles, groups);
-                                if (importation == Importation.ADDED) {
-                                    result.increaseAdded();
-                                } else {
-                                    result.increaseUpdated();
-                                }
-                            } catch (Throwable e) {
-                                result.increaseFailed();
-                                LOGGER.errorv(e, "[{0}] Sync error {1}", importId, username);
-                            }
+                    // The source database is read only by this thread, the workers only write in Keycloak
+                    if (username == null) {
+                        // Failed like an invalid username of the import, before the merge join of the bulk queries
+                        result.increaseFailed(null);
+                        metrics.recordFailure(Entity.USER,
+                                new DbUserProviderException("User with invalid username: null"));
+                        LOGGER.errorv("[{0}] Sync error, user without username", importId);
+                    } else {
+                        try {
+                            List<String> roles = getRoles(importId, model, statements, data, roleCursor);
+                            start = metrics.record(Phase.ROLE_SELECT, start);
+                            List<String> gids = getUserGroupGids(importId, model, statements, data, groupCursor);
+                            metrics.record(Phase.GROUP_USER_SELECT, start);
+
+                            // The usernames requested explicitly are always compared in Keycloak
+                            batch.add(new UserRow(username, data, roles, gids,
+                                    skipUnchanged || syncType.isExplicit()));
+                        } catch (SQLException e) {
+                            result.increaseFailed(username);
+                            metrics.recordFailure(Entity.USER, e);
+                            LOGGER.errorv(e, "[{0}] Sync error {1}", importId, username);
                         }
-                    });
+                    }
+
+                    if (batch.size() == batchSize) {
+                        List<UserRow> rows = batch;
+                        executor.execute(() -> importUserBatch(importId, sessionFactory, realmId, model, rows,
+                                lookups, result, metrics));
+                        batch = new ArrayList<>(batchSize);
+                    }
+
+                    progress.setCounter(offset + counter);
+                    logPartial(importId, total, offset + counter);
+                    // A full worker queue runs the batch in this thread, it isn't part of the select
+                    start = System.nanoTime();
+                }
 
-                    logPartial(importId, total, counter);
+                if (progress.isCancelled()) {
+                    LOGGER.infov("[{0}] Sync users cancelled after {1} rows", importId, counter);
+                } else {
+                    List<UserRow> rows = batch;
+                    executor.execute(() -> importUserBatch(importId, sessionFactory, realmId, model, rows,
+                            lookups, result, metrics));
                 }
             }
         } catch (SQLException e) {
             throw new DbUserProviderException("Error on connect to database in " + realmId, e);
         }
-        return result;
+        if (page != null) {
+            page.rows = counter;
+        }
+        LOGGER.infov("[{0}] Lookup cache: {1}", importId, lookups);
+        if (result.getSkipped() > 0) {
+            LOGGER.infov("[{0}] Unchanged users skipped: {1}", importId, result.getSkipped());
+        }
+        SynchronizationResult synced = result.toResult();
+        metrics.recordResult(Entity.USER, synced);
+        metrics.recordSkipped(Entity.USER, result.getSkipped());
+        metrics.recordRun(runStart, counter);
+        return synced;
+    }
+
+    /**
+     * Disables or removes the users imported by the provider whose usernames were not read by the full sync. The
+     * Keycloak users are read by pages and the missing ones are changed in batches.
+     */
+    private SynchronizationResult reconcileMissingUsers(String importId, KeycloakSessionFactory sessionFactory,
+            String realmId, UserStorageProviderModel model, SyncProgress progress, MissingUsers missingUsers,
+            UsernameSet seen) {
+        SyncCounter result = new SyncCounter();
+        SyncMetrics metrics = SyncMetrics.get(realmId, progress.getSyncType());
+
+        // An empty or broken users query would remove everybody
+        if (seen.size() == 0) {
+            LOGGER.warnv("[{0}] No user read, missing users check skipped", importId);
+            return result.toResult();
+        }
+        progress.stage("missing users", -1);
+
+        List<String> missing = new ArrayList<>();
+        int first = 0;
+        int read;
+        do {
+            long start = System.nanoTime();
+            int page = first;
+            List<String> usernames = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                RealmModel currentRealm = session.realms().getRealm(realmId);
+                session.getContext().setRealm(currentRealm);
+
+                // Not federated users are null, to count the page
+                return session.users().searchForUserStream(currentRealm, ALL_USERS, page, MISSING_USERS_PAGE_SIZE)
+                        .map(user -> model.getId().equals(user.getFederationLink())
+                                && (missingUsers == MissingUsers.REMOVE || user.isEnabled()) ? user.getUsername()
+                                        : null)
+                        .collect(Collectors.toList());
+            });
+            metrics.record(Phase.USER_MISSING_SELECT, start);
+
+            read = usernames.size();
+            first += read;
+            usernames.stream().filter(username -> username != null && !seen.contains(username))
+                    .forEach(missing::add);
+            progress.setCounter(first);
+        } while (read == MISSING_USERS_PAGE_SIZE && !progress.isCancelled());
+
+        if (progress.isCancelled()) {
+            return result.toResult();
+        }
+        LOGGER.infov("[{0}] Users missing in the source: {1} of {2} ({3})", importId, missing.size(), first,
+                missingUsers);
+        progress.stage("missing users", missing.size());
+
+        changeMissingUsers(importId, sessionFactory, realmId, model, progress, missingUsers, missing, result);
+
+        SynchronizationResult synced = result.toResult();
+        metrics.recordResult(Entity.USER, synced);
+        return synced;
+    }
+
+    /**
+     * Disables or removes the users of the provider in batches, the usernames not imported are ignored.
+     */
+    private void changeMissingUsers(String importId, KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model, SyncProgress progress, MissingUsers missingUsers, List<String> missing,
+            SyncCounter result) {
+        SyncMetrics metrics = SyncMetrics.get(realmId, progress.getSyncType());
+        int batchSize = getBatchSize(model);
+
+        for (int i = 0; i < missing.size() && !progress.isCancelled(); i += batchSize) {
+            List<String> batch = missing.subList(i, Math.min(i + batchSize, missing.size()));
+
+            // Process the batch in one transaction, bisecting it on failure to avoid global fail
+            BatchBisector.run(importId, batch, usernames -> {
+                long start = System.nanoTime();
+                List<String> changed = new ArrayList<>();
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    RealmModel currentRealm = session.realms().getRealm(realmId);
+                    session.getContext().setRealm(currentRealm);
+
+                    for (String username : usernames) {
+                        UserModel user = DbUserProvider.getLocalUser(session, currentRealm, username);
+
+                        if (user == null || !model.getId().equals(user.getFederationLink())
+                                || (missingUsers == MissingUsers.DISABLE && !user.isEnabled())) {
+                            continue;
+                        }
+                        if (missingUsers == MissingUsers.REMOVE) {
+                            session.users().removeUser(currentRealm, user);
+                        } else {
+                            user.setEnabled(false);
+                        }
+                        changed.add(username);
+                        LOGGER.debugv("[{0}] Missing user {1}: {2}", importId, username, missingUsers);
+                        BatchBisector.checkRollbackOnly(session, username);
+                    }
+                });
+                metrics.record(Phase.USER_REMOVE, start);
+
+                for (String username : changed) {
+                    if (missingUsers == MissingUsers.REMOVE) {
+                        result.increaseRemoved();
+                    } else {
+                        result.increaseUpdated(username);
+                    }
+                }
+            }, (username, e) -> {
+                result.increaseFailed(username);
+                metrics.recordFailure(Entity.USER, e);
+                LOGGER.errorv(e, "[{0}] Missing user error {1}", importId, username);
+            });
+            progress.setCounter(i + batch.size());
+        }
+    }
+
+    static HashMap<String, Object> readRow(ResultSet rs, ResultSetMetaData md, int columns) throws SQLException {
+        HashMap<String, Object> data = new HashMap<String, Object>(columns);
+        for (int i = 1; i <= columns; ++i) {
+            data.put(md.getColumnName(i).toLowerCase(), rs.getObject(i));
+        }
+        return data;
+    }
+
+    private void importUserBatch(String importId, KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model, List<UserRow> batch, LookupCache lookups, SyncCounter result,
+            SyncMetrics metrics) {
+
+        // Process the batch in one transaction, bisecting it on failure to avoid global fail
+        BatchBisector.run(importId, batch, rows -> {
+            long[] jobEnd = new long[1];
+            List<Importation> importations = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                    session -> {
+                        RealmModel currentRealm = session.realms().getRealm(realmId);
+                        session.getContext().setRealm(currentRealm);
+
+                        LookupCache.Attached attached = lookups.attach(session, currentRealm);
+                        DbUserProvider provider = new DbUserProvider(session, model, attached);
+
+                        List<Importation> list = new ArrayList<>(rows.size());
+                        long start = System.nanoTime();
+                        for (UserRow row : rows) {
+                            List<GroupModel> groups = getGroupModels(session.groups(), currentRealm, attached,
+                                    row.getGids());
+                            start = metrics.record(Phase.GROUP_LOOKUP, start);
+                            // Read and compared, only an identical user saves the writes
+                            if (row.isCompared() && provider.isImported(currentRealm, model, row.getData(),
+                                    row.getRoles(), groups)) {
+                                list.add(Importation.UNCHANGED);
+                            } else {
+                                list.add(provider.importUser(importId, currentRealm, model, row.getData(),
+                                        row.getRoles(), groups));
+                            }
+                            BatchBisector.checkRollbackOnly(session, row.getUsername());
+                            start = metrics.record(Phase.USER_IMPORT, start);
+                        }
+                        jobEnd[0] = start;
+                        return list;
+                    });
+            metrics.record(Phase.USER_COMMIT, jobEnd[0]);
+
+            for (int i = 0; i < rows.size(); i++) {
+                if (importations.get(i) == Importation.ADDED) {
+                    result.increaseAdded(rows.get(i).getUsername());
+                } else if (importations.get(i) == Importation.UNCHANGED) {
+                    result.increaseSkipped(rows.get(i).getUsername());
+                } else {
+                    result.increaseUpdated(rows.get(i).getUsername());
+                }
+            }
+        }, (row, e) -> {
+            result.increaseFailed(row.getUsername());
+            metrics.recordFailure(Entity.USER, e);
+            LOGGER.errorv(e, "[{0}] Sync error {1}", importId, row.getUsername());
+        });
+    }
+
+    private static List<GroupModel> getGroupModels(GroupProvider groupProvider, RealmModel realm,
+            LookupCache.Attached lookups, List<String> gids) {
+        List<GroupModel> groups = new LinkedList<GroupModel>();
+        for (String gid : gids) {
+            GroupModel gm = lookups.getGroup(gid, () -> getGroupModelByGid(groupProvider, realm, gid));
+            if (gm != null) {
+                groups.add(gm);
+            }
+        }
+        return groups;
     }
 
-    private List<GroupModel> getUserGroupModels(KeycloakSession session, RealmModel realm,
-            UserStorageProviderModel model, Connection con, String username) throws SQLException {
+    private static List<String> getUserGroupGids(String importId, UserStorageProviderModel model,
+            StatementCache statements, Map<String, Object> data, MergeJoinCursor cursor) throws SQLException {
+        String username = (String) data.get(Column.username.name());
+
+        if (data.containsKey(Column.groups.name())) {
+            return toList(data.remove(Column.groups.name()));
+        }
+
         String groupUserSql = model.get(DataSouceConfiguration.SYNC_GROUP_USER_SQL);
 
+        List<String> merged = nextMergeJoin(importId, cursor, username, groupUserSql,
+                DataSouceConfiguration.SYNC_GROUP_USER_BULK_SQL);
+        if (merged != null) {
+            return merged;
+        }
+
         if (StringUtil.isBlank(groupUserSql)) {
             return Collections.emptyList();
         }
 
-        List<GroupModel> groups = new LinkedList<GroupModel>();
+        List<String> gids = new ArrayList<>();
 
-        GroupProvider groupProvider = session.groups();
-        try (PreparedStatement ps = con.prepareStatement(groupUserSql);) {
-            ps.setString(1, username);
+        PreparedStatement ps = statements.prepare(groupUserSql);
+        ps.setString(1, username);
 
-            try (ResultSet rs = ps.executeQuery();) {
-                while (rs.next()) {
-                    GroupModel gm = getGroupModelByGid(groupProvider, realm, rs.getString(ColumnGroups.gid.name()));
-                    if (gm != null) {
-                        groups.add(gm);
-                    }
-                }
+        try (ResultSet rs = ps.executeQuery();) {
+            while (rs.next()) {
+                gids.add(rs.getString(ColumnGroups.gid.name()));
             }
         }
-        return groups;
+        return gids;
     }
 
-    private List<String> getRoles(UserStorageProviderModel model, Connection con, String username) throws SQLException {
+    private static List<String> getRoles(String importId, UserStorageProviderModel model, StatementCache statements,
+            Map<String, Object> data, MergeJoinCursor cursor) throws SQLException {
+        String username = (String) data.get(Column.username.name());
+
+        if (data.containsKey(Column.roles.name())) {
+            return toList(data.remove(Column.roles.name()));
+        }
+
         String roleSql = model.get(DataSouceConfiguration.SYNC_ROLE_SQL);
 
+        List<String> merged = nextMergeJoin(importId, cursor, username, roleSql,
+                DataSouceConfiguration.SYNC_ROLE_BULK_SQL);
+        if (merged != null) {
+            return merged;
+        }
+
         if (StringUtil.isBlank(roleSql)) {
             return Collections.emptyList();
         }
 
         List<String> roles = new ArrayList<>();
 
-        try (PreparedStatement ps = con.prepareStatement(roleSql);) {
-
-            ps.setString(1, username);
+        PreparedStatement ps = statements.prepare(roleSql);
+        ps.setString(1, username);
 
-            try (ResultSet rs = ps.executeQuery();) {
-                while (rs.next()) {
-                    roles.add(rs.getString("name"));
-                }
+        try (ResultSet rs = ps.executeQuery();) {
+            while (rs.next()) {
+                roles.add(rs.getString("name"));
             }
         }
         return roles;
     }
 
-    private String getGroupUuid(String realmId, String gid) {
+    /**
+     * Bulk queries are only used by the full sync, the other ones select few users.
+     */
+    private MergeJoinCursor openMergeJoinCursor(SyncType syncType, UserStorageProviderModel model, Connection con,
+            StreamingSettings streaming, String key, String valueColumn) throws SQLException {
+        String sql = model.get(key);
+
+        if (syncType != SyncType.FULL || StringUtil.isBlank(sql)) {
+            return null;
+        }
+        return new MergeJoinCursor(con, sql, valueColumn, streaming == null ? 0 : streaming.getFetchSize());
+    }
+
+    /**
+     * Returns null when the per user query must be used. Without it the sync is aborted, an empty list would remove
+     * the roles or the groups of the remaining users.
+     */
+    private static List<String> nextMergeJoin(String importId, MergeJoinCursor cursor, String username,
+            String fallbackSql, String key) throws SQLException {
+        if (cursor == null || !cursor.isOrdered()) {
+            return null;
+        }
+        List<String> values = cursor.next(username);
+        if (values == null) {
+            if (StringUtil.isBlank(fallbackSql)) {
+                throw new DbUserProviderException("Sync aborted, " + key
+                        + " not ordered by username like the users and no per user query configured");
+            }
+            LOGGER.warnv("[{0}] Bulk query not ordered by username like the users, querying by user", importId);
+        }
+        return values;
+    }
+
+    private static String getGroupUuid(String realmId, String gid) {
         return String.format("%s_%s", realmId, gid);
     }
 
+    /**
+     * Swaps the pool of the provider for one with the new settings. The syncs running keep their connections of the
+     * old pool, closed when they return.
+     */
+    private void replaceDataSource(String realmId, ComponentModel model) {
+        AgroalDataSource ds = DataSourceProvider.create(model);
+        AgroalDataSource old = DB_BY_MODEL_ID.put(model.getParentId(), ds);
+        LOGGER.infov("DataSource {0} replaced by its new settings", realmId);
+
+        if (old != null) {
+            drainDataSource(realmId, old);
+        }
+        warmUp(realmId, model);
+    }
+
+    /**
+     * Closes a pool no longer used when its connections return, in background.
+     */
+    private void drainDataSource(String realmId, AgroalDataSource ds) {
+        // The idle connections are closed now, the others when they return
+        ds.flush(FlushMode.GRACEFUL);
+
+        JOBS.execute(() -> {
+            long deadline = System.currentTimeMillis() + POOL_DRAIN_TIMEOUT_SECONDS * 1000L;
+            try {
+                int borrowed;
+                while ((borrowed = BorrowedConnections.get(ds)) > 0) {
+                    if (System.currentTimeMillis() > deadline) {
+                        LOGGER.warnv("Close DataSource {0} with {1} connections borrowed", realmId, borrowed);
+                        break;
+                    }
+                    Thread.sleep(POOL_DRAIN_WAIT_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                ds.close();
+                LOGGER.infov("DataSource {0} drained and closed", realmId);
+            }
+        });
+    }
+
     private static AgroalDataSource getDataSource(UserStorageProviderModel model) {
         return DB_BY_MODEL_ID.computeIfAbsent(model.getParentId(), key -> {
             LOGGER.debugv("Creating DataSource {0}", model.getParentId());
@@ -437,10 +2247,38 @@ public class DbUserProviderFactory implements UserStorageProviderFactory<DbUserP
         });
     }
 
-    private String createImportId() {
+    private int getBatchSize(UserStorageProviderModel model) {
+        return Math.max(1, model.get(DataSouceConfiguration.SYNC_BATCH_SIZE, 1));
+    }
+
+    private static String createImportId() {
         return RandomStringUtils.secure().nextAlphanumeric(7);
     }
 
+    /**
+     * In streaming mode the result set can't scroll, so the total comes from the count query, if any.
+     */
+    private int getTotal(String importId, UserStorageProviderModel model, Connection con, String countSql,
+            ResultSet rs) throws SQLException {
+        if (!StreamingSettings.isEnabled(model)) {
+            return getUserTotal(importId, rs);
+        }
+        return getCount(importId, con, countSql);
+    }
+
+    private int getCount(String importId, Connection con, String countSql) throws SQLException {
+        if (StringUtil.isBlank(countSql)) {
+            LOGGER.debugv("[{0}] Sync total unknow (streaming or pages without count query)", importId);
+            return -1;
+        }
+        try (PreparedStatement ps = con.prepareStatement(countSql);
+                ResultSet countRs = ps.executeQuery();) {
+            int rowCount = countRs.next() ? countRs.getInt(1) : 0;
+            LOGGER.debugv("[{0}] Sync total {1}", importId, rowCount);
+            return rowCount;
+        }
+    }
+
     private int getUserTotal(String importId, ResultSet rs) throws SQLException {
         try {
             int rowCount = rs.last() ? rs.getRow() : 0;
@@ -453,7 +2291,7 @@ public class DbUserProviderFactory implements UserStorageProviderFactory<DbUserP
         }
     }
 
-    private void logDebugData(String importId, HashMap<String, ? extends Object> data) {
+    private static void logDebugData(String importId, HashMap<String, ? extends Object> data) {
         if (LOGGER.isDebugEnabled()) {
             Map<String, Object> clone = (Map<String, Object>) data.clone();
             clone.computeIfPresent(Column.temp_password.name(), (String x, Object y) -> "***");
@@ -0,0 +1,95 @@
+package com.github.piantino.keycloak.credential;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+import com.github.piantino.keycloak.exception.DbUserProviderException;
+
+/**
+ * A password hash of the source database, read as a Keycloak password credential so it's verified by the
+ * {@link org.keycloak.credential.hash.PasswordHashProvider} of its algorithm.
+ *
+ * Formats:
+ * <ul>
+ * <li>PBKDF2 of passlib, <code>$pbkdf2-sha256$29000$salt$hash</code> (also <code>$pbkdf2$</code> and
+ * <code>$pbkdf2-sha512$</code>)</li>
+ * <li>PBKDF2 of Django, <code>pbkdf2_sha256$260000$salt$hash</code></li>
+ * <li>Argon2, <code>$argon2id$v=19$m=65536,t=3,p=4$salt$hash</code></li>
+ * <li>Bcrypt, <code>$2a$10$...</code>, only with a <code>bcrypt</code> hash provider deployed in Keycloak</li>
+ * </ul>
+ */
+public class SourcePasswordHash {
+
+    private SourcePasswordHash() {
+    }
+
+    /**
+     * The algorithm of the credential is the id of its hash provider.
+     */
+    public static PasswordCredentialModel parse(String hash) {
+        try {
+            if (hash.startsWith("$2a$") || hash.startsWith("$2b$") || hash.startsWith("$2y$")) {
+                // The whole string is the value, like in the bcrypt providers
+                int cost = Integer.parseInt(hash.substring(4, 6));
+                return PasswordCredentialModel.createFromValues("bcrypt", null, cost, hash);
+            }
+            String[] parts = hash.split("\\$");
+
+            if (hash.startsWith("$pbkdf2") && parts.length == 5) {
+                return PasswordCredentialModel.createFromValues(parts[1], decodeAdapted(parts[3]),
+                        Integer.parseInt(parts[2]), encode(decodeAdapted(parts[4])));
+            }
+            if (hash.startsWith("pbkdf2_") && parts.length == 4) {
+                String algorithm = parts[0].replace('_', '-');
+                return PasswordCredentialModel.createFromValues(algorithm, parts[2].getBytes(StandardCharsets.UTF_8),
+                        Integer.parseInt(parts[1]), parts[3]);
+            }
+            if (hash.startsWith("$argon2") && (parts.length == 5 || parts.length == 6)) {
+                return parseArgon2(parts);
+            }
+        } catch (RuntimeException e) {
+            throw new DbUserProviderException("Invalid password hash", e);
+        }
+        throw new DbUserProviderException("Unknown password hash format");
+    }
+
+    private static PasswordCredentialModel parseArgon2(String[] parts) {
+        // The version is optional, 16 (1.0) when missing
+        Map<String, String> params = new HashMap<>();
+        params.put("v", "16");
+        for (int i = 2; i < parts.length - 2; i++) {
+            for (String param : parts[i].split(",")) {
+                String[] pair = param.split("=", 2);
+                params.put(pair[0], pair[1]);
+            }
+        }
+        byte[] salt = decodeAdapted(parts[parts.length - 2]);
+        byte[] value = decodeAdapted(parts[parts.length - 1]);
+
+        Map<String, List<String>> additional = new HashMap<>();
+        additional.put("type", List.of(parts[1].substring("argon2".length())));
+        additional.put("version", List.of("16".equals(params.get("v")) ? "1.0" : "1.3"));
+        additional.put("hashLength", List.of(String.valueOf(value.length)));
+        additional.put("memory", List.of(params.get("m")));
+        additional.put("parallelism", List.of(params.get("p")));
+
+        return PasswordCredentialModel.createFromValues("argon2", salt, Integer.parseInt(params.get("t")), additional,
+                encode(value));
+    }
+
+    /**
+     * Base64 without padding, with "." instead of "+" in passlib.
+     */
+    private static byte[] decodeAdapted(String value) {
+        return Base64.getDecoder().decode(value.replace('.', '+'));
+    }
+
+    private static String encode(byte[] value) {
+        return Base64.getEncoder().encodeToString(value);
+    }
+}
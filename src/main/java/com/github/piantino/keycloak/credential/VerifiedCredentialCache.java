@@ -0,0 +1,70 @@
+package com.github.piantino.keycloak.credential;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.function.LongSupplier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.github.piantino.keycloak.exception.DbUserProviderException;
+import com.github.piantino.keycloak.sync.ExpiringKeys;
+
+/**
+ * Passwords verified against the source hash, so a login in the TTL skips the key derivation.
+ *
+ * Only an HMAC of (realm, username, source hash, password) is kept, with a random key of the node: the passwords
+ * can't be read or tested offline from the cache. A changed hash in the source is a new entry. Up to
+ * {@link #MAX_SIZE} entries, see {@link ExpiringKeys}.
+ */
+public class VerifiedCredentialCache {
+
+    public static final int MAX_SIZE = 10000;
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final ExpiringKeys digests;
+    private final SecretKeySpec key;
+
+    public VerifiedCredentialCache(long ttlMillis) {
+        this(ttlMillis, System::currentTimeMillis);
+    }
+
+    VerifiedCredentialCache(long ttlMillis, LongSupplier clock) {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, HMAC_ALGORITHM);
+        this.digests = new ExpiringKeys(ttlMillis, MAX_SIZE, clock);
+    }
+
+    public boolean contains(String realmId, String username, String hash, String password) {
+        return digests.contains(digest(realmId, username, hash, password));
+    }
+
+    public void put(String realmId, String username, String hash, String password) {
+        digests.put(digest(realmId, username, hash, password));
+    }
+
+    public int size() {
+        return digests.size();
+    }
+
+    private String digest(String... values) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            for (String value : values) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                // The length avoids the same digest for ("ab", "c") and ("a", "bc")
+                mac.update(new byte[] { (byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16),
+                        (byte) (bytes.length >>> 8), (byte) bytes.length });
+                mac.update(bytes);
+            }
+            return Base64.getEncoder().encodeToString(mac.doFinal());
+        } catch (GeneralSecurityException e) {
+            throw new DbUserProviderException("Error on digest of credential", e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.piantino.keycloak.datasource;
+
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.agroal.api.AgroalDataSource;
+import io.agroal.api.AgroalPoolInterceptor;
+
+/**
+ * Counts the connections borrowed from a pool, even without its metrics, so a replaced pool is closed only when
+ * its last connection returns: the close of Agroal destroys the borrowed connections too.
+ */
+public class BorrowedConnections implements AgroalPoolInterceptor {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public void onConnectionAcquire(Connection connection) {
+        count.incrementAndGet();
+    }
+
+    @Override
+    public void onConnectionReturn(Connection connection) {
+        count.decrementAndGet();
+    }
+
+    public int get() {
+        return count.get();
+    }
+
+    /**
+     * The connections borrowed from the pool, 0 when it isn't counted. The interceptors of the pool must have been
+     * set, like the ones of {@link DataSourceProvider}: Agroal fails to read an unset list.
+     */
+    public static int get(AgroalDataSource ds) {
+        List<AgroalPoolInterceptor> interceptors = ds.getPoolInterceptors();
+        if (interceptors == null || interceptors.isEmpty()) {
+            return 0;
+        }
+        return interceptors.stream().filter(BorrowedConnections.class::isInstance)
+                .mapToInt(interceptor -> ((BorrowedConnections) interceptor).get()).sum();
+    }
+}
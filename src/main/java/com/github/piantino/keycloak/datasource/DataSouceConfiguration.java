@@ -9,13 +9,62 @@ import io.agroal.api.configuration.supplier.AgroalPropertiesReader;
 
 public class DataSouceConfiguration {
 
+    public static final String POOL_WARM_UP = "poolWarmUp";
+
     public static final String SYNC_SQL = "syncSql";
+    public static final String SYNC_COUNT_SQL = "syncCountSql";
+    public static final String SYNC_PAGE_SQL = "syncPageSql";
+    public static final String SYNC_SHARD_SQL = "syncShardSql";
     public static final String SYNC_SINCE_SQL = "syncSinceSql";
     public static final String SYNC_ONE_SQL = "syncOneSql";
+    public static final String SYNC_ONE_EMAIL_SQL = "syncOneEmailSql";
+    public static final String SYNC_USERNAMES_SQL = "syncUsernamesSql";
     public static final String SYNC_ROLE_SQL = "syncRoleSql";
+    public static final String SYNC_ROLE_BULK_SQL = "syncRoleBulkSql";
     
     public static final String SYNC_GROUP_SQL = "syncGroupSql";
+    public static final String SYNC_GROUP_SINCE_SQL = "syncGroupSinceSql";
+    public static final String SYNC_GROUP_DELETED_SQL = "syncGroupDeletedSql";
     public static final String SYNC_GROUP_USER_SQL = "syncGroupUserSql";
+    public static final String SYNC_GROUP_USER_BULK_SQL = "syncGroupUserBulkSql";
+
+    public static final String SYNC_PARALLELISM = "syncParallelism";
+    public static final String SYNC_BATCH_SIZE = "syncBatchSize";
+    public static final String SYNC_STREAMING = "syncStreaming";
+    public static final String SYNC_FETCH_SIZE = "syncFetchSize";
+    public static final String SYNC_SKIP_UNCHANGED = "syncSkipUnchanged";
+    public static final String SYNC_MISSING_USERS = "syncMissingUsers";
+    public static final String SYNC_PAGE_SIZE = "syncPageSize";
+    public static final int DEFAULT_SYNC_PAGE_SIZE = 10000;
+    public static final String SYNC_SHARDS = "syncShards";
+    public static final String SYNC_SHARD_LEASE = "syncShardLease";
+    public static final int DEFAULT_SYNC_SHARD_LEASE = 600;
+
+    public static final String LOOKUP_IMPORT = "lookupImport";
+    public static final String LOOKUP_MISS_TTL = "lookupMissTtl";
+    public static final int DEFAULT_LOOKUP_MISS_TTL = 60;
+
+    public static final String PASSWORD_SQL = "passwordSql";
+    public static final String PASSWORD_CACHE_TTL = "passwordCacheTtl";
+    public static final int DEFAULT_PASSWORD_CACHE_TTL = 300;
+
+    public static final String OUTBOX_SQL = "outboxSql";
+    public static final String OUTBOX_POLL_INTERVAL = "outboxPollInterval";
+    public static final int DEFAULT_OUTBOX_POLL_INTERVAL = 10;
+    public static final String OUTBOX_BATCH_SIZE = "outboxBatchSize";
+    public static final int DEFAULT_OUTBOX_BATCH_SIZE = 1000;
+    /**
+     * The last outbox id imported, saved by the provider each few minutes (not a setting).
+     */
+    public static final String OUTBOX_LAST_ID = "outboxLastId";
+    /**
+     * The greatest updated (and username) read from the source by a sync, saved by the provider (not a setting).
+     */
+    public static final String SYNC_SINCE_WATERMARK = "syncSinceWatermark";
+    /**
+     * The last username of the pages imported by a full sync not finished, saved by the provider (not a setting).
+     */
+    public static final String SYNC_CHECKPOINT = "syncCheckpoint";
 
     public static List<ProviderConfigProperty> create() {
         return ProviderConfigurationBuilder.create()
@@ -63,10 +112,134 @@ public class DataSouceConfiguration {
                 .type(ProviderConfigProperty.BOOLEAN_TYPE)
                 .defaultValue(Boolean.FALSE).add()
                 .property()
+                .name(AgroalPropertiesReader.CONNECTION_VALIDATOR)
+                .label(AgroalPropertiesReader.CONNECTION_VALIDATOR)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options("default", "empty")
+                .helpText("Validation of the idle and borrowed connections, 'default' by Connection.isValid")
+                .defaultValue("default").add()
+                .property()
+                .name(AgroalPropertiesReader.VALIDATION_TIMEOUT_S)
+                .label(AgroalPropertiesReader.VALIDATION_TIMEOUT_S)
+                .helpText("Seconds between the background validations of the idle connections, 0 to not validate")
+                .type(ProviderConfigProperty.STRING_TYPE).add()
+                .property()
+                .name(AgroalPropertiesReader.IDLE_VALIDATION_S)
+                .label(AgroalPropertiesReader.IDLE_VALIDATION_S)
+                .helpText("Seconds a connection is idle before it's validated again on borrow")
+                .type(ProviderConfigProperty.STRING_TYPE).add()
+                .property()
+                .name(AgroalPropertiesReader.VALIDATE_ON_BORROW)
+                .label(AgroalPropertiesReader.VALIDATE_ON_BORROW)
+                .helpText("Validate every connection on borrow")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue(Boolean.FALSE).add()
+                .property()
+                .name(AgroalPropertiesReader.REAP_TIMEOUT_S)
+                .label(AgroalPropertiesReader.REAP_TIMEOUT_S)
+                .helpText("Seconds a connection is idle before it's closed, down to " + AgroalPropertiesReader.MIN_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE).add()
+                .property()
+                .name(AgroalPropertiesReader.LEAK_TIMEOUT_S)
+                .label(AgroalPropertiesReader.LEAK_TIMEOUT_S)
+                .helpText("Seconds a connection is borrowed before it's logged as a leak, 0 to not detect")
+                .type(ProviderConfigProperty.STRING_TYPE).add()
+                .property()
+                .name(AgroalPropertiesReader.ENHANCED_LEAK_REPORT)
+                .label(AgroalPropertiesReader.ENHANCED_LEAK_REPORT)
+                .helpText("Log the stack trace of the thread that borrowed a leaked connection")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue(Boolean.FALSE).add()
+                .property()
+                .name(AgroalPropertiesReader.FLUSH_ON_CLOSE)
+                .label(AgroalPropertiesReader.FLUSH_ON_CLOSE)
+                .helpText("Close the connection when returned to the pool")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue(Boolean.FALSE).add()
+                .property()
+                .name(AgroalPropertiesReader.EXCEPTION_SORTER)
+                .label(AgroalPropertiesReader.EXCEPTION_SORTER)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options("default", "fatal", "PostgreSQL", "MySQL", "Oracle", "MSSQL", "DB2", "Sybase")
+                .helpText("Errors that close the connection instead of returning it to the pool")
+                .defaultValue("default").add()
+                .property()
+                .name(AgroalPropertiesReader.LOGIN_TIMEOUT)
+                .label(AgroalPropertiesReader.LOGIN_TIMEOUT)
+                .helpText("Seconds to open a connection")
+                .type(ProviderConfigProperty.STRING_TYPE).add()
+                .property()
+                .name(AgroalPropertiesReader.INITIAL_SQL)
+                .label(AgroalPropertiesReader.INITIAL_SQL)
+                .helpText("Query run on each new connection, like a schema or time zone")
+                .type(ProviderConfigProperty.STRING_TYPE).add()
+                .property()
+                .name(AgroalPropertiesReader.TRANSACTION_ISOLATION)
+                .label(AgroalPropertiesReader.TRANSACTION_ISOLATION)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options("UNDEFINED", "READ_UNCOMMITTED", "READ_COMMITTED", "REPEATABLE_READ", "SERIALIZABLE")
+                .helpText("Isolation level of the connections, UNDEFINED for the default of the database")
+                .defaultValue("UNDEFINED").add()
+                .property()
+                .name(AgroalPropertiesReader.JDBC_PROPERTIES)
+                .label(AgroalPropertiesReader.JDBC_PROPERTIES)
+                .helpText("Driver properties separated by ';', like the prepared statement cache: "
+                        + "'prepareThreshold=1;preparedStatementCacheQueries=256' in PostgreSQL, "
+                        + "'useServerPrepStmts=true;cachePrepStmts=true;prepStmtCacheSize=256' in MySQL")
+                .type(ProviderConfigProperty.STRING_TYPE).add()
+                .property()
+                .name(POOL_WARM_UP)
+                .label(POOL_WARM_UP)
+                .helpText("Create the pool when Keycloak starts, opening " + AgroalPropertiesReader.MIN_SIZE
+                        + " connections (at least one) and preparing the login and sync statements")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue(Boolean.FALSE).add()
+                .property()
                 .name(SYNC_SQL)
                 .label(SYNC_SQL)
                 .type(ProviderConfigProperty.STRING_TYPE).add()
                 .property()
+                .name(SYNC_COUNT_SQL)
+                .label(SYNC_COUNT_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Count of the users of " + SYNC_SQL + ", used to log the progress in streaming mode")
+                .add()
+                .property()
+                .name(SYNC_PAGE_SQL)
+                .label(SYNC_PAGE_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Users after a username, ordered by username. The full sync reads it by pages of "
+                        + SYNC_PAGE_SIZE + " instead of " + SYNC_SQL + " and resumes from the last page imported. "
+                        + "With two parameters, like \"? IS NULL OR username > ?\", the first page binds null")
+                .add()
+                .property()
+                .name(SYNC_PAGE_SIZE)
+                .label(SYNC_PAGE_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Users read by page of " + SYNC_PAGE_SQL)
+                .defaultValue(String.valueOf(DEFAULT_SYNC_PAGE_SIZE)).add()
+                .property()
+                .name(SYNC_SHARD_SQL)
+                .label(SYNC_SHARD_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Users of a shard, with the number of shards and the shard as parameters. The full sync "
+                        + "reads it instead of " + SYNC_SQL + " with " + SYNC_SHARDS + " shards, imported by all "
+                        + "the nodes of the cluster")
+                .add()
+                .property()
+                .name(SYNC_SHARDS)
+                .label(SYNC_SHARDS)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Shards of " + SYNC_SHARD_SQL + ", 0 to not shard the full sync")
+                .defaultValue("0").add()
+                .property()
+                .name(SYNC_SHARD_LEASE)
+                .label(SYNC_SHARD_LEASE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Seconds of the lease of a shard, renewed while its node imports it. When the node dies, "
+                        + "another node imports the shard again after it")
+                .defaultValue(String.valueOf(DEFAULT_SYNC_SHARD_LEASE)).add()
+                .property()
                 .name(SYNC_SINCE_SQL)
                 .label(SYNC_SINCE_SQL)
                 .type(ProviderConfigProperty.STRING_TYPE).add()
@@ -75,17 +248,143 @@ public class DataSouceConfiguration {
                 .label(SYNC_ONE_SQL)
                 .type(ProviderConfigProperty.STRING_TYPE).add()
                 .property()
+                .name(SYNC_ONE_EMAIL_SQL)
+                .label(SYNC_ONE_EMAIL_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("User by e-mail, imported when not found in Keycloak by a login with the e-mail")
+                .add()
+                .property()
+                .name(SYNC_USERNAMES_SQL)
+                .label(SYNC_USERNAMES_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Users of a list of usernames, with \"IN (?)\" (expanded to one parameter by username) "
+                        + "or an array parameter like \"= ANY(?)\" (PostgreSQL and H2). Without it each username "
+                        + "uses " + SYNC_ONE_SQL)
+                .add()
+                .property()
                 .name(SYNC_ROLE_SQL)
                 .label(SYNC_ROLE_SQL)
                 .type(ProviderConfigProperty.STRING_TYPE).add()
                 .property()
+                .name(SYNC_ROLE_BULK_SQL)
+                .label(SYNC_ROLE_BULK_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Roles of all users ordered by username, used by the full sync instead of " + SYNC_ROLE_SQL
+                        + ", which is required as the fallback of an unordered query")
+                .add()
+                .property()
                 .name(SYNC_GROUP_SQL)
                 .label(SYNC_GROUP_SQL)
                 .type(ProviderConfigProperty.STRING_TYPE).add()
                 .property()
+                .name(SYNC_GROUP_SINCE_SQL)
+                .label(SYNC_GROUP_SINCE_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Groups changed since the last sync (timestamp parameter), used by the sync since "
+                        + "instead of " + SYNC_GROUP_SQL)
+                .add()
+                .property()
+                .name(SYNC_GROUP_DELETED_SQL)
+                .label(SYNC_GROUP_DELETED_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Gids of the groups deleted since the last sync (timestamp parameter), removed by the "
+                        + "sync since with " + SYNC_GROUP_SINCE_SQL)
+                .add()
+                .property()
                 .name(SYNC_GROUP_USER_SQL)
                 .label(SYNC_GROUP_USER_SQL)
                 .type(ProviderConfigProperty.STRING_TYPE).add()
+                .property()
+                .name(SYNC_GROUP_USER_BULK_SQL)
+                .label(SYNC_GROUP_USER_BULK_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Groups of all users ordered by username, used by the full sync instead of "
+                        + SYNC_GROUP_USER_SQL + ", which is required as the fallback of an unordered query")
+                .add()
+                .property()
+                .name(SYNC_PARALLELISM)
+                .label(SYNC_PARALLELISM)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Number of workers importing users, each one with its own transactions")
+                .defaultValue("1").add()
+                .property()
+                .name(SYNC_BATCH_SIZE)
+                .label(SYNC_BATCH_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Number of users or groups imported in one transaction")
+                .defaultValue("1").add()
+                .property()
+                .name(SYNC_STREAMING)
+                .label(SYNC_STREAMING)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .helpText("Read the users with a forward-only cursor in a read-only transaction, "
+                        + "instead of loading all rows in memory")
+                .defaultValue(Boolean.FALSE).add()
+                .property()
+                .name(SYNC_FETCH_SIZE)
+                .label(SYNC_FETCH_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Rows fetched by round-trip in streaming mode")
+                .defaultValue(String.valueOf(StreamingSettings.DEFAULT_FETCH_SIZE)).add()
+                .property()
+                .name(SYNC_SKIP_UNCHANGED)
+                .label(SYNC_SKIP_UNCHANGED)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .helpText("Compare each user read with the one in Keycloak (fields, attributes, roles and groups) "
+                        + "and skip the writes of the identical ones")
+                .defaultValue(Boolean.FALSE).add()
+                .property()
+                .name(SYNC_MISSING_USERS)
+                .label(SYNC_MISSING_USERS)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options("keep", "disable", "remove")
+                .helpText("What the full sync does with the imported users no longer in the users query")
+                .defaultValue("keep").add()
+                .property()
+                .name(LOOKUP_IMPORT)
+                .label(LOOKUP_IMPORT)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .helpText("Import a user not found in Keycloak (like in a login) from the source, by "
+                        + SYNC_ONE_SQL + " or " + SYNC_ONE_EMAIL_SQL + ", in the transaction of the login")
+                .defaultValue(Boolean.FALSE).add()
+                .property()
+                .name(LOOKUP_MISS_TTL)
+                .label(LOOKUP_MISS_TTL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Seconds a username or e-mail not found in the source isn't queried again, 0 to always query")
+                .defaultValue(String.valueOf(DEFAULT_LOOKUP_MISS_TTL)).add()
+                .property()
+                .name(PASSWORD_SQL)
+                .label(PASSWORD_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Password hash of a username (PBKDF2, Argon2 or bcrypt), checked on login before the "
+                        + "Keycloak password")
+                .add()
+                .property()
+                .name(PASSWORD_CACHE_TTL)
+                .label(PASSWORD_CACHE_TTL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Seconds a password verified against the source hash isn't hashed again, 0 to always hash")
+                .defaultValue(String.valueOf(DEFAULT_PASSWORD_CACHE_TTL)).add()
+                .property()
+                .name(OUTBOX_SQL)
+                .label(OUTBOX_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Change log rows after an id (id and username columns, ordered by id), polled to import "
+                        + "the changed users")
+                .add()
+                .property()
+                .name(OUTBOX_POLL_INTERVAL)
+                .label(OUTBOX_POLL_INTERVAL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Seconds between the polls of " + OUTBOX_SQL + ", 0 to not poll")
+                .defaultValue(String.valueOf(DEFAULT_OUTBOX_POLL_INTERVAL)).add()
+                .property()
+                .name(OUTBOX_BATCH_SIZE)
+                .label(OUTBOX_BATCH_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Change log rows read by query")
+                .defaultValue(String.valueOf(DEFAULT_OUTBOX_BATCH_SIZE)).add()
                 .build();
     }
 
@@ -2,18 +2,34 @@ package com.github.piantino.keycloak.datasource;
 
 
 import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.ACQUISITION_TIMEOUT_S;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.CONNECTION_VALIDATOR;
 import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.CREDENTIAL;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.ENHANCED_LEAK_REPORT;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.EXCEPTION_SORTER;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.FLUSH_ON_CLOSE;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.IDLE_VALIDATION_S;
 import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.INITIAL_SIZE;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.INITIAL_SQL;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.JDBC_PROPERTIES;
 import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.JDBC_URL;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.LEAK_TIMEOUT_S;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.LOGIN_TIMEOUT;
 import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.MAX_LIFETIME_S;
 import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.MAX_SIZE;
 import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.METRICS_ENABLED;
 import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.MIN_SIZE;
 import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.PRINCIPAL;
 import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.PROVIDER_CLASS_NAME;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.REAP_TIMEOUT_S;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.TRANSACTION_ISOLATION;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.VALIDATE_ON_BORROW;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.VALIDATION_TIMEOUT_S;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.jboss.logging.Logger;
 import org.keycloak.component.ComponentModel;
@@ -25,6 +41,17 @@ public class DataSourceProvider {
 
     private static final Logger LOGGER = Logger.getLogger(DataSourceProvider.class);
 
+    /**
+     * Passed only when set, the defaults are the ones of Agroal.
+     */
+    private static final List<String> TUNING = List.of(VALIDATION_TIMEOUT_S, IDLE_VALIDATION_S, VALIDATE_ON_BORROW,
+            REAP_TIMEOUT_S, LEAK_TIMEOUT_S, ENHANCED_LEAK_REPORT, FLUSH_ON_CLOSE, EXCEPTION_SORTER, INITIAL_SQL,
+            TRANSACTION_ISOLATION, JDBC_PROPERTIES);
+
+    private static final List<String> SETTINGS = Stream.concat(Stream.of(PROVIDER_CLASS_NAME, JDBC_URL, PRINCIPAL,
+            CREDENTIAL, MAX_SIZE, MIN_SIZE, INITIAL_SIZE, MAX_LIFETIME_S, ACQUISITION_TIMEOUT_S, METRICS_ENABLED,
+            CONNECTION_VALIDATOR, LOGIN_TIMEOUT), TUNING.stream()).collect(Collectors.toUnmodifiableList());
+
     public static AgroalDataSource create(ComponentModel model) {
         Map<String, String> props = new HashMap<>();
 
@@ -40,12 +67,37 @@ public class DataSourceProvider {
         props.put(ACQUISITION_TIMEOUT_S, model.get(ACQUISITION_TIMEOUT_S));
         props.put(METRICS_ENABLED, model.get(METRICS_ENABLED));
 
+        // The validator of Agroal is empty, a validation would never fail
+        props.put(CONNECTION_VALIDATOR, model.get(CONNECTION_VALIDATOR, "default"));
+
+        // Agroal has no statement cache, the driver caches the prepared statements (jdbcProperties)
+        for (String key : TUNING) {
+            String value = model.get(key);
+            if (value != null && !value.isBlank()) {
+                props.put(key, value);
+            }
+        }
+        // A duration of ISO-8601 in Agroal, seconds like the other timeouts
+        String loginTimeout = model.get(LOGIN_TIMEOUT);
+        if (loginTimeout != null && !loginTimeout.isBlank()) {
+            props.put(LOGIN_TIMEOUT, "PT" + loginTimeout.trim() + "S");
+        }
+
         try {
-            return AgroalDataSource.from(new AgroalPropertiesReader().readProperties(props));       
+            AgroalDataSource ds = AgroalDataSource.from(new AgroalPropertiesReader().readProperties(props));
+            ds.setPoolInterceptors(List.of(new BorrowedConnections()));
+            return ds;
         } catch (Throwable e) {
             LOGGER.error("Fail to create Datasource in " + model.getParentId(), e);
             throw new RuntimeException("Fail to create Datasource in " + model.getParentId(), e);
         }
     }
 
+    /**
+     * The settings of the pool, a change needs another pool.
+     */
+    public static List<String> getSettings(ComponentModel model) {
+        return SETTINGS.stream().map(model::get).collect(Collectors.toList());
+    }
+
 }
@@ -0,0 +1,53 @@
+package com.github.piantino.keycloak.datasource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The statements of a connection prepared once by query and bound again by row, so the driver can reuse the
+ * statement prepared in the server (PostgreSQL after <code>prepareThreshold</code> executions, MySQL with
+ * <code>useServerPrepStmts</code>).
+ *
+ * Used by one thread, the statements are closed on close, before the connection returns to the pool.
+ */
+public class StatementCache implements AutoCloseable {
+
+    private final Connection con;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    public StatementCache(Connection con) {
+        this.con = con;
+    }
+
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            ps = con.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        return ps;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        SQLException error = null;
+        for (PreparedStatement ps : statements.values()) {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        statements.clear();
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.piantino.keycloak.datasource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.keycloak.component.ComponentModel;
+
+/**
+ * Configures a connection to stream a result set instead of loading it in memory: read-only, autocommit off
+ * (required by the PostgreSQL driver to use a cursor) and forward-only statements with a fetch size.
+ * 
+ * The connection settings are restored on close, before the connection returns to the pool.
+ */
+public class StreamingSettings implements AutoCloseable {
+
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    private final Connection con;
+    private final int fetchSize;
+    private final boolean autoCommit;
+    private final boolean readOnly;
+
+    private StreamingSettings(Connection con, int fetchSize) throws SQLException {
+        this.con = con;
+        this.fetchSize = fetchSize;
+        this.autoCommit = con.getAutoCommit();
+        this.readOnly = con.isReadOnly();
+
+        con.setAutoCommit(false);
+        con.setReadOnly(true);
+    }
+
+    /**
+     * Returns null when streaming is disabled.
+     */
+    public static StreamingSettings apply(Connection con, ComponentModel model) throws SQLException {
+        if (!isEnabled(model)) {
+            return null;
+        }
+        return new StreamingSettings(con, model.get(DataSouceConfiguration.SYNC_FETCH_SIZE, DEFAULT_FETCH_SIZE));
+    }
+
+    public static boolean isEnabled(ComponentModel model) {
+        return model.get(DataSouceConfiguration.SYNC_STREAMING, false);
+    }
+
+    public static PreparedStatement prepare(Connection con, ComponentModel model, String sql) throws SQLException {
+        if (!isEnabled(model)) {
+            return con.prepareStatement(sql, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+        }
+        PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ps.setFetchSize(model.get(DataSouceConfiguration.SYNC_FETCH_SIZE, DEFAULT_FETCH_SIZE));
+        return ps;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            // Nothing to commit, only ends the read transaction
+            con.rollback();
+        } finally {
+            con.setReadOnly(readOnly);
+            con.setAutoCommit(autoCommit);
+        }
+    }
+}
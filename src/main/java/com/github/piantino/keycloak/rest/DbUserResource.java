@@ -1,25 +1,45 @@
 package com.github.piantino.keycloak.rest;
 
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.keycloak.common.util.Time;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderModel;
 import org.keycloak.storage.user.SynchronizationResult;
+import org.keycloak.utils.StringUtil;
 
 import com.github.piantino.keycloak.DbUserProviderFactory;
+import com.github.piantino.keycloak.datasource.DataSouceConfiguration;
+import com.github.piantino.keycloak.exception.DbUserProviderException;
+import com.github.piantino.keycloak.sync.PrometheusWriter;
+import com.github.piantino.keycloak.sync.SyncCounter.Outcome;
+import com.github.piantino.keycloak.sync.SyncMetrics;
+import com.github.piantino.keycloak.sync.SyncProgress;
 
 import io.agroal.api.AgroalDataSourceMetrics;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.ClientErrorException;
+import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.NotFoundException;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
 
 public class DbUserResource implements DbUserResourceApi {
 
+	private static final int MAX_USERNAMES = 10000;
+
 	private KeycloakSession session;
 	private AdminPermissionEvaluator auth;
 
@@ -29,7 +49,9 @@ public class DbUserResource implements DbUserResourceApi {
 	public DbUserResource(KeycloakSession session, AdminPermissionEvaluator auth) {
 		this.session = session;
 		this.auth = auth;
-		this.factory = new DbUserProviderFactory();
+		// The factory registered by Keycloak, with the state of the node (sharded runs, pools)
+		this.factory = (DbUserProviderFactory) session.getKeycloakSessionFactory()
+				.getProviderFactory(UserStorageProvider.class, DbUserProviderFactory.PROVIDER_ID);
 		this.realm = session.getContext().getRealm();
 	}
 
@@ -49,14 +71,138 @@ public class DbUserResource implements DbUserResourceApi {
 		}
 	}
 
+	@POST
+	@Path("/sync")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	@Override
+	public Map<String, Outcome> syncUsernames(List<String> usernames) {
+		this.auth.users().requireManage();
+
+		if (usernames == null || usernames.isEmpty()) {
+			throw new BadRequestException("No usernames");
+		}
+		if (usernames.size() > MAX_USERNAMES) {
+			throw new BadRequestException("More than " + MAX_USERNAMES + " usernames");
+		}
+		UserStorageProviderModel model = DbUserProviderFactory.getModel(this.realm);
+		KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+
+		return this.factory.syncUsernames(usernames, sessionFactory, this.realm.getId(), model);
+	}
+
+	@POST
+	@Path("/sync-all")
+	@Produces(MediaType.APPLICATION_JSON)
+	@Override
+	public SyncRepresentation syncAll() {
+		this.auth.users().requireManage();
+
+		return syncAsync(null, false);
+	}
+
+	@POST
+	@Path("/sync-since")
+	@Produces(MediaType.APPLICATION_JSON)
+	@Override
+	public SyncRepresentation syncSince(@QueryParam("since") Long since) {
+		this.auth.users().requireManage();
+
+		if (since != null) {
+			return syncAsync(new Date(since), false);
+		}
+		UserStorageProviderModel model = DbUserProviderFactory.getModel(this.realm);
+		int lastSync = model.getLastSync();
+		// The watermark of the source is used first
+		if (lastSync <= 0 && StringUtil.isBlank(model.get(DataSouceConfiguration.SYNC_SINCE_WATERMARK))) {
+			throw new BadRequestException("No last sync, inform the since parameter");
+		}
+		return syncAsync(Time.toDate(Math.max(lastSync, 0)), true);
+	}
+
+	@GET
+	@Path("/jobs/{importId}")
+	@Produces(MediaType.APPLICATION_JSON)
+	@Override
+	public SyncRepresentation job(@PathParam("importId") String importId) {
+		this.auth.users().requireView();
+
+		return new SyncRepresentation(findJob(importId));
+	}
+
+	@POST
+	@Path("/jobs/{importId}/cancel")
+	@Produces(MediaType.APPLICATION_JSON)
+	@Override
+	public SyncRepresentation cancel(@PathParam("importId") String importId) {
+		this.auth.users().requireManage();
+
+		SyncProgress progress = findJob(importId);
+		progress.cancel();
+		return new SyncRepresentation(progress);
+	}
+
+	private SyncRepresentation syncAsync(Date lastSync, boolean useWatermark) {
+		UserStorageProviderModel model = DbUserProviderFactory.getModel(this.realm);
+		KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+
+		try {
+			SyncProgress progress = this.factory.syncAsync(lastSync, useWatermark, sessionFactory,
+					this.realm.getId(), model);
+			return new SyncRepresentation(progress);
+		} catch (DbUserProviderException e) {
+			throw new ClientErrorException(e.getMessage(), Response.Status.CONFLICT);
+		}
+	}
+
+	private SyncProgress findJob(String importId) {
+		SyncProgress progress = SyncProgress.find(this.realm.getId(), importId);
+		if (progress == null) {
+			throw new NotFoundException("Sync " + importId + " not found");
+		}
+		return progress;
+	}
+
 	@GET
 	@Path("/metrics")
 	@Produces(MediaType.APPLICATION_JSON)
 	@Override
-	public String metrics() {
+	public MetricsRepresentation metrics() {
 		this.auth.requireAnyAdminRole();
 
 		AgroalDataSourceMetrics metrics = DbUserProviderFactory.getDataSourceMetrics(this.realm);
-		return metrics.toString();
+		return new MetricsRepresentation(metrics, SyncProgress.getRunning(this.realm.getId()),
+				SyncProgress.getHistory(this.realm.getId()));
+	}
+
+	@GET
+	@Path("/metrics/prometheus")
+	@Produces(PrometheusWriter.CONTENT_TYPE)
+	@Override
+	public String prometheus() {
+		this.auth.requireAnyAdminRole();
+
+		PrometheusWriter out = new PrometheusWriter();
+		SyncMetrics.writePrometheus(this.realm.getId(), out);
+
+		AgroalDataSourceMetrics metrics = DbUserProviderFactory.getDataSourceMetrics(this.realm);
+		String[] labels = { "realm", this.realm.getId() };
+
+		out.type("db_user_pool_active_count", "gauge", "Connections in use")
+				.sample("db_user_pool_active_count", labels, metrics.activeCount());
+		out.type("db_user_pool_available_count", "gauge", "Idle connections")
+				.sample("db_user_pool_available_count", labels, metrics.availableCount());
+		out.type("db_user_pool_awaiting_count", "gauge", "Threads waiting for a connection")
+				.sample("db_user_pool_awaiting_count", labels, metrics.awaitingCount());
+		out.type("db_user_pool_max_used_count", "gauge", "Maximum connections in use")
+				.sample("db_user_pool_max_used_count", labels, metrics.maxUsedCount());
+		out.type("db_user_pool_acquire_total", "counter", "Connections acquired")
+				.sample("db_user_pool_acquire_total", labels, metrics.acquireCount());
+		out.type("db_user_pool_creation_total", "counter", "Connections created")
+				.sample("db_user_pool_creation_total", labels, metrics.creationCount());
+		out.type("db_user_pool_blocking_seconds_max", "gauge", "Maximum time waiting for a connection")
+				.sample("db_user_pool_blocking_seconds_max", labels, metrics.blockingTimeMax().toNanos() / 1e9);
+
+		return out.toString();
 	}
 }
@@ -1,10 +1,18 @@
 package com.github.piantino.keycloak.rest;
 
+import java.util.List;
+import java.util.Map;
+
+import com.github.piantino.keycloak.sync.PrometheusWriter;
+import com.github.piantino.keycloak.sync.SyncCounter.Outcome;
+
+import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.MediaType;
 
 public interface DbUserResourceApi {
@@ -14,9 +22,40 @@ public interface DbUserResourceApi {
 	@Produces(MediaType.APPLICATION_JSON)
 	public void sync(@PathParam("username") String username);
 
+	@POST
+	@Path("/sync")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Outcome> syncUsernames(List<String> usernames);
+
+	@POST
+	@Path("/sync-all")
+	@Produces(MediaType.APPLICATION_JSON)
+	public SyncRepresentation syncAll();
+
+	@POST
+	@Path("/sync-since")
+	@Produces(MediaType.APPLICATION_JSON)
+	public SyncRepresentation syncSince(@QueryParam("since") Long since);
+
+	@GET
+	@Path("/jobs/{importId}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public SyncRepresentation job(@PathParam("importId") String importId);
+
+	@POST
+	@Path("/jobs/{importId}/cancel")
+	@Produces(MediaType.APPLICATION_JSON)
+	public SyncRepresentation cancel(@PathParam("importId") String importId);
+
 	@GET
 	@Path("/metrics")
 	@Produces(MediaType.APPLICATION_JSON)
-	public String metrics();
+	public MetricsRepresentation metrics();
+
+	@GET
+	@Path("/metrics/prometheus")
+	@Produces(PrometheusWriter.CONTENT_TYPE)
+	public String prometheus();
 
 }
@@ -0,0 +1,181 @@
+package com.github.piantino.keycloak.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.piantino.keycloak.sync.SyncProgress;
+
+import io.agroal.api.AgroalDataSourceMetrics;
+
+public class MetricsRepresentation {
+
+	private PoolRepresentation pool;
+	private List<SyncRepresentation> running = new ArrayList<>();
+	private List<SyncRepresentation> history = new ArrayList<>();
+
+	public MetricsRepresentation() {
+		// Used by the JSON deserialization
+	}
+
+	public MetricsRepresentation(AgroalDataSourceMetrics metrics, List<SyncProgress> running,
+			List<SyncProgress> history) {
+		this.pool = new PoolRepresentation(metrics);
+		running.forEach(progress -> this.running.add(new SyncRepresentation(progress)));
+		history.forEach(progress -> this.history.add(new SyncRepresentation(progress)));
+	}
+
+	public PoolRepresentation getPool() {
+		return pool;
+	}
+
+	public void setPool(PoolRepresentation pool) {
+		this.pool = pool;
+	}
+
+	public List<SyncRepresentation> getRunning() {
+		return running;
+	}
+
+	public void setRunning(List<SyncRepresentation> running) {
+		this.running = running;
+	}
+
+	public List<SyncRepresentation> getHistory() {
+		return history;
+	}
+
+	public void setHistory(List<SyncRepresentation> history) {
+		this.history = history;
+	}
+
+	public static class PoolRepresentation {
+
+		private long created;
+		private long destroyed;
+		private long invalid;
+		private long active;
+		private long available;
+		private long maxUsed;
+		private long awaiting;
+		private long acquired;
+		private long leakDetected;
+		private long blockingTimeAverageMs;
+		private long blockingTimeMaxMs;
+		private long creationTimeAverageMs;
+
+		public PoolRepresentation() {
+			// Used by the JSON deserialization
+		}
+
+		public PoolRepresentation(AgroalDataSourceMetrics metrics) {
+			this.created = metrics.creationCount();
+			this.destroyed = metrics.destroyCount();
+			this.invalid = metrics.invalidCount();
+			this.active = metrics.activeCount();
+			this.available = metrics.availableCount();
+			this.maxUsed = metrics.maxUsedCount();
+			this.awaiting = metrics.awaitingCount();
+			this.acquired = metrics.acquireCount();
+			this.leakDetected = metrics.leakDetectionCount();
+			this.blockingTimeAverageMs = metrics.blockingTimeAverage().toMillis();
+			this.blockingTimeMaxMs = metrics.blockingTimeMax().toMillis();
+			this.creationTimeAverageMs = metrics.creationTimeAverage().toMillis();
+		}
+
+		public long getCreated() {
+			return created;
+		}
+
+		public void setCreated(long created) {
+			this.created = created;
+		}
+
+		public long getDestroyed() {
+			return destroyed;
+		}
+
+		public void setDestroyed(long destroyed) {
+			this.destroyed = destroyed;
+		}
+
+		public long getInvalid() {
+			return invalid;
+		}
+
+		public void setInvalid(long invalid) {
+			this.invalid = invalid;
+		}
+
+		public long getActive() {
+			return active;
+		}
+
+		public void setActive(long active) {
+			this.active = active;
+		}
+
+		public long getAvailable() {
+			return available;
+		}
+
+		public void setAvailable(long available) {
+			this.available = available;
+		}
+
+		public long getMaxUsed() {
+			return maxUsed;
+		}
+
+		public void setMaxUsed(long maxUsed) {
+			this.maxUsed = maxUsed;
+		}
+
+		public long getAwaiting() {
+			return awaiting;
+		}
+
+		public void setAwaiting(long awaiting) {
+			this.awaiting = awaiting;
+		}
+
+		public long getAcquired() {
+			return acquired;
+		}
+
+		public void setAcquired(long acquired) {
+			this.acquired = acquired;
+		}
+
+		public long getLeakDetected() {
+			return leakDetected;
+		}
+
+		public void setLeakDetected(long leakDetected) {
+			this.leakDetected = leakDetected;
+		}
+
+		public long getBlockingTimeAverageMs() {
+			return blockingTimeAverageMs;
+		}
+
+		public void setBlockingTimeAverageMs(long blockingTimeAverageMs) {
+			this.blockingTimeAverageMs = blockingTimeAverageMs;
+		}
+
+		public long getBlockingTimeMaxMs() {
+			return blockingTimeMaxMs;
+		}
+
+		public void setBlockingTimeMaxMs(long blockingTimeMaxMs) {
+			this.blockingTimeMaxMs = blockingTimeMaxMs;
+		}
+
+		public long getCreationTimeAverageMs() {
+			return creationTimeAverageMs;
+		}
+
+		public void setCreationTimeAverageMs(long creationTimeAverageMs) {
+			this.creationTimeAverageMs = creationTimeAverageMs;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package com.github.piantino.keycloak.rest;
+
+import org.keycloak.storage.user.SynchronizationResult;
+
+import com.github.piantino.keycloak.sync.SyncProgress;
+
+public class SyncRepresentation {
+
+	private String importId;
+	private String node;
+	private String syncType;
+	private String status;
+	private String stage;
+	private long startedAt;
+	private long durationMs;
+	private int counter;
+	private long total;
+	private double rowsPerSecond;
+	private long etaSeconds;
+	private Integer added;
+	private Integer updated;
+	private Integer removed;
+	private Integer failed;
+	private String error;
+
+	public SyncRepresentation() {
+		// Used by the JSON deserialization
+	}
+
+	public SyncRepresentation(SyncProgress progress) {
+		this.importId = progress.getImportId();
+		this.node = SyncProgress.NODE;
+		this.syncType = progress.getSyncType().name();
+		this.status = progress.getStatus().name();
+		this.stage = progress.getStage();
+		this.startedAt = progress.getStartedAt();
+		this.durationMs = progress.getDurationMillis();
+		this.counter = progress.getCounter();
+		this.total = (long) progress.getTotal();
+		this.rowsPerSecond = progress.getRowsPerSecond();
+		this.etaSeconds = progress.getEtaSeconds();
+		this.error = progress.getError();
+
+		SynchronizationResult result = progress.getResult();
+		if (result != null) {
+			this.added = result.getAdded();
+			this.updated = result.getUpdated();
+			this.removed = result.getRemoved();
+			this.failed = result.getFailed();
+		}
+	}
+
+	public String getImportId() {
+		return importId;
+	}
+
+	public void setImportId(String importId) {
+		this.importId = importId;
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public void setNode(String node) {
+		this.node = node;
+	}
+
+	public String getSyncType() {
+		return syncType;
+	}
+
+	public void setSyncType(String syncType) {
+		this.syncType = syncType;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public String getStage() {
+		return stage;
+	}
+
+	public void setStage(String stage) {
+		this.stage = stage;
+	}
+
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	public void setStartedAt(long startedAt) {
+		this.startedAt = startedAt;
+	}
+
+	public long getDurationMs() {
+		return durationMs;
+	}
+
+	public void setDurationMs(long durationMs) {
+		this.durationMs = durationMs;
+	}
+
+	public int getCounter() {
+		return counter;
+	}
+
+	public void setCounter(int counter) {
+		this.counter = counter;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	public void setTotal(long total) {
+		this.total = total;
+	}
+
+	public double getRowsPerSecond() {
+		return rowsPerSecond;
+	}
+
+	public void setRowsPerSecond(double rowsPerSecond) {
+		this.rowsPerSecond = rowsPerSecond;
+	}
+
+	public long getEtaSeconds() {
+		return etaSeconds;
+	}
+
+	public void setEtaSeconds(long etaSeconds) {
+		this.etaSeconds = etaSeconds;
+	}
+
+	public Integer getAdded() {
+		return added;
+	}
+
+	public void setAdded(Integer added) {
+		this.added = added;
+	}
+
+	public Integer getUpdated() {
+		return updated;
+	}
+
+	public void setUpdated(Integer updated) {
+		this.updated = updated;
+	}
+
+	public Integer getRemoved() {
+		return removed;
+	}
+
+	public void setRemoved(Integer removed) {
+		this.removed = removed;
+	}
+
+	public Integer getFailed() {
+		return failed;
+	}
+
+	public void setFailed(Integer failed) {
+		this.failed = failed;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+}
@@ -0,0 +1,57 @@
+package com.github.piantino.keycloak.sync;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+
+import com.github.piantino.keycloak.exception.DbUserProviderException;
+
+/**
+ * Runs a batch in one transaction. When the batch fails it is split in halves and retried until the
+ * failing rows are isolated, so one bad row doesn't fail the others.
+ */
+public class BatchBisector {
+
+    private static final Logger LOGGER = Logger.getLogger(BatchBisector.class);
+
+    private BatchBisector() {
+        // empty
+    }
+
+    /**
+     * @param job       runs the rows in one transaction and throws when it was rolled back
+     * @param onFailure called for each row that fails alone
+     */
+    public static <T> void run(String importId, List<T> rows, Consumer<List<T>> job,
+            BiConsumer<T, Throwable> onFailure) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        try {
+            job.accept(rows);
+        } catch (Throwable e) {
+            if (rows.size() == 1) {
+                onFailure.accept(rows.get(0), e);
+                return;
+            }
+            LOGGER.debugv("[{0}] Batch of {1} failed, splitting: {2}", importId, rows.size(), e.getMessage());
+
+            int half = rows.size() / 2;
+            run(importId, rows.subList(0, half), job, onFailure);
+            run(importId, rows.subList(half, rows.size()), job, onFailure);
+        }
+    }
+
+    /**
+     * A transaction marked for rollback is rolled back on commit without error, the rows would be counted as
+     * imported. Called by the job after each row, so the batch is bisected down to the row.
+     */
+    public static void checkRollbackOnly(KeycloakSession session, Object row) {
+        if (session.getTransactionManager().getRollbackOnly()) {
+            throw new DbUserProviderException("Transaction marked for rollback by " + row);
+        }
+    }
+}
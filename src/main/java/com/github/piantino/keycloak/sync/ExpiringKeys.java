@@ -0,0 +1,65 @@
+package com.github.piantino.keycloak.sync;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Keys remembered for a TTL, shared by the threads of the logins.
+ *
+ * The keys are kept in the order they were put, so the oldest expire first. The size is bounded: when full, the
+ * expired keys are dropped, then the oldest one, so a burst of new keys doesn't drop the recent ones.
+ */
+public class ExpiringKeys {
+
+    private final Map<String, Long> expiries;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+
+    public ExpiringKeys(long ttlMillis, int maxSize) {
+        this(ttlMillis, maxSize, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock the current time in milliseconds
+     */
+    public ExpiringKeys(long ttlMillis, int maxSize, LongSupplier clock) {
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.expiries = new LinkedHashMap<>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized boolean contains(String key) {
+        Long expiry = expiries.get(key);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry < clock.getAsLong()) {
+            expiries.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized void put(String key) {
+        long now = clock.getAsLong();
+        for (Iterator<Long> it = expiries.values().iterator(); it.hasNext() && it.next() < now;) {
+            it.remove();
+        }
+        // Put again at the end, with a new TTL
+        expiries.remove(key);
+        expiries.put(key, now + ttlMillis);
+    }
+
+    public synchronized int size() {
+        return expiries.size();
+    }
+}
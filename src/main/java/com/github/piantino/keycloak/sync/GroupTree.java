@@ -0,0 +1,119 @@
+package com.github.piantino.keycloak.sync;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Group rows of a sync, ordered by level (roots first) so a group is always imported after its parent, whatever
+ * the order of the groups query.
+ *
+ * A group whose parent is not in the rows is a root here, its parent is looked up in Keycloak.
+ */
+public class GroupTree {
+
+    private static final int CYCLE = -2;
+
+    private final String gidColumn;
+    private final String parentColumn;
+
+    private final Map<String, Map<String, String>> rows = new LinkedHashMap<>();
+
+    public GroupTree(String gidColumn, String parentColumn) {
+        this.gidColumn = gidColumn;
+        this.parentColumn = parentColumn;
+    }
+
+    /**
+     * A repeated gid replaces the previous row.
+     */
+    public void add(Map<String, String> data) {
+        rows.put(data.get(gidColumn), data);
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    public Set<String> getGids() {
+        return rows.keySet();
+    }
+
+    /**
+     * The rows by level, each level sorted by parent so the siblings are imported together. The rows in a cycle
+     * of parents are left out, see {@link #getCycles()}.
+     */
+    public List<List<Map<String, String>>> getLevels() {
+        Map<String, Integer> depths = new HashMap<>(rows.size() * 2);
+        List<List<Map<String, String>>> levels = new ArrayList<>();
+
+        for (String gid : rows.keySet()) {
+            int depth = depth(gid, depths);
+            if (depth == CYCLE) {
+                continue;
+            }
+            while (levels.size() <= depth) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(depth).add(rows.get(gid));
+        }
+        Comparator<Map<String, String>> byParent = Comparator.comparing(data -> data.get(parentColumn),
+                Comparator.nullsFirst(Comparator.naturalOrder()));
+        levels.forEach(level -> level.sort(byParent));
+        return levels;
+    }
+
+    /**
+     * Rows whose parents lead back to themselves, they can't be imported.
+     */
+    public List<Map<String, String>> getCycles() {
+        Map<String, Integer> depths = new HashMap<>(rows.size() * 2);
+        List<Map<String, String>> cycles = new ArrayList<>();
+
+        for (String gid : rows.keySet()) {
+            if (depth(gid, depths) == CYCLE) {
+                cycles.add(rows.get(gid));
+            }
+        }
+        return cycles;
+    }
+
+    /**
+     * Iterative, a deep tree would overflow the stack. Returns {@link #CYCLE} for a row in (or below) a cycle.
+     */
+    private int depth(String gid, Map<String, Integer> depths) {
+        List<String> path = new ArrayList<>();
+        Set<String> onPath = new HashSet<>();
+        String current = gid;
+        int base;
+
+        while (true) {
+            Integer known = depths.get(current);
+            if (known != null) {
+                base = known;
+                break;
+            }
+            if (!onPath.add(current)) {
+                base = CYCLE;
+                break;
+            }
+            path.add(current);
+            String parent = rows.get(current).get(parentColumn);
+            if (parent == null || !rows.containsKey(parent)) {
+                base = -1;
+                break;
+            }
+            current = parent;
+        }
+
+        for (int i = path.size() - 1; i >= 0; i--) {
+            depths.put(path.get(i), base == CYCLE ? CYCLE : base + path.size() - i);
+        }
+        return depths.get(gid);
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.piantino.keycloak.sync;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.logging.Logger;
+
+import com.github.piantino.keycloak.exception.DbUserProviderException;
+
+/**
+ * Runs import tasks on a fixed worker pool. With a parallelism of 1 the tasks run in the caller thread.
+ * 
+ * The queue is bounded and full queues make the caller run the task, so the thread reading the source
+ * database never gets too far ahead of the workers.
+ *
+ * The first failure of a worker is rethrown on the next task and on close, the tasks already queued still run.
+ */
+public class ImportExecutor implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(ImportExecutor.class);
+
+    private final String importId;
+    private final ThreadPoolExecutor executor;
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+    public ImportExecutor(String importId, int parallelism) {
+        this.importId = importId;
+
+        if (parallelism <= 1) {
+            this.executor = null;
+            return;
+        }
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(parallelism * 2), new WorkerThreadFactory(importId),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        LOGGER.debugv("[{0}] Sync with {1} workers", importId, parallelism);
+    }
+
+    public void execute(Runnable task) {
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        rethrowFailure();
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                if (!failure.compareAndSet(null, e)) {
+                    failure.get().addSuppressed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until all submitted tasks are finished.
+     */
+    @Override
+    public void close() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.debugv("[{0}] Waiting workers, {1} tasks queued", importId, executor.getQueue().size());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new DbUserProviderException("Sync interrupted " + importId, e);
+        }
+        rethrowFailure();
+    }
+
+    private void rethrowFailure() {
+        RuntimeException e = failure.get();
+        if (e != null) {
+            throw new DbUserProviderException("Sync worker failed " + importId, e);
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final String importId;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private WorkerThreadFactory(String importId) {
+            this.importId = importId;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "db-user-sync-" + importId + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.piantino.keycloak.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+
+/**
+ * Role and group lookups shared by all transactions of a sync.
+ *
+ * Only ids are shared, the models belong to a session and are re-attached by {@link #attach}. A cached id whose
+ * model is gone (e.g. role created by a rolled back transaction) is looked up again.
+ */
+public class LookupCache {
+
+    private static final String ROOT_ROLE = "\0root";
+    private static final String DEFAULT_ROLE = "\0default";
+
+    private final Map<String, String> roleIdByName = new ConcurrentHashMap<>();
+    private final Map<String, String> groupIdByGid = new ConcurrentHashMap<>();
+    private final Set<String> missingGids = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public Attached attach(KeycloakSession session, RealmModel realm) {
+        return new Attached(session, realm);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return hits.get() + " hits, " + misses.get() + " misses";
+    }
+
+    /**
+     * The cache seen by one transaction.
+     */
+    public class Attached {
+
+        private final KeycloakSession session;
+        private final RealmModel realm;
+
+        private final Map<String, RoleModel> roles = new HashMap<>();
+        private final Map<String, GroupModel> groups = new HashMap<>();
+
+        private Attached(KeycloakSession session, RealmModel realm) {
+            this.session = session;
+            this.realm = realm;
+        }
+
+        public RoleModel getRole(String name, Supplier<RoleModel> loader) {
+            RoleModel role = roles.get(name);
+            if (role != null) {
+                hits.incrementAndGet();
+                return role;
+            }
+            role = loadRole(name, loader);
+            if (role != null) {
+                roles.put(name, role);
+            }
+            return role;
+        }
+
+        public RoleModel getRoleRoot(Supplier<RoleModel> loader) {
+            return getRole(ROOT_ROLE, loader);
+        }
+
+        public RoleModel getDefaultRole(Supplier<RoleModel> loader) {
+            return getRole(DEFAULT_ROLE, loader);
+        }
+
+        /**
+         * Groups are synchronized before the users, so a missing group stays missing during the users import.
+         */
+        public GroupModel getGroup(String gid, Supplier<GroupModel> loader) {
+            if (missingGids.contains(gid)) {
+                hits.incrementAndGet();
+                return null;
+            }
+            GroupModel group = groups.get(gid);
+            if (group != null) {
+                hits.incrementAndGet();
+                return group;
+            }
+            group = loadGroup(gid, loader);
+            if (group != null) {
+                groups.put(gid, group);
+            }
+            return group;
+        }
+
+        private GroupModel loadGroup(String gid, Supplier<GroupModel> loader) {
+            String id = groupIdByGid.get(gid);
+            if (id != null) {
+                GroupModel group = session.groups().getGroupById(realm, id);
+                if (group != null) {
+                    hits.incrementAndGet();
+                    return group;
+                }
+                groupIdByGid.remove(gid, id);
+            }
+            misses.incrementAndGet();
+            GroupModel group = loader.get();
+            if (group == null) {
+                missingGids.add(gid);
+            } else {
+                groupIdByGid.put(gid, group.getId());
+            }
+            return group;
+        }
+
+        private RoleModel loadRole(String name, Supplier<RoleModel> loader) {
+            String id = roleIdByName.get(name);
+            if (id != null) {
+                RoleModel role = session.roles().getRoleById(realm, id);
+                if (role != null) {
+                    hits.incrementAndGet();
+                    return role;
+                }
+                roleIdByName.remove(name, id);
+            }
+            misses.incrementAndGet();
+            RoleModel role = loader.get();
+            if (role != null) {
+                roleIdByName.put(name, role.getId());
+            }
+            return role;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.piantino.keycloak.sync;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams a query ordered by username (like the roles or the groups of all users) alongside the users
+ * cursor, which must be ordered by username too.
+ * 
+ * The order is checked on both sides. When it doesn't match (e.g. database collation different from the
+ * Java one) the cursor becomes unordered and the caller must fall back to the per user query.
+ */
+public class MergeJoinCursor implements AutoCloseable {
+
+    private static final String USERNAME = "username";
+
+    private final PreparedStatement ps;
+    private final ResultSet rs;
+    private final String valueColumn;
+
+    private String currentKey;
+    private String currentValue;
+    private boolean hasCurrent;
+
+    private String lastUsername;
+    private boolean ordered = true;
+
+    /**
+     * @param fetchSize rows fetched by round-trip, 0 to use the driver default
+     */
+    public MergeJoinCursor(Connection con, String sql, String valueColumn, int fetchSize) throws SQLException {
+        this.ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        this.ps.setFetchSize(fetchSize);
+        this.rs = ps.executeQuery();
+        this.valueColumn = valueColumn;
+        advance();
+    }
+
+    /**
+     * Returns the values of the username, or null when the cursor is unordered. A null username has no value, like
+     * the rows of the query without username.
+     */
+    public List<String> next(String username) throws SQLException {
+        if (!ordered) {
+            return null;
+        }
+        if (username == null) {
+            return new ArrayList<>();
+        }
+        if (lastUsername != null && lastUsername.compareTo(username) > 0) {
+            ordered = false;
+            return null;
+        }
+        lastUsername = username;
+
+        List<String> values = new ArrayList<>();
+        while (hasCurrent) {
+            int cmp = currentKey.compareTo(username);
+            if (cmp > 0) {
+                break;
+            }
+            if (cmp == 0) {
+                values.add(currentValue);
+            }
+            advance();
+            if (!ordered) {
+                return null;
+            }
+        }
+        return values;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    private void advance() throws SQLException {
+        while (hasCurrent = rs.next()) {
+            String key = rs.getString(USERNAME);
+            if (key == null) {
+                continue;
+            }
+            if (currentKey != null && currentKey.compareTo(key) > 0) {
+                ordered = false;
+            }
+            currentKey = key;
+            currentValue = rs.getString(valueColumn);
+            return;
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            rs.close();
+        } finally {
+            ps.close();
+        }
+    }
+}
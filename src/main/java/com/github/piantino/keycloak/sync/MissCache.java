@@ -0,0 +1,28 @@
+package com.github.piantino.keycloak.sync;
+
+/**
+ * Lookups not found in the source, remembered for a short time so unknown usernames (typos, brute force) don't
+ * query the source database on every login. Up to {@link #MAX_SIZE} lookups, see {@link ExpiringKeys}.
+ */
+public class MissCache {
+
+    public static final int MAX_SIZE = 10000;
+
+    private final ExpiringKeys keys;
+
+    public MissCache(long ttlMillis) {
+        this.keys = new ExpiringKeys(ttlMillis, MAX_SIZE);
+    }
+
+    public boolean contains(String key) {
+        return keys.contains(key);
+    }
+
+    public void put(String key) {
+        keys.put(key);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.piantino.keycloak.sync;
+
+import java.util.Locale;
+
+/**
+ * What the full sync does with the imported users no longer in the source.
+ */
+public enum MissingUsers {
+    KEEP, DISABLE, REMOVE;
+
+    /**
+     * {@link #KEEP} when not configured.
+     */
+    public static MissingUsers of(String value) {
+        if (value == null || value.isBlank()) {
+            return KEEP;
+        }
+        return valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.piantino.keycloak.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * The last outbox id imported by a provider, in the single use objects of Keycloak (shared by the cluster): a page
+ * imported doesn't update the realm. The id is saved in the provider settings at most each
+ * {@link #CHECKPOINT_SECONDS}, for a restart of the whole cluster.
+ *
+ * A poll claims the outbox of the provider with a lease, one poll at a time in the cluster.
+ */
+public class OutboxState {
+
+    public static final int CHECKPOINT_SECONDS = 300;
+
+    private static final String PREFIX = "db-user-outbox:";
+    private static final String POLL = ":poll";
+    private static final String LAST_ID = "lastId";
+    private static final String SAVED_ID = "savedId";
+    private static final String SAVED_AT = "savedAt";
+    private static final String SETTING_ID = "settingId";
+    private static final long STATE_TTL_SECONDS = 7 * 24 * 60 * 60;
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String modelId;
+    private final long settingId;
+    private long lastId;
+    private long savedId;
+    private long savedAt;
+
+    private OutboxState(KeycloakSessionFactory sessionFactory, String modelId, long settingId, long lastId,
+            long savedId, long savedAt) {
+        this.sessionFactory = sessionFactory;
+        this.modelId = modelId;
+        this.settingId = settingId;
+        this.lastId = lastId;
+        this.savedId = savedId;
+        this.savedAt = savedAt;
+    }
+
+    /**
+     * Claims the outbox of the provider, null when another poll has it.
+     *
+     * @param settingId    the last id of the provider settings, it replaces the state when changed by an admin:
+     *                     neither the id saved nor the one of the last claim (a model not reloaded yet)
+     * @param leaseSeconds the claim of a dead node expires after it
+     */
+    public static OutboxState claim(KeycloakSessionFactory sessionFactory, String modelId, long settingId,
+            long leaseSeconds) {
+        Map<String, String> state = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            if (!session.singleUseObjects().putIfAbsent(PREFIX + modelId + POLL, leaseSeconds)) {
+                return null;
+            }
+            Map<String, String> notes = session.singleUseObjects().get(PREFIX + modelId);
+            return notes == null ? new HashMap<>() : notes;
+        });
+        if (state == null) {
+            return null;
+        }
+        String setting = String.valueOf(settingId);
+        if (!setting.equals(state.get(SAVED_ID)) && !setting.equals(state.get(SETTING_ID))) {
+            OutboxState reset = new OutboxState(sessionFactory, modelId, settingId, settingId, settingId, 0);
+            reset.put();
+            return reset;
+        }
+        OutboxState claimed = new OutboxState(sessionFactory, modelId, settingId, Long.parseLong(state.get(LAST_ID)),
+                Long.parseLong(state.get(SAVED_ID)), Long.parseLong(state.get(SAVED_AT)));
+        if (!setting.equals(state.get(SETTING_ID))) {
+            claimed.put();
+        }
+        return claimed;
+    }
+
+    public long getLastId() {
+        return lastId;
+    }
+
+    /**
+     * Keeps the last id of a page imported, ignored when not after the current one.
+     */
+    public void advance(long id) {
+        if (id <= lastId) {
+            return;
+        }
+        lastId = id;
+        put();
+    }
+
+    /**
+     * Saves the last id when it advanced and the last save is older than {@link #CHECKPOINT_SECONDS}.
+     */
+    public void checkpoint(LongConsumer save) {
+        long now = Time.currentTimeMillis();
+        if (lastId == savedId || now - savedAt < CHECKPOINT_SECONDS * 1000L) {
+            return;
+        }
+        save.accept(lastId);
+        savedId = lastId;
+        savedAt = now;
+        put();
+    }
+
+    /**
+     * Ends the poll, another one can claim the outbox.
+     */
+    public void release() {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                session -> session.singleUseObjects().remove(PREFIX + modelId + POLL));
+    }
+
+    private void put() {
+        Map<String, String> notes = new HashMap<>();
+        notes.put(LAST_ID, String.valueOf(lastId));
+        notes.put(SAVED_ID, String.valueOf(savedId));
+        notes.put(SAVED_AT, String.valueOf(savedAt));
+        notes.put(SETTING_ID, String.valueOf(settingId));
+        KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                session -> session.singleUseObjects().put(PREFIX + modelId, STATE_TTL_SECONDS, notes));
+    }
+}
@@ -0,0 +1,229 @@
+package com.github.piantino.keycloak.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.user.SynchronizationResult;
+
+/**
+ * The shards of a full sync run, claimed by the nodes of the cluster with leases in the single use objects of
+ * Keycloak (shared by the cluster). A lease expires when its node dies, so another node claims the shard again.
+ *
+ * Keys: the run of a provider, a lease and a result by shard of the run.
+ */
+public class ShardLeases {
+
+    private static final String PREFIX = "db-user-shards:";
+    private static final String RUN_ID = "runId";
+    private static final String SHARDS = "shards";
+    private static final String NODE = "node";
+    private static final String WATERMARK = "watermark";
+    private static final String TTL = "ttl";
+    private static final String ERROR = "error";
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String modelId;
+    private final String runId;
+    private final int shards;
+    private final long ttlSeconds;
+
+    private ShardLeases(KeycloakSessionFactory sessionFactory, String modelId, String runId, int shards,
+            long ttlSeconds) {
+        this.sessionFactory = sessionFactory;
+        this.modelId = modelId;
+        this.runId = runId;
+        this.shards = shards;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * Starts a run of the provider, replacing a previous one.
+     *
+     * @param ttlSeconds the run and its results are dropped after it
+     */
+    public static ShardLeases publish(KeycloakSessionFactory sessionFactory, String modelId, String runId,
+            int shards, long ttlSeconds) {
+        Map<String, String> run = new HashMap<>();
+        run.put(RUN_ID, runId);
+        run.put(SHARDS, String.valueOf(shards));
+        run.put(TTL, String.valueOf(ttlSeconds));
+        KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                session -> session.singleUseObjects().put(runKey(modelId), ttlSeconds, run));
+        return new ShardLeases(sessionFactory, modelId, runId, shards, ttlSeconds);
+    }
+
+    /**
+     * The run of the provider, null when none.
+     */
+    public static ShardLeases find(KeycloakSessionFactory sessionFactory, String modelId) {
+        Map<String, String> run = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                session -> session.singleUseObjects().get(runKey(modelId)));
+        if (run == null || run.get(RUN_ID) == null) {
+            return null;
+        }
+        return new ShardLeases(sessionFactory, modelId, run.get(RUN_ID), Integer.parseInt(run.get(SHARDS)),
+                Long.parseLong(run.get(TTL)));
+    }
+
+    /**
+     * Still the run of the provider, not finished or replaced.
+     */
+    public boolean isActive() {
+        ShardLeases current = find(sessionFactory, modelId);
+        return current != null && runId.equals(current.runId);
+    }
+
+    /**
+     * Claims a shard without result and without lease of another node.
+     */
+    public boolean claim(int shard, String node, long leaseSeconds) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                session -> claim(session.singleUseObjects(), shard, node, leaseSeconds));
+    }
+
+    /**
+     * Extends the lease of a shard imported by the node, false when another node claimed it after the lease expired.
+     */
+    public boolean renew(int shard, String node, long leaseSeconds) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            SingleUseObjectProvider objects = session.singleUseObjects();
+            Map<String, String> lease = objects.get(leaseKey(shard));
+            if (lease == null) {
+                // Expired, but not claimed by another node yet
+                return claim(objects, shard, node, leaseSeconds);
+            }
+            if (!node.equals(lease.get(NODE))) {
+                return false;
+            }
+            objects.put(leaseKey(shard), leaseSeconds, lease);
+            return true;
+        });
+    }
+
+    private boolean claim(SingleUseObjectProvider objects, int shard, String node, long leaseSeconds) {
+        if (!objects.putIfAbsent(leaseKey(shard), leaseSeconds)) {
+            return false;
+        }
+        // The result is saved before the lease of its node is removed
+        if (objects.contains(resultKey(shard))) {
+            objects.remove(leaseKey(shard));
+            return false;
+        }
+        objects.put(leaseKey(shard), leaseSeconds, Map.of(NODE, node));
+        return true;
+    }
+
+    public void complete(int shard, String node, SynchronizationResult result, SinceWatermark watermark) {
+        Map<String, String> notes = new HashMap<>();
+        notes.put(NODE, node);
+        notes.put("added", String.valueOf(result.getAdded()));
+        notes.put("updated", String.valueOf(result.getUpdated()));
+        notes.put("removed", String.valueOf(result.getRemoved()));
+        notes.put("failed", String.valueOf(result.getFailed()));
+        if (!watermark.isEmpty()) {
+            notes.put(WATERMARK, watermark.toString());
+        }
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            SingleUseObjectProvider objects = session.singleUseObjects();
+            objects.put(resultKey(shard), ttlSeconds, notes);
+            objects.remove(leaseKey(shard));
+        });
+    }
+
+    /**
+     * Completes a shard with its error, the run fails.
+     */
+    public void fail(int shard, String node, String error) {
+        Map<String, String> notes = new HashMap<>();
+        notes.put(NODE, node);
+        notes.put(ERROR, error == null ? "" : error);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            SingleUseObjectProvider objects = session.singleUseObjects();
+            objects.put(resultKey(shard), ttlSeconds, notes);
+            objects.remove(leaseKey(shard));
+        });
+    }
+
+    /**
+     * The results of the shards completed, by shard.
+     */
+    public Map<Integer, Map<String, String>> getResults() {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            Map<Integer, Map<String, String>> results = new HashMap<>();
+            for (int shard = 0; shard < shards; shard++) {
+                Map<String, String> notes = session.singleUseObjects().get(resultKey(shard));
+                if (notes != null) {
+                    results.put(shard, notes);
+                }
+            }
+            return results;
+        });
+    }
+
+    /**
+     * The sum of the results and their greatest watermark.
+     */
+    public static SynchronizationResult sum(Map<Integer, Map<String, String>> results, SinceWatermark watermark) {
+        SynchronizationResult sum = new SynchronizationResult();
+        for (Map<String, String> notes : results.values()) {
+            if (notes.containsKey(ERROR)) {
+                continue;
+            }
+            sum.setAdded(sum.getAdded() + Integer.parseInt(notes.get("added")));
+            sum.setUpdated(sum.getUpdated() + Integer.parseInt(notes.get("updated")));
+            sum.setRemoved(sum.getRemoved() + Integer.parseInt(notes.get("removed")));
+            sum.setFailed(sum.getFailed() + Integer.parseInt(notes.get("failed")));
+
+            SinceWatermark shard = SinceWatermark.parse(notes.get(WATERMARK));
+            if (shard != null) {
+                watermark.offer(shard.getUpdated(), shard.getUsername());
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The error of the first failed shard, null when none.
+     */
+    public static String getError(Map<Integer, Map<String, String>> results) {
+        return results.entrySet().stream().filter(e -> e.getValue().containsKey(ERROR))
+                .map(e -> "shard " + e.getKey() + " in " + e.getValue().get(NODE) + ": " + e.getValue().get(ERROR))
+                .findFirst().orElse(null);
+    }
+
+    /**
+     * Ends the run, the nodes stop claiming its shards.
+     */
+    public void finish() {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            SingleUseObjectProvider objects = session.singleUseObjects();
+            Map<String, String> run = objects.get(runKey(modelId));
+            if (run != null && runId.equals(run.get(RUN_ID))) {
+                objects.remove(runKey(modelId));
+            }
+        });
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    private static String runKey(String modelId) {
+        return PREFIX + modelId;
+    }
+
+    private String leaseKey(int shard) {
+        return PREFIX + runId + ":lease:" + shard;
+    }
+
+    private String resultKey(int shard) {
+        return PREFIX + runId + ":result:" + shard;
+    }
+}
@@ -0,0 +1,133 @@
+package com.github.piantino.keycloak.sync;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Date;
+
+import org.keycloak.utils.StringUtil;
+
+/**
+ * The greatest row read from the source by its updated column, with the username as tie-breaker. The next sync
+ * since reads the rows after it, with the clock of the source instead of the Keycloak node.
+ *
+ * The changed users query is bound by its number of parameters:
+ * <ul>
+ * <li>1: <code>updated &gt; ?</code></li>
+ * <li>2: <code>(updated, username) &gt; (?, ?)</code></li>
+ * <li>3: <code>updated &gt; ? OR (updated = ? AND username &gt; ?)</code></li>
+ * </ul>
+ */
+public class SinceWatermark {
+
+    private static final char SEPARATOR = '|';
+
+    private Timestamp updated;
+    private String username;
+
+    public SinceWatermark() {
+    }
+
+    public SinceWatermark(Date since) {
+        this.updated = new Timestamp(since.getTime());
+    }
+
+    /**
+     * Saved by {@link #toString()}, null when blank.
+     */
+    public static SinceWatermark parse(String value) {
+        if (StringUtil.isBlank(value)) {
+            return null;
+        }
+        int separator = value.indexOf(SEPARATOR);
+        SinceWatermark watermark = new SinceWatermark();
+        watermark.updated = Timestamp.valueOf(separator < 0 ? value : value.substring(0, separator));
+        watermark.username = separator < 0 || separator == value.length() - 1 ? null
+                : value.substring(separator + 1);
+        return watermark;
+    }
+
+    /**
+     * Keeps the row when greater, a value of updated that isn't a date is ignored.
+     */
+    public void offer(Object value, String rowUsername) {
+        Timestamp rowUpdated = toTimestamp(value);
+        if (rowUpdated == null) {
+            return;
+        }
+        int compare = updated == null ? 1 : rowUpdated.compareTo(updated);
+        if (compare > 0 || compare == 0 && rowUsername != null
+                && (username == null || rowUsername.compareTo(username) > 0)) {
+            updated = rowUpdated;
+            username = rowUsername;
+        }
+    }
+
+    public boolean isEmpty() {
+        return updated == null;
+    }
+
+    /**
+     * Greater than the other watermark, or the other is null.
+     */
+    public boolean isAfter(SinceWatermark other) {
+        if (other == null || other.updated == null) {
+            return updated != null;
+        }
+        int compare = updated.compareTo(other.updated);
+        return compare > 0 || compare == 0 && username != null
+                && (other.username == null || username.compareTo(other.username) > 0);
+    }
+
+    /**
+     * Binds the watermark by the number of parameters of the query.
+     */
+    public void bind(PreparedStatement ps, String sql) throws SQLException {
+        // Before any row with this time when there is no username
+        String key = username == null ? "" : username;
+
+        switch ((int) sql.chars().filter(c -> c == '?').count()) {
+            case 2:
+                ps.setTimestamp(1, updated);
+                ps.setString(2, key);
+                break;
+            case 3:
+                ps.setTimestamp(1, updated);
+                ps.setTimestamp(2, updated);
+                ps.setString(3, key);
+                break;
+            default:
+                ps.setTimestamp(1, updated);
+        }
+    }
+
+    public Timestamp getUpdated() {
+        return updated;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * The wall clock of the source, like the timestamp columns.
+     */
+    @Override
+    public String toString() {
+        return updated + (username == null ? "" : SEPARATOR + username);
+    }
+
+    private static Timestamp toTimestamp(Object value) {
+        if (value instanceof Timestamp) {
+            return (Timestamp) value;
+        }
+        if (value instanceof LocalDateTime) {
+            return Timestamp.valueOf((LocalDateTime) value);
+        }
+        if (value instanceof Date) {
+            return new Timestamp(((Date) value).getTime());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.piantino.keycloak.sync;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.keycloak.storage.user.SynchronizationResult;
+
+/**
+ * Thread-safe counterpart of {@link SynchronizationResult}, shared by the import workers.
+ *
+ * It can also keep the outcome of each username, for the syncs of a list of usernames.
+ */
+public class SyncCounter {
+
+    public enum Outcome {
+        ADDED, UPDATED, UNCHANGED, FAILED, NOT_FOUND
+    }
+
+    private final AtomicInteger added = new AtomicInteger();
+    private final AtomicInteger updated = new AtomicInteger();
+    private final AtomicInteger removed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    private final Map<String, Outcome> outcomes;
+
+    public SyncCounter() {
+        this(false);
+    }
+
+    /**
+     * @param byUsername keeps the outcome of each username
+     */
+    public SyncCounter(boolean byUsername) {
+        this.outcomes = byUsername ? new ConcurrentHashMap<>() : null;
+    }
+
+    public void increaseAdded(String username) {
+        added.incrementAndGet();
+        track(username, Outcome.ADDED);
+    }
+
+    public void increaseUpdated(String username) {
+        updated.incrementAndGet();
+        track(username, Outcome.UPDATED);
+    }
+
+    public void increaseRemoved() {
+        removed.incrementAndGet();
+    }
+
+    public void increaseFailed(String username) {
+        failed.incrementAndGet();
+        track(username, Outcome.FAILED);
+    }
+
+    /**
+     * Unchanged users, counted as updated in the {@link SynchronizationResult}.
+     */
+    public void increaseSkipped(String username) {
+        skipped.incrementAndGet();
+        track(username, Outcome.UNCHANGED);
+    }
+
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Outcome of the username, {@link Outcome#NOT_FOUND} when it wasn't in the source rows.
+     */
+    public Outcome getOutcome(String username) {
+        Outcome outcome = outcomes == null || username == null ? null : outcomes.get(username);
+        return outcome == null ? Outcome.NOT_FOUND : outcome;
+    }
+
+    public SynchronizationResult toResult() {
+        SynchronizationResult result = new SynchronizationResult();
+        result.setAdded(added.get());
+        result.setUpdated(updated.get() + skipped.get());
+        result.setRemoved(removed.get());
+        result.setFailed(failed.get());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return toResult().toString() + " (" + skipped.get() + " unchanged)";
+    }
+
+    private void track(String username, Outcome outcome) {
+        if (outcomes != null && username != null) {
+            outcomes.put(username, outcome);
+        }
+    }
+}
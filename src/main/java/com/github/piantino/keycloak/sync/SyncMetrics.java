@@ -0,0 +1,192 @@
+package com.github.piantino.keycloak.sync;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.keycloak.storage.user.SynchronizationResult;
+
+/**
+ * Time spent in each phase of the syncs, with the imported rows and failures, by realm and sync type.
+ *
+ * The metrics are cumulative since the server start, kept in memory by each node.
+ */
+public class SyncMetrics {
+
+    private static final Map<String, SyncMetrics> BY_KEY = new ConcurrentHashMap<>();
+
+    public enum Phase {
+        /** Users query (with the bulk roles and groups queries) and reading of its rows */
+        USER_SELECT,
+        /** Roles query of the users */
+        ROLE_SELECT,
+        /** Groups query of the users */
+        GROUP_USER_SELECT,
+        /** Keycloak groups of the users */
+        GROUP_LOOKUP,
+        /** Keycloak user writes */
+        USER_IMPORT,
+        /** Users transaction commit */
+        USER_COMMIT,
+        /** Groups query and reading of its rows */
+        GROUP_SELECT,
+        /** Keycloak group writes, with the commit */
+        GROUP_IMPORT,
+        /** Keycloak group removals, with the commit */
+        GROUP_REMOVE,
+        /** Pages of the Keycloak users, to find the ones missing in the source */
+        USER_MISSING_SELECT,
+        /** Keycloak removals or disables of the users missing in the source, with the commit */
+        USER_REMOVE,
+        /** Outbox query and reading of its rows */
+        OUTBOX_SELECT;
+
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public enum Entity {
+        USER, GROUP;
+
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final String realmId;
+    private final SyncType syncType;
+
+    private final Map<Phase, LongAdder> phaseCount = new EnumMap<>(Phase.class);
+    private final Map<Phase, LongAdder> phaseNanos = new EnumMap<>(Phase.class);
+    private final Map<Entity, Map<String, LongAdder>> rows = new EnumMap<>(Entity.class);
+    private final Map<Entity, Map<String, LongAdder>> failures = new EnumMap<>(Entity.class);
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder runNanos = new LongAdder();
+    private volatile long lastRunNanos;
+    private volatile double lastRowsPerSecond;
+
+    private SyncMetrics(String realmId, SyncType syncType) {
+        this.realmId = realmId;
+        this.syncType = syncType;
+        for (Phase phase : Phase.values()) {
+            phaseCount.put(phase, new LongAdder());
+            phaseNanos.put(phase, new LongAdder());
+        }
+        for (Entity entity : Entity.values()) {
+            rows.put(entity, new ConcurrentHashMap<>());
+            failures.put(entity, new ConcurrentHashMap<>());
+        }
+    }
+
+    public static SyncMetrics get(String realmId, SyncType syncType) {
+        return BY_KEY.computeIfAbsent(realmId + "/" + syncType, key -> new SyncMetrics(realmId, syncType));
+    }
+
+    /**
+     * Records the time since {@code startNanos} and returns the current {@link System#nanoTime()}, to chain the
+     * next phase.
+     */
+    public long record(Phase phase, long startNanos) {
+        long now = System.nanoTime();
+        recordNanos(phase, now - startNanos);
+        return now;
+    }
+
+    public void recordNanos(Phase phase, long nanos) {
+        phaseCount.get(phase).increment();
+        phaseNanos.get(phase).add(nanos);
+    }
+
+    public void recordResult(Entity entity, SynchronizationResult result) {
+        increase(rows.get(entity), "added", result.getAdded());
+        increase(rows.get(entity), "updated", result.getUpdated());
+        increase(rows.get(entity), "removed", result.getRemoved());
+        increase(rows.get(entity), "failed", result.getFailed());
+    }
+
+    public void recordSkipped(Entity entity, long count) {
+        increase(rows.get(entity), "skipped", count);
+    }
+
+    public void recordFailure(Entity entity, Throwable e) {
+        increase(failures.get(entity), e.getClass().getName(), 1);
+    }
+
+    /**
+     * Finished run, {@code rows} are the source rows read.
+     */
+    public void recordRun(long startNanos, long rows) {
+        long nanos = System.nanoTime() - startNanos;
+        runs.increment();
+        runNanos.add(nanos);
+        lastRunNanos = nanos;
+        lastRowsPerSecond = nanos == 0 ? 0 : rows * 1e9 / nanos;
+    }
+
+    /**
+     * Writes the metrics of the realm in the Prometheus text format.
+     */
+    public static void writePrometheus(String realmId, PrometheusWriter out) {
+        SyncMetrics[] all = BY_KEY.values().stream().filter(m -> m.realmId.equals(realmId))
+                .sorted((a, b) -> a.syncType.compareTo(b.syncType)).toArray(SyncMetrics[]::new);
+
+        out.type("db_user_sync_phase_seconds", "summary", "Time spent in each phase of the sync");
+        for (SyncMetrics m : all) {
+            for (Phase phase : Phase.values()) {
+                String[] labels = m.labels("phase", phase.label());
+                out.sample("db_user_sync_phase_seconds_count", labels, m.phaseCount.get(phase).sum());
+                out.sample("db_user_sync_phase_seconds_sum", labels, m.phaseNanos.get(phase).sum() / 1e9);
+            }
+        }
+
+        out.type("db_user_sync_rows_total", "counter",
+                "Rows synchronized, by result (skipped rows are also counted as updated)");
+        for (SyncMetrics m : all) {
+            m.rows.forEach((entity, counters) -> counters.forEach((result, value) -> out.sample(
+                    "db_user_sync_rows_total", m.labels("entity", entity.label(), "result", result), value.sum())));
+        }
+
+        out.type("db_user_sync_failures_total", "counter", "Rows failed, by exception type");
+        for (SyncMetrics m : all) {
+            m.failures.forEach((entity, counters) -> counters.forEach((exception, value) -> out.sample(
+                    "db_user_sync_failures_total", m.labels("entity", entity.label(), "exception", exception),
+                    value.sum())));
+        }
+
+        out.type("db_user_sync_runs_seconds", "summary", "Duration of the syncs");
+        for (SyncMetrics m : all) {
+            out.sample("db_user_sync_runs_seconds_count", m.labels(), m.runs.sum());
+            out.sample("db_user_sync_runs_seconds_sum", m.labels(), m.runNanos.sum() / 1e9);
+        }
+
+        out.type("db_user_sync_last_run_seconds", "gauge", "Duration of the last sync");
+        for (SyncMetrics m : all) {
+            out.sample("db_user_sync_last_run_seconds", m.labels(), m.lastRunNanos / 1e9);
+        }
+
+        out.type("db_user_sync_last_rows_per_second", "gauge", "Source rows read per second by the last sync");
+        for (SyncMetrics m : all) {
+            out.sample("db_user_sync_last_rows_per_second", m.labels(), m.lastRowsPerSecond);
+        }
+    }
+
+    private String[] labels(String... extra) {
+        String[] labels = new String[4 + extra.length];
+        labels[0] = "realm";
+        labels[1] = realmId;
+        labels[2] = "sync_type";
+        labels[3] = syncType.name().toLowerCase(Locale.ROOT);
+        System.arraycopy(extra, 0, labels, 4, extra.length);
+        return labels;
+    }
+
+    private static void increase(Map<String, LongAdder> counters, String key, long value) {
+        if (value > 0) {
+            counters.computeIfAbsent(key, k -> new LongAdder()).add(value);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.github.piantino.keycloak.sync;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.keycloak.storage.user.SynchronizationResult;
+
+/**
+ * Progress of a sync while it runs, kept with the last finished full and since syncs of each realm.
+ *
+ * A sync has stages (groups, then users), each one with its own counter of source rows read.
+ *
+ * Kept in the node running the sync: it's followed and cancelled only in that node.
+ */
+public class SyncProgress {
+
+    public static final int HISTORY_SIZE = 20;
+
+    /**
+     * The host name of this node, to reach the node of a sync.
+     */
+    public static final String NODE = getHostName();
+
+    private static final Map<String, SyncProgress> RUNNING = new ConcurrentHashMap<>();
+    private static final Map<String, Deque<SyncProgress>> HISTORY = new ConcurrentHashMap<>();
+
+    public enum Status {
+        RUNNING, FINISHED, CANCELLED, FAILED
+    }
+
+    private final String importId;
+    private final String realmId;
+    private final SyncType syncType;
+    private final long startedAt = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    private volatile Status status = Status.RUNNING;
+    private volatile String stage;
+    private volatile long stageStartNanos = startNanos;
+    private volatile float total = -1;
+    private volatile int counter;
+    private volatile long durationNanos;
+    private volatile SynchronizationResult result;
+    private volatile String error;
+    private volatile boolean cancelled;
+
+    private SyncProgress(String importId, String realmId, SyncType syncType) {
+        this.importId = importId;
+        this.realmId = realmId;
+        this.syncType = syncType;
+    }
+
+    public static synchronized SyncProgress start(String importId, String realmId, SyncType syncType) {
+        SyncProgress progress = new SyncProgress(importId, realmId, syncType);
+        RUNNING.put(importId, progress);
+        return progress;
+    }
+
+    /**
+     * Starts a full or since sync only when there is no other one running in the realm, otherwise returns null.
+     */
+    public static synchronized SyncProgress startExclusive(String importId, String realmId, SyncType syncType) {
+        boolean running = RUNNING.values().stream()
+                .anyMatch(p -> p.realmId.equals(realmId) && p.syncType.isBulk());
+        return running ? null : start(importId, realmId, syncType);
+    }
+
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * Running or in the history, null when not found.
+     */
+    public static SyncProgress find(String realmId, String importId) {
+        SyncProgress progress = RUNNING.get(importId);
+        if (progress != null) {
+            return progress.realmId.equals(realmId) ? progress : null;
+        }
+        return getHistory(realmId).stream().filter(p -> p.importId.equals(importId)).findFirst().orElse(null);
+    }
+
+    public static List<SyncProgress> getRunning(String realmId) {
+        return RUNNING.values().stream().filter(p -> p.realmId.equals(realmId))
+                .sorted((a, b) -> Long.compare(a.startedAt, b.startedAt)).collect(Collectors.toList());
+    }
+
+    /**
+     * Finished syncs, the most recent first.
+     */
+    public static List<SyncProgress> getHistory(String realmId) {
+        Deque<SyncProgress> history = HISTORY.get(realmId);
+        if (history == null) {
+            return new ArrayList<>();
+        }
+        synchronized (history) {
+            return new ArrayList<>(history);
+        }
+    }
+
+    /**
+     * @param total rows of the stage, -1 when unknown
+     */
+    public void stage(String stage, float total) {
+        this.stage = stage;
+        this.total = total;
+        this.counter = 0;
+        this.stageStartNanos = System.nanoTime();
+    }
+
+    public void setCounter(int counter) {
+        this.counter = counter;
+    }
+
+    public void finish(SynchronizationResult result) {
+        this.result = result;
+        end(cancelled ? Status.CANCELLED : Status.FINISHED);
+    }
+
+    /**
+     * Asks the sync to stop between batches, the batches already started are still imported.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void fail(Throwable e) {
+        this.error = e.getMessage();
+        end(Status.FAILED);
+    }
+
+    /**
+     * Fails the sync unless it ended, when an {@link Error} stopped it: another bulk sync can start.
+     */
+    public void failIfRunning() {
+        if (status == Status.RUNNING) {
+            this.error = "Stopped without result";
+            end(Status.FAILED);
+        }
+    }
+
+    private void end(Status status) {
+        this.durationNanos = System.nanoTime() - startNanos;
+        this.status = status;
+        RUNNING.remove(importId);
+
+        // Username and outbox syncs would push the full syncs out of the history
+        if (!syncType.isBulk()) {
+            return;
+        }
+        Deque<SyncProgress> history = HISTORY.computeIfAbsent(realmId, key -> new ArrayDeque<>());
+        synchronized (history) {
+            history.addFirst(this);
+            while (history.size() > HISTORY_SIZE) {
+                history.removeLast();
+            }
+        }
+    }
+
+    public String getImportId() {
+        return importId;
+    }
+
+    public SyncType getSyncType() {
+        return syncType;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getDurationMillis() {
+        long nanos = status == Status.RUNNING ? System.nanoTime() - startNanos : durationNanos;
+        return nanos / 1_000_000;
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    public float getTotal() {
+        return total;
+    }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    /**
+     * Source rows read per second in the current stage, or in the last one when finished.
+     */
+    public double getRowsPerSecond() {
+        long end = status == Status.RUNNING ? System.nanoTime() : startNanos + durationNanos;
+        long nanos = end - stageStartNanos;
+        return nanos <= 0 ? 0 : counter * 1e9 / nanos;
+    }
+
+    /**
+     * Seconds to finish the current stage, -1 when unknown.
+     */
+    public long getEtaSeconds() {
+        double rate = getRowsPerSecond();
+        if (status != Status.RUNNING || total < 0 || rate <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, total - counter) / rate);
+    }
+
+    public SynchronizationResult getResult() {
+        return result;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.piantino.keycloak.sync;
+
+public enum SyncType {
+    FULL, SINCE, SINGLE, USERNAMES, OUTBOX, SHARD;
+
+    /**
+     * Sync of usernames requested explicitly, they are always imported.
+     */
+    public boolean isExplicit() {
+        return this == SINGLE || this == USERNAMES;
+    }
+
+    /**
+     * Full or since sync, one at a time in a realm and kept in the history.
+     */
+    public boolean isBulk() {
+        return this == FULL || this == SINCE;
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.piantino.keycloak.sync;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A user read from the source database with its roles and group gids.
+ */
+public class UserRow {
+
+    private final String username;
+    private final Map<String, Object> data;
+    private final List<String> roles;
+    private final List<String> gids;
+    private final boolean compared;
+
+    /**
+     * @param compared the user is imported only when it differs in Keycloak
+     */
+    public UserRow(String username, Map<String, Object> data, List<String> roles, List<String> gids,
+            boolean compared) {
+        this.username = username;
+        this.data = data;
+        this.roles = roles;
+        this.gids = gids;
+        this.compared = compared;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public Map<String, Object> getData() {
+        return data;
+    }
+
+    public List<String> getRoles() {
+        return roles;
+    }
+
+    public List<String> getGids() {
+        return gids;
+    }
+
+    public boolean isCompared() {
+        return compared;
+    }
+}
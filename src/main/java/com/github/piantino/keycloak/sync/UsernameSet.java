@@ -0,0 +1,51 @@
+package com.github.piantino.keycloak.sync;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Usernames read from the source by a full sync, to find the users no longer in it. Only a 64 bits hash of each
+ * username is kept (8 bytes by user), sorted once on the first lookup.
+ *
+ * A hash collision makes a missing user look present, so the user is kept: the safe side. The usernames are in lower
+ * case, like the ones of Keycloak.
+ */
+public class UsernameSet {
+
+    private long[] hashes = new long[1024];
+    private int size;
+    private boolean sorted = true;
+
+    public synchronized void add(String username) {
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        hashes[size++] = key(username);
+        sorted = false;
+    }
+
+    public synchronized boolean contains(String username) {
+        if (!sorted) {
+            Arrays.sort(hashes, 0, size);
+            sorted = true;
+        }
+        return Arrays.binarySearch(hashes, 0, size, key(username)) >= 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * FNV-1a hash of the username in lower case.
+     */
+    static long key(String username) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : username.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
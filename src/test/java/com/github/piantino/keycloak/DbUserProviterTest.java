@@ -2,10 +2,12 @@ package com.github.piantino.keycloak;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertIterableEquals;
-import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.File;
@@ -42,6 +44,7 @@ import org.keycloak.common.VerificationException;
 import org.keycloak.representations.AccessTokenResponse;
 import org.keycloak.representations.IDToken;
 import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.ComponentRepresentation;
 import org.keycloak.representations.idm.GroupRepresentation;
 import org.keycloak.representations.idm.SynchronizationResultRepresentation;
 import org.keycloak.representations.idm.UserRepresentation;
@@ -58,8 +61,13 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.github.piantino.keycloak.DbUserProvider.Column;
 import com.github.piantino.keycloak.rest.DbUserResourceApi;
+import com.github.piantino.keycloak.rest.MetricsRepresentation;
+import com.github.piantino.keycloak.rest.SyncRepresentation;
+import com.github.piantino.keycloak.sync.SyncCounter.Outcome;
 
 import dasniko.testcontainers.keycloak.KeycloakContainer;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.Response;
 
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
@@ -422,11 +430,348 @@ public class DbUserProviterTest {
         public void databaseMetrics() throws URISyntaxException {
                 String apiPath = keycloak.getAuthServerUrl() + "/admin/realms/db-user-realm/db-user/";
                 DbUserResourceApi resource = client.proxy(DbUserResourceApi.class, new URI(apiPath));
-                String metrics = resource.metrics();
+                MetricsRepresentation metrics = resource.metrics();
 
-                System.out.println(metrics);
+                assertNotNull(metrics.getPool());
+                assertTrue(metrics.getPool().getCreated() > 0, "Pool metrics enabled");
+                assertTrue(metrics.getHistory().size() > 0, "Sync history");
+                assertEquals("FINISHED", metrics.getHistory().get(0).getStatus());
+        }
+
+        @Test
+        @Order(12)
+        public void prometheusMetrics() throws URISyntaxException {
+                String apiPath = keycloak.getAuthServerUrl() + "/admin/realms/db-user-realm/db-user/";
+                DbUserResourceApi resource = client.proxy(DbUserResourceApi.class, new URI(apiPath));
+                String metrics = resource.prometheus();
+
+                assertTrue(metrics.contains("# TYPE db_user_sync_phase_seconds summary"), metrics);
+                assertTrue(metrics.contains("db_user_pool_active_count{realm="), metrics);
+        }
+
+        @Test
+        @Order(13)
+        public void syncAllJob() throws URISyntaxException, InterruptedException {
+                String apiPath = keycloak.getAuthServerUrl() + "/admin/realms/db-user-realm/db-user/";
+                DbUserResourceApi resource = client.proxy(DbUserResourceApi.class, new URI(apiPath));
+
+                SyncRepresentation job = resource.syncAll();
+                assertNotNull(job.getImportId());
+
+                for (int i = 0; i < 50 && "RUNNING".equals(job.getStatus()); i++) {
+                        Thread.sleep(200);
+                        job = resource.job(job.getImportId());
+                }
+                assertEquals("FINISHED", job.getStatus());
+                assertTrue(job.getUpdated() > 0, "Updated");
+        }
+
+        @Test
+        @Order(14)
+        public void syncUsernames() throws URISyntaxException {
+                String apiPath = keycloak.getAuthServerUrl() + "/admin/realms/db-user-realm/db-user/";
+                DbUserResourceApi resource = client.proxy(DbUserResourceApi.class, new URI(apiPath));
+
+                JdbcDatabaseDelegate containerDelegate = new JdbcDatabaseDelegate(postgres, "");
+                ScriptUtils.runInitScript(containerDelegate, "usernames-script.sql");
+
+                Map<String, Outcome> outcomes = resource.syncUsernames(Arrays.asList("hank", "sheila", "nobody"));
+
+                assertEquals(Outcome.UNCHANGED, outcomes.get("hank"));
+                assertEquals(Outcome.UPDATED, outcomes.get("sheila"));
+                assertEquals(Outcome.NOT_FOUND, outcomes.get("nobody"));
+
+                // The same outcomes by the single user query
+                Map<String, String> config = new HashMap<>();
+                config.put("syncUsernamesSql", null);
+                Map<String, String> previous = updateProvider(config);
+                try {
+                        outcomes = resource.syncUsernames(Arrays.asList("hank", "sheila", "nobody"));
+
+                        assertEquals(Outcome.UNCHANGED, outcomes.get("hank"));
+                        assertEquals(Outcome.UNCHANGED, outcomes.get("sheila"));
+                        assertEquals(Outcome.NOT_FOUND, outcomes.get("nobody"));
+                } finally {
+                        updateProvider(previous);
+                }
+        }
+
+        @Test
+        @Order(15)
+        public void importUserOnLogin() {
+                JdbcDatabaseDelegate containerDelegate = new JdbcDatabaseDelegate(postgres, "");
+                ScriptUtils.runInitScript(containerDelegate, "lookup-script.sql");
+
+                Map<String, Object> credentials = new HashMap<String, Object>();
+                credentials.put("secret", "SoBy2IbD8fYPPP2iM6sNNqVcrkl57Qie");
+                Configuration configuration = new Configuration(keycloak.getAuthServerUrl(), "db-user-realm", "my-app",
+                                credentials, null);
+
+                AuthzClient authzClient = AuthzClient.create(configuration);
+
+                // Opt-in
+                try {
+                        authzClient.obtainAccessToken("venger", "WrongPassword");
+                        fail("Expected invalid credential");
+                } catch (HttpResponseException e) {
+                        assertEquals(400, e.getStatusCode(), "Status HTTP");
+                }
+                assertEquals(0, realm.users().search("venger", true).size(), "Not imported by default");
+
+                // The single user queries have no temp_password, the login fails but the user is imported
+                Map<String, String> previous = updateProvider(Map.of("lookupImport", "true"));
+                try {
+                        for (String login : Arrays.asList("venger", "tiamat@dragon.com", "nobody")) {
+                                try {
+                                        authzClient.obtainAccessToken(login, "WrongPassword");
+                                        fail("Expected invalid credential");
+                                } catch (HttpResponseException e) {
+                                        assertEquals(400, e.getStatusCode(), "Status HTTP");
+                                }
+                        }
+                } finally {
+                        updateProvider(previous);
+                }
+
+                assertEquals(1, realm.users().search("venger", true).size(), "Imported by username");
+                assertEquals(1, realm.users().search("tiamat", true).size(), "Imported by e-mail");
+                assertEquals(0, realm.users().search("nobody", true).size(), "Not in the source");
+        }
+
+        @Test
+        @Order(16)
+        public void validateSourcePassword() throws VerificationException {
+                JdbcDatabaseDelegate containerDelegate = new JdbcDatabaseDelegate(postgres, "");
+                ScriptUtils.runInitScript(containerDelegate, "password-script.sql");
+
+                Map<String, Object> credentials = new HashMap<String, Object>();
+                credentials.put("secret", "SoBy2IbD8fYPPP2iM6sNNqVcrkl57Qie");
+                Configuration configuration = new Configuration(keycloak.getAuthServerUrl(), "db-user-realm", "my-app",
+                                credentials, null);
+
+                AuthzClient authzClient = AuthzClient.create(configuration);
+
+                // The second login is checked by the cache of verified passwords
+                for (int i = 0; i < 2; i++) {
+                        AccessTokenResponse response = authzClient.obtainAccessToken("venger", "ShadowDemon");
+
+                        IDToken token = TokenVerifier.create(response.getToken(), IDToken.class).getToken();
+                        assertEquals("venger", token.getPreferredUsername(), "Username");
+                }
 
-                assertNotEquals("Metrics Disabled", metrics);
+                try {
+                        authzClient.obtainAccessToken("venger", "WrongPassword");
+                        fail("Expected invalid credential");
+                } catch (HttpResponseException e) {
+                        assertEquals(400, e.getStatusCode(), "Status HTTP");
+                }
+        }
+
+        @Test
+        @Order(17)
+        public void importUserFromOutbox() throws InterruptedException {
+                JdbcDatabaseDelegate containerDelegate = new JdbcDatabaseDelegate(postgres, "");
+                ScriptUtils.runInitScript(containerDelegate, "outbox-script.sql");
+
+                // Polled every second
+                List<UserRepresentation> users = realm.users().search("kelek", true);
+                for (int i = 0; i < 30 && users.isEmpty(); i++) {
+                        Thread.sleep(1000);
+                        users = realm.users().search("kelek", true);
+                }
+                assertEquals(1, users.size(), "Imported from the outbox");
+        }
+
+        @Test
+        @Order(18)
+        public void rejectBulkQueryWithoutUserQuery() {
+                ComponentRepresentation provider = realm.components().component(USER_PROVIDER_ID).toRepresentation();
+                provider.getConfig().putSingle("syncRoleBulkSql", "SELECT username, name FROM roles ORDER BY username");
+                provider.getConfig().remove("syncRoleSql");
+
+                assertThrows(BadRequestException.class,
+                                () -> realm.components().component(USER_PROVIDER_ID).update(provider));
+        }
+
+        @Test
+        @Order(18)
+        public void rejectArrayUsernamesQueryWithoutArrays() {
+                ComponentRepresentation provider = realm.components().component(USER_PROVIDER_ID).toRepresentation();
+                provider.getConfig().putSingle("jdbcUrl", "jdbc:mysql://mysql:3306/test-db");
+
+                assertThrows(BadRequestException.class,
+                                () -> realm.components().component(USER_PROVIDER_ID).update(provider));
+        }
+
+        @Test
+        @Order(19)
+        public void importUserChangedInKeycloakSkippingUnchanged() {
+                Map<String, String> previous = updateProvider(Map.of("syncSkipUnchanged", "true"));
+                try {
+                        realm.userStorage().syncUsers(USER_PROVIDER_ID, "triggerFullSync");
+
+                        // Unchanged in the source
+                        UserRepresentation bobby = realm.users().search("bobby", true).get(0);
+                        realm.users().get(bobby.getId()).remove();
+
+                        UserRepresentation diana = realm.users().search("diana", true).get(0);
+                        diana.setFirstName("Edited");
+                        realm.users().get(diana.getId()).update(diana);
+
+                        SynchronizationResultRepresentation result = realm.userStorage().syncUsers(USER_PROVIDER_ID,
+                                        "triggerFullSync");
+
+                        assertEquals(1, result.getAdded(), "Added");
+                        assertEquals(1, realm.users().search("bobby", true).size(), "Removed user imported");
+                        assertEquals("Diana", realm.users().search("diana", true).get(0).getFirstName(),
+                                        "Edited user imported");
+                } finally {
+                        updateProvider(previous);
+                }
+        }
+
+        @Test
+        @Order(20)
+        public void keepMissingUsersWhenTheReadFails() {
+                JdbcDatabaseDelegate containerDelegate = new JdbcDatabaseDelegate(postgres, "");
+                ScriptUtils.runInitScript(containerDelegate, "missing-script.sql");
+                realm.userStorage().syncUsers(USER_PROVIDER_ID, "triggerFullSync");
+                assertTrue(realm.users().search("kobold", true).get(0).isEnabled(), "Imported");
+
+                ScriptUtils.runInitScript(containerDelegate, "missing-script2.sql");
+                String sql = "SELECT username, email, email_verified, first_name, last_name, enabled, temp_password, "
+                                + "required_actions, updated, ability FROM db_user_users";
+
+                // No user read, like a broken query
+                Map<String, String> previous = updateProvider(
+                                Map.of("syncMissingUsers", "remove", "syncSql", sql + " WHERE false"));
+                try {
+                        realm.userStorage().syncUsers(USER_PROVIDER_ID, "triggerFullSync");
+                        assertEquals(1, realm.users().search("kobold", true).size(), "Kept on empty read");
+
+                        // Fails in the middle of the rows
+                        updateProvider(Map.of("syncSql", sql.replace(" FROM", ", 1 / (CASE WHEN username = 'sheila' "
+                                        + "THEN 0 ELSE 1 END) AS broken FROM") + " ORDER BY username"));
+                        try {
+                                realm.userStorage().syncUsers(USER_PROVIDER_ID, "triggerFullSync");
+                        } catch (WebApplicationException e) {
+                                // The failed sync can be returned as an error
+                        }
+                        assertEquals(1, realm.users().search("kobold", true).size(), "Kept on failed read");
+                        assertTrue(realm.users().search("kobold", true).get(0).isEnabled(), "Kept enabled");
+                } finally {
+                        updateProvider(previous);
+                }
+        }
+
+        @Test
+        @Order(21)
+        public void disableAndRemoveMissingUsers() {
+                Map<String, String> previous = updateProvider(Map.of("syncMissingUsers", "disable"));
+                try {
+                        SynchronizationResultRepresentation result = realm.userStorage().syncUsers(USER_PROVIDER_ID,
+                                        "triggerFullSync");
+
+                        assertEquals(0, result.getRemoved(), "Removed");
+                        List<UserRepresentation> users = realm.users().search("kobold", true);
+                        assertEquals(1, users.size(), "Disabled user kept");
+                        assertFalse(users.get(0).isEnabled(), "Disabled");
+                        assertTrue(realm.users().search("sheila", true).get(0).isEnabled(), "User in the source");
+                        assertTrue(realm.users().search("strongbow", true).get(0).isEnabled(),
+                                        "User in the source in mixed case");
+
+                        updateProvider(Map.of("syncMissingUsers", "remove"));
+                        result = realm.userStorage().syncUsers(USER_PROVIDER_ID, "triggerFullSync");
+
+                        assertEquals(1, result.getRemoved(), "Removed");
+                        assertEquals(0, realm.users().search("kobold", true).size(), "Removed user");
+                        assertEquals(1, realm.users().search("sheila", true).size(), "User in the source");
+                        assertEquals(1, realm.users().search("strongbow", true).size(),
+                                        "User in the source in mixed case");
+                } finally {
+                        updateProvider(previous);
+                }
+        }
+
+        @Test
+        @Order(22)
+        public void importTempPasswordWithLookupImport() throws VerificationException {
+                JdbcDatabaseDelegate containerDelegate = new JdbcDatabaseDelegate(postgres, "");
+                ScriptUtils.runInitScript(containerDelegate, "temp-password-script.sql");
+
+                // The lookups of the sync don't import the new user again without its temp_password
+                Map<String, String> previous = updateProvider(Map.of("lookupImport", "true"));
+                try {
+                        SynchronizationResultRepresentation result = realm.userStorage().syncUsers(USER_PROVIDER_ID,
+                                        "triggerFullSync");
+                        assertEquals(1, result.getAdded(), "Added");
+                } finally {
+                        updateProvider(previous);
+                }
+
+                Map<String, Object> credentials = new HashMap<String, Object>();
+                credentials.put("secret", "SoBy2IbD8fYPPP2iM6sNNqVcrkl57Qie");
+                Configuration configuration = new Configuration(keycloak.getAuthServerUrl(), "db-user-realm", "my-app",
+                                credentials, null);
+
+                AccessTokenResponse response = AuthzClient.create(configuration).obtainAccessToken("dungeon",
+                                "MagicalGifts");
+
+                IDToken token = TokenVerifier.create(response.getToken(), IDToken.class).getToken();
+                assertEquals("dungeon", token.getPreferredUsername(), "Username");
+        }
+
+        @Test
+        @Order(23)
+        public void importUsersByPagesAndResume() {
+                String sql = "SELECT username, email, email_verified, first_name, last_name, enabled, temp_password, "
+                                + "required_actions, updated, ability FROM db_user_users "
+                                + "WHERE ? IS NULL OR username > ? ORDER BY username";
+                Map<String, String> previous = updateProvider(Map.of("syncPageSql", sql, "syncPageSize", "2"));
+                try {
+                        // Without checkpoint, from the first page
+                        Stream.of("bobby", "venger").forEach(username -> realm.users()
+                                        .get(realm.users().search(username, true).get(0).getId()).remove());
+                        SynchronizationResultRepresentation result = realm.userStorage().syncUsers(USER_PROVIDER_ID,
+                                        "triggerFullSync");
+
+                        assertEquals(2, result.getAdded(), "Added");
+                        assertNull(realm.components().component(USER_PROVIDER_ID).toRepresentation().getConfig()
+                                        .getFirst("syncCheckpoint"), "Checkpoint removed at the end");
+
+                        // Like a sync stopped after the page of sheila
+                        Stream.of("bobby", "venger").forEach(username -> realm.users()
+                                        .get(realm.users().search(username, true).get(0).getId()).remove());
+                        updateProvider(Map.of("syncCheckpoint", "sheila"));
+                        result = realm.userStorage().syncUsers(USER_PROVIDER_ID, "triggerFullSync");
+
+                        assertEquals(1, result.getAdded(), "Added after the checkpoint");
+                        assertEquals(0, realm.users().search("bobby", true).size(), "Before the checkpoint");
+                        assertEquals(1, realm.users().search("venger", true).size(), "After the checkpoint");
+                        assertNull(realm.components().component(USER_PROVIDER_ID).toRepresentation().getConfig()
+                                        .getFirst("syncCheckpoint"), "Checkpoint removed at the end");
+                } finally {
+                        updateProvider(previous);
+                        realm.userStorage().syncUsers(USER_PROVIDER_ID, "triggerFullSync");
+                }
+        }
+
+        /**
+         * Sets the config of the provider, a null value removes it. Returns the previous values.
+         */
+        private Map<String, String> updateProvider(Map<String, String> config) {
+                ComponentRepresentation provider = realm.components().component(USER_PROVIDER_ID).toRepresentation();
+                Map<String, String> previous = new HashMap<>();
+                config.forEach((key, value) -> {
+                        previous.put(key, provider.getConfig().getFirst(key));
+                        if (value == null) {
+                                provider.getConfig().remove(key);
+                        } else {
+                                provider.getConfig().putSingle(key, value);
+                        }
+                });
+                realm.components().component(USER_PROVIDER_ID).update(provider);
+                return previous;
         }
 
         private void validateUserInGroups(String username, String... expected) {
@@ -449,6 +794,8 @@ public class DbUserProviterTest {
                 validateGroupAttr(grep, name, "attr1", attr1);
                 validateGroupAttr(grep, name, "attr2", attr2);
                 validateGroupAttr(grep, name, "attr3", attr3);
+                assertNotNull(grep.getAttributes().get(DbUserProviderFactory.GROUP_PROVIDER_ATTRIBUTE),
+                                "provider of " + name);
         }
 
         private GroupRepresentation getGroupByName(String name) {
@@ -0,0 +1,54 @@
+package com.github.piantino.keycloak.credential;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class VerifiedCredentialCacheTest {
+
+    private static final String HASH = "$pbkdf2-sha256$29000$c2FsdA$aGFzaA";
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    @Test
+    public void missesAChangedHashOrPassword() {
+        VerifiedCredentialCache verified = new VerifiedCredentialCache(1000, now::get);
+        verified.put("realm", "sheila", HASH, "CloakofInvisibility");
+
+        assertTrue(verified.contains("realm", "sheila", HASH, "CloakofInvisibility"));
+        assertFalse(verified.contains("realm", "sheila", HASH + "x", "CloakofInvisibility"), "Changed hash");
+        assertFalse(verified.contains("realm", "sheila", HASH, "WrongPassword"), "Other password");
+        assertFalse(verified.contains("realm", "hank", HASH, "CloakofInvisibility"), "Other user");
+        assertFalse(verified.contains("other", "sheila", HASH, "CloakofInvisibility"), "Other realm");
+
+        // The values aren't joined without their lengths
+        assertFalse(verified.contains("realms", "heila", HASH, "CloakofInvisibility"));
+    }
+
+    @Test
+    public void expiresAfterTheTtl() {
+        VerifiedCredentialCache verified = new VerifiedCredentialCache(1000, now::get);
+        verified.put("realm", "sheila", HASH, "CloakofInvisibility");
+
+        now.addAndGet(1001);
+        assertFalse(verified.contains("realm", "sheila", HASH, "CloakofInvisibility"));
+        assertEquals(0, verified.size());
+    }
+
+    @Test
+    public void isBounded() {
+        VerifiedCredentialCache verified = new VerifiedCredentialCache(1000, now::get);
+        for (int i = 0; i < VerifiedCredentialCache.MAX_SIZE; i++) {
+            verified.put("realm", "user" + i, HASH, "password");
+        }
+        now.addAndGet(1001);
+        verified.put("realm", "sheila", HASH, "CloakofInvisibility");
+
+        assertEquals(1, verified.size(), "Expired entries dropped");
+        assertTrue(verified.contains("realm", "sheila", HASH, "CloakofInvisibility"));
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.piantino.keycloak.datasource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.agroal.api.AgroalDataSource;
+import io.agroal.api.AgroalPoolInterceptor;
+import io.agroal.api.configuration.supplier.AgroalDataSourceConfigurationSupplier;
+import io.agroal.api.security.NamePrincipal;
+import io.agroal.api.security.SimplePassword;
+
+public class BorrowedConnectionsTest {
+
+    @Test
+    public void countsTheBorrowedConnections() throws SQLException {
+        try (AgroalDataSource ds = AgroalDataSource.from(new AgroalDataSourceConfigurationSupplier()
+                .connectionPoolConfiguration(pool -> pool.maxSize(3)
+                        .connectionFactoryConfiguration(factory -> factory.jdbcUrl("jdbc:h2:mem:borrowed")
+                                .principal(new NamePrincipal("sa")).credential(new SimplePassword("")))))) {
+            ds.setPoolInterceptors(List.of(new BorrowedConnections()));
+            assertEquals(0, BorrowedConnections.get(ds));
+
+            try (Connection first = ds.getConnection()) {
+                try (Connection second = ds.getConnection()) {
+                    assertEquals(2, BorrowedConnections.get(ds));
+                }
+                assertEquals(1, BorrowedConnections.get(ds));
+            }
+            assertEquals(0, BorrowedConnections.get(ds));
+        }
+    }
+
+    @Test
+    public void isZeroWithoutTheInterceptor() throws SQLException {
+        try (AgroalDataSource ds = AgroalDataSource.from(new AgroalDataSourceConfigurationSupplier()
+                .connectionPoolConfiguration(pool -> pool.maxSize(1)
+                        .connectionFactoryConfiguration(factory -> factory.jdbcUrl("jdbc:h2:mem:borrowed"))));
+                Connection con = ds.getConnection()) {
+            ds.setPoolInterceptors(List.of(new AgroalPoolInterceptor() {
+            }));
+            assertEquals(0, BorrowedConnections.get(ds));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.piantino.keycloak.datasource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.junit.jupiter.api.Test;
+
+public class StatementCacheTest {
+
+    @Test
+    public void preparesOnceBySql() throws SQLException {
+        try (Connection con = DriverManager.getConnection("jdbc:h2:mem:statements", "sa", "")) {
+            PreparedStatement first;
+            PreparedStatement other;
+
+            try (StatementCache statements = new StatementCache(con)) {
+                first = statements.prepare("SELECT ? + 1");
+                other = statements.prepare("SELECT ? + 2");
+
+                assertSame(first, statements.prepare("SELECT ? + 1"));
+                assertNotSame(first, other);
+
+                for (int i = 0; i < 3; i++) {
+                    PreparedStatement ps = statements.prepare("SELECT ? + 1");
+                    ps.setInt(1, i);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                        assertEquals(i + 1, rs.getInt(1));
+                    }
+                }
+            }
+            assertTrue(first.isClosed());
+            assertTrue(other.isClosed());
+            assertFalse(con.isClosed());
+        }
+    }
+
+    @Test
+    public void closesTheOtherStatementsOnError() throws SQLException {
+        try (Connection con = DriverManager.getConnection("jdbc:h2:mem:statements", "sa", "")) {
+            StatementCache statements = new StatementCache(con);
+            PreparedStatement ps = statements.prepare("SELECT 1");
+            con.close();
+
+            // Closed with the connection, close again doesn't fail
+            statements.close();
+            assertTrue(ps.isClosed());
+        }
+    }
+}
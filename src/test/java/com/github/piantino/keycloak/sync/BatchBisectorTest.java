@@ -0,0 +1,87 @@
+package com.github.piantino.keycloak.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+
+public class BatchBisectorTest {
+
+    @Test
+    public void runsTheBatchOnce() {
+        List<List<String>> jobs = new ArrayList<>();
+
+        BatchBisector.run("test", List.of("a", "b", "c"), rows -> jobs.add(new ArrayList<>(rows)),
+                (row, e) -> fail("No failure"));
+
+        assertEquals(List.of(List.of("a", "b", "c")), jobs);
+    }
+
+    @Test
+    public void isolatesTheFailingRows() {
+        List<String> committed = new ArrayList<>();
+        Map<String, Throwable> failed = new LinkedHashMap<>();
+        List<Integer> sizes = new ArrayList<>();
+
+        BatchBisector.run("test", List.of("a", "bad1", "b", "c", "d", "e", "bad2", "f"), rows -> {
+            sizes.add(rows.size());
+            if (rows.stream().anyMatch(row -> row.startsWith("bad"))) {
+                throw new IllegalStateException("bad row");
+            }
+            committed.addAll(rows);
+        }, failed::put);
+
+        assertEquals(List.of("a", "b", "c", "d", "e", "f"), committed);
+        assertEquals(List.of("bad1", "bad2"), new ArrayList<>(failed.keySet()));
+        assertEquals(IllegalStateException.class, failed.get("bad1").getClass());
+        // 8, 4 + 4, 2 + 2 each, 1 + 1 each
+        assertEquals(List.of(8, 4, 2, 1, 1, 2, 4, 2, 2, 1, 1), sizes);
+    }
+
+    @Test
+    public void ignoresEmptyBatch() {
+        BatchBisector.run("test", List.<String>of(), rows -> fail("No job"), (row, e) -> fail("No failure"));
+    }
+
+    @Test
+    public void commitsTheRowsOfBatchMarkedForRollback() {
+        List<String> committed = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+
+        BatchBisector.run("test", List.of("a", "b", "bad", "c", "d"), rows -> {
+            // A row marking the transaction for rollback without throwing, like a listener of Keycloak
+            AtomicBoolean rollbackOnly = new AtomicBoolean();
+            KeycloakSession session = session(rollbackOnly);
+
+            for (String row : rows) {
+                if (row.equals("bad")) {
+                    rollbackOnly.set(true);
+                }
+                BatchBisector.checkRollbackOnly(session, row);
+            }
+            committed.addAll(rows);
+        }, (row, e) -> failed.add(row));
+
+        assertEquals(List.of("a", "b", "c", "d"), committed);
+        assertEquals(List.of("bad"), failed);
+    }
+
+    private static KeycloakSession session(AtomicBoolean rollbackOnly) {
+        KeycloakTransactionManager tm = (KeycloakTransactionManager) Proxy.newProxyInstance(
+                BatchBisectorTest.class.getClassLoader(), new Class<?>[] { KeycloakTransactionManager.class },
+                (proxy, method, args) -> method.getName().equals("getRollbackOnly") ? rollbackOnly.get() : null);
+
+        return (KeycloakSession) Proxy.newProxyInstance(BatchBisectorTest.class.getClassLoader(),
+                new Class<?>[] { KeycloakSession.class },
+                (proxy, method, args) -> method.getName().equals("getTransactionManager") ? tm : null);
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.piantino.keycloak.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class ExpiringKeysTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    @Test
+    public void expiresAfterTheTtl() {
+        ExpiringKeys keys = new ExpiringKeys(1000, 10, now::get);
+        keys.put("venger");
+
+        now.addAndGet(1000);
+        assertTrue(keys.contains("venger"));
+        assertFalse(keys.contains("tiamat"));
+
+        now.addAndGet(1);
+        assertFalse(keys.contains("venger"));
+        assertEquals(0, keys.size(), "Expired key dropped");
+
+        // Put again, a new TTL
+        keys.put("venger");
+        now.addAndGet(500);
+        keys.put("venger");
+        now.addAndGet(800);
+        assertTrue(keys.contains("venger"));
+    }
+
+    @Test
+    public void dropsTheExpiredKeysWhenFull() {
+        ExpiringKeys keys = new ExpiringKeys(1000, 3, now::get);
+        keys.put("bobby");
+        keys.put("eric");
+        now.addAndGet(600);
+        keys.put("diana");
+
+        now.addAndGet(500);
+        keys.put("hank");
+
+        assertEquals(2, keys.size());
+        assertFalse(keys.contains("bobby"));
+        assertFalse(keys.contains("eric"));
+        assertTrue(keys.contains("diana"));
+        assertTrue(keys.contains("hank"));
+    }
+
+    @Test
+    public void dropsTheOldestKeyWhenFullWithoutExpired() {
+        ExpiringKeys keys = new ExpiringKeys(1000, 3, now::get);
+        keys.put("bobby");
+        keys.put("eric");
+        keys.put("diana");
+        // Put again, the newest one
+        keys.put("bobby");
+
+        keys.put("hank");
+
+        assertEquals(3, keys.size());
+        assertFalse(keys.contains("eric"));
+        assertTrue(keys.contains("bobby"));
+        assertTrue(keys.contains("diana"));
+        assertTrue(keys.contains("hank"));
+    }
+
+    @Test
+    public void boundsTheMissCache() {
+        MissCache misses = new MissCache(60_000);
+        misses.put("realm/syncOneSql/venger");
+        for (int i = 0; i < MissCache.MAX_SIZE; i++) {
+            misses.put("realm/syncOneSql/user" + i);
+        }
+        assertEquals(MissCache.MAX_SIZE, misses.size());
+        assertFalse(misses.contains("realm/syncOneSql/venger"), "The oldest");
+        assertTrue(misses.contains("realm/syncOneSql/user0"));
+        assertTrue(misses.contains("realm/syncOneSql/user" + (MissCache.MAX_SIZE - 1)));
+    }
+}
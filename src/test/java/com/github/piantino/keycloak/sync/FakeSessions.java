@@ -0,0 +1,118 @@
+package com.github.piantino.keycloak.sync;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.SingleUseObjectProvider;
+
+/**
+ * Sessions of Keycloak sharing the single use objects, like the nodes of a cluster. The entries expire by their
+ * lifespan in seconds on a clock moved by the tests. There is no realm.
+ */
+final class FakeSessions {
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong now = new AtomicLong();
+
+    /**
+     * Moves the clock of the entries.
+     */
+    void advance(long seconds) {
+        now.addAndGet(seconds * 1000);
+    }
+
+    KeycloakSessionFactory sessionFactory() {
+        return proxy(KeycloakSessionFactory.class, (p, method, args) -> switch (method.getName()) {
+            case "create" -> session();
+            default -> fallback(p, method, args);
+        });
+    }
+
+    KeycloakSession session() {
+        boolean[] state = new boolean[2];
+        KeycloakTransactionManager transaction = proxy(KeycloakTransactionManager.class,
+                (p, method, args) -> switch (method.getName()) {
+                    case "begin" -> state[0] = true;
+                    case "isActive" -> state[0];
+                    case "commit", "rollback" -> state[0] = false;
+                    case "setRollbackOnly" -> state[1] = true;
+                    case "getRollbackOnly" -> state[1];
+                    default -> fallback(p, method, args);
+                });
+        SingleUseObjectProvider singleUseObjects = singleUseObjects();
+        RealmProvider realms = proxy(RealmProvider.class, FakeSessions::fallback);
+        return proxy(KeycloakSession.class, (p, method, args) -> switch (method.getName()) {
+            case "getTransactionManager" -> transaction;
+            case "singleUseObjects" -> singleUseObjects;
+            case "realms" -> realms;
+            default -> fallback(p, method, args);
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private SingleUseObjectProvider singleUseObjects() {
+        return proxy(SingleUseObjectProvider.class, (p, method, args) -> {
+            long time = now.get();
+            entries.values().removeIf(entry -> entry.expiry <= time);
+            return switch (method.getName()) {
+                case "put" -> entries.put((String) args[0], new Entry(time + (Long) args[1] * 1000,
+                        (Map<String, String>) args[2]));
+                case "putIfAbsent" -> entries.putIfAbsent((String) args[0],
+                        new Entry(time + (Long) args[1] * 1000, Map.of())) == null;
+                case "get" -> {
+                    Entry entry = entries.get(args[0]);
+                    yield entry == null ? null : entry.notes;
+                }
+                case "contains" -> entries.containsKey(args[0]);
+                case "remove" -> {
+                    Entry entry = entries.remove(args[0]);
+                    yield entry == null ? null : entry.notes;
+                }
+                default -> fallback(p, method, args);
+            };
+        });
+    }
+
+    private record Entry(long expiry, Map<String, String> notes) {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(FakeSessions.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static Object fallback(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return method.getDeclaringClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+            default:
+                break;
+        }
+        if (method.isDefault()) {
+            return InvocationHandler.invokeDefault(proxy, method, args);
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.piantino.keycloak.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+public class GroupTreeTest {
+
+    @Test
+    public void ordersTheGroupsByLevel() {
+        GroupTree tree = new GroupTree("gid", "gid_parent");
+        tree.add(group("331", "33"));
+        tree.add(group("21", "2"));
+        tree.add(group("33", "3"));
+        tree.add(group("3", null));
+        tree.add(group("2", null));
+        tree.add(group("32", "3"));
+
+        assertEquals(List.of(List.of("3", "2"), List.of("21", "33", "32"), List.of("331")), gids(tree.getLevels()));
+        assertEquals(List.of(), tree.getCycles());
+    }
+
+    @Test
+    public void rootsAGroupWithParentOutOfTheRows() {
+        GroupTree tree = new GroupTree("gid", "gid_parent");
+        tree.add(group("21", "2"));
+        tree.add(group("211", "21"));
+
+        assertEquals(List.of(List.of("21"), List.of("211")), gids(tree.getLevels()));
+    }
+
+    @Test
+    public void replacesRepeatedGid() {
+        GroupTree tree = new GroupTree("gid", "gid_parent");
+        tree.add(group("1", null));
+        Map<String, String> renamed = group("1", null);
+        renamed.put("name", "renamed");
+        tree.add(renamed);
+
+        assertEquals(1, tree.size());
+        assertEquals("renamed", tree.getLevels().get(0).get(0).get("name"));
+    }
+
+    @Test
+    public void leavesTheCyclesOut() {
+        GroupTree tree = new GroupTree("gid", "gid_parent");
+        tree.add(group("1", null));
+        tree.add(group("a", "b"));
+        tree.add(group("b", "a"));
+        tree.add(group("c", "a"));
+        tree.add(group("self", "self"));
+
+        assertEquals(List.of(List.of("1")), gids(tree.getLevels()));
+        assertEquals(List.of("a", "b", "c", "self"), tree.getCycles().stream().map(data -> data.get("gid"))
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void walksDeepTreeWithoutRecursion() {
+        GroupTree tree = new GroupTree("gid", "gid_parent");
+        int depth = 100_000;
+        for (int i = depth - 1; i >= 0; i--) {
+            tree.add(group(String.valueOf(i), i == 0 ? null : String.valueOf(i - 1)));
+        }
+
+        List<List<Map<String, String>>> levels = tree.getLevels();
+
+        assertEquals(depth, levels.size());
+        assertEquals(String.valueOf(depth - 1), levels.get(depth - 1).get(0).get("gid"));
+    }
+
+    private static Map<String, String> group(String gid, String parent) {
+        Map<String, String> data = new HashMap<>();
+        data.put("gid", gid);
+        data.put("gid_parent", parent);
+        data.put("name", "group " + gid);
+        return data;
+    }
+
+    private static List<List<String>> gids(List<List<Map<String, String>>> levels) {
+        return levels.stream().map(level -> level.stream().map(data -> data.get("gid"))
+                .collect(Collectors.toList())).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.piantino.keycloak.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.piantino.keycloak.exception.DbUserProviderException;
+
+public class ImportExecutorTest {
+
+    @Test
+    public void runsAllTasksBeforeClose() {
+        AtomicInteger done = new AtomicInteger();
+        try (ImportExecutor executor = new ImportExecutor("test", 4)) {
+            for (int i = 0; i < 100; i++) {
+                executor.execute(done::incrementAndGet);
+            }
+        }
+        assertEquals(100, done.get());
+    }
+
+    @Test
+    public void runsInCallerWithoutWorkers() {
+        Thread caller = Thread.currentThread();
+        try (ImportExecutor executor = new ImportExecutor("test", 1)) {
+            executor.execute(() -> assertSame(caller, Thread.currentThread()));
+        }
+    }
+
+    @Test
+    public void rethrowsWorkerFailureOnClose() throws InterruptedException {
+        IllegalStateException error = new IllegalStateException("batch");
+        CountDownLatch failed = new CountDownLatch(1);
+
+        ImportExecutor executor = new ImportExecutor("test", 2);
+        executor.execute(() -> {
+            try {
+                throw error;
+            } finally {
+                failed.countDown();
+            }
+        });
+        failed.await(10, TimeUnit.SECONDS);
+
+        DbUserProviderException e = assertThrows(DbUserProviderException.class, executor::close);
+        assertSame(error, e.getCause());
+    }
+
+    @Test
+    public void rethrowsWorkerFailureOnNextTask() throws InterruptedException {
+        CountDownLatch failed = new CountDownLatch(1);
+
+        try (ImportExecutor executor = new ImportExecutor("test", 2)) {
+            executor.execute(() -> {
+                failed.countDown();
+                throw new IllegalStateException("batch");
+            });
+            failed.await(10, TimeUnit.SECONDS);
+            // The failure is recorded after the task returns
+            Thread.sleep(100);
+
+            assertThrows(DbUserProviderException.class, () -> executor.execute(() -> {
+            }));
+        } catch (DbUserProviderException e) {
+            assertEquals(IllegalStateException.class, e.getCause().getClass());
+        }
+    }
+
+    @Test
+    public void keepsOtherFailuresSuppressed() {
+        DbUserProviderException e = assertThrows(DbUserProviderException.class, () -> {
+            try (ImportExecutor executor = new ImportExecutor("test", 2)) {
+                CountDownLatch started = new CountDownLatch(2);
+                for (int i = 0; i < 2; i++) {
+                    executor.execute(() -> {
+                        started.countDown();
+                        try {
+                            started.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+                        throw new IllegalStateException("batch");
+                    });
+                }
+            }
+        });
+        assertEquals(1, e.getCause().getSuppressed().length);
+    }
+}
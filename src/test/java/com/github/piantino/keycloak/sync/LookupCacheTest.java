@@ -0,0 +1,120 @@
+package com.github.piantino.keycloak.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.GroupProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.RoleProvider;
+
+public class LookupCacheTest {
+
+    private final Map<String, GroupModel> groupsById = new HashMap<>();
+    private final Map<String, RoleModel> rolesById = new HashMap<>();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void resolvesTheGroupIdInEachSession() {
+        LookupCache cache = new LookupCache();
+        GroupModel group = group("realm_1");
+
+        LookupCache.Attached first = cache.attach(session(), null);
+        assertSame(group, first.getGroup("1", () -> load(group)));
+        assertSame(group, first.getGroup("1", () -> load(group)));
+
+        // Another transaction gets the model of its session by the id
+        GroupModel reloaded = group("realm_1");
+        LookupCache.Attached second = cache.attach(session(), null);
+        assertSame(reloaded, second.getGroup("1", () -> load(group)));
+
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void loadsAgainARemovedGroup() {
+        LookupCache cache = new LookupCache();
+        GroupModel group = group("realm_1");
+        cache.attach(session(), null).getGroup("1", () -> load(group));
+
+        groupsById.clear();
+        GroupModel created = group("realm_1b");
+
+        assertSame(created, cache.attach(session(), null).getGroup("1", () -> load(created)));
+        assertEquals(2, loads.get());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void keepsTheMissingGroups() {
+        LookupCache cache = new LookupCache();
+
+        assertNull(cache.attach(session(), null).getGroup("9", () -> load(null)));
+        assertNull(cache.attach(session(), null).getGroup("9", () -> load(null)));
+
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void resolvesTheRoleIdInEachSession() {
+        LookupCache cache = new LookupCache();
+        RoleModel role = role("role-1");
+
+        LookupCache.Attached first = cache.attach(session(), null);
+        assertSame(role, first.getRole("leader", () -> load(role)));
+        assertSame(role, first.getRole("leader", () -> load(role)));
+        assertSame(role, cache.attach(session(), null).getRole("leader", () -> load(role)));
+
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+
+    private <T> T load(T model) {
+        loads.incrementAndGet();
+        return model;
+    }
+
+    private GroupModel group(String id) {
+        GroupModel group = (GroupModel) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { GroupModel.class },
+                (proxy, method, args) -> method.getName().equals("getId") ? id : null);
+        groupsById.put(id, group);
+        return group;
+    }
+
+    private RoleModel role(String id) {
+        RoleModel role = (RoleModel) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { RoleModel.class },
+                (proxy, method, args) -> method.getName().equals("getId") ? id : null);
+        rolesById.put(id, role);
+        return role;
+    }
+
+    private KeycloakSession session() {
+        GroupProvider groups = (GroupProvider) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { GroupProvider.class },
+                (proxy, method, args) -> method.getName().equals("getGroupById") ? groupsById.get(args[1]) : null);
+        RoleProvider roles = (RoleProvider) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { RoleProvider.class },
+                (proxy, method, args) -> method.getName().equals("getRoleById") ? rolesById.get(args[1]) : null);
+        return (KeycloakSession) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { KeycloakSession.class }, (proxy, method, args) -> switch (method.getName()) {
+                    case "groups" -> groups;
+                    case "roles" -> roles;
+                    default -> null;
+                });
+    }
+}
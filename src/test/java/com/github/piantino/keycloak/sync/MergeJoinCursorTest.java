@@ -0,0 +1,95 @@
+package com.github.piantino.keycloak.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MergeJoinCursorTest {
+
+    private Connection con;
+
+    @BeforeEach
+    public void createRoles() throws SQLException {
+        con = DriverManager.getConnection("jdbc:h2:mem:merge", "sa", "");
+        try (Statement st = con.createStatement()) {
+            st.execute("CREATE TABLE roles (username varchar(40), name varchar(40))");
+            st.execute("INSERT INTO roles VALUES ('bobby', 'fighter'), ('diana', 'monk'), ('bobby', 'leader'), "
+                    + "('presto', 'wizard'), (NULL, 'orphan')");
+        }
+    }
+
+    @AfterEach
+    public void close() throws SQLException {
+        con.close();
+    }
+
+    @Test
+    public void mergesTheValuesOfEachUser() throws SQLException {
+        try (MergeJoinCursor cursor = new MergeJoinCursor(con,
+                "SELECT username, name FROM roles ORDER BY username, name", "name", 0)) {
+
+            assertEquals(List.of("fighter", "leader"), cursor.next("bobby"));
+            assertEquals(List.of("monk"), cursor.next("diana"));
+            assertEquals(List.of(), cursor.next("eric"));
+            assertEquals(List.of("wizard"), cursor.next("presto"));
+            assertEquals(List.of(), cursor.next("uni"));
+            assertTrue(cursor.isOrdered());
+        }
+    }
+
+    @Test
+    public void hasNoValueForAUserWithoutUsername() throws SQLException {
+        try (MergeJoinCursor cursor = new MergeJoinCursor(con,
+                "SELECT username, name FROM roles ORDER BY username, name", "name", 0)) {
+
+            assertEquals(List.of(), cursor.next(null));
+            assertEquals(List.of("fighter", "leader"), cursor.next("bobby"));
+            assertEquals(List.of(), cursor.next(null));
+            assertEquals(List.of("monk"), cursor.next("diana"));
+            assertTrue(cursor.isOrdered());
+        }
+    }
+
+    @Test
+    public void skipsTheValuesOfUsersNotRead() throws SQLException {
+        try (MergeJoinCursor cursor = new MergeJoinCursor(con,
+                "SELECT username, name FROM roles ORDER BY username", "name", 10)) {
+
+            assertEquals(List.of("wizard"), cursor.next("presto"));
+            assertTrue(cursor.isOrdered());
+        }
+    }
+
+    @Test
+    public void breaksOnUsersOutOfOrder() throws SQLException {
+        try (MergeJoinCursor cursor = new MergeJoinCursor(con,
+                "SELECT username, name FROM roles ORDER BY username", "name", 0)) {
+
+            assertEquals(List.of("monk"), cursor.next("diana"));
+            assertNull(cursor.next("bobby"));
+            assertFalse(cursor.isOrdered());
+            assertNull(cursor.next("presto"));
+        }
+    }
+
+    @Test
+    public void breaksOnQueryOutOfOrder() throws SQLException {
+        try (MergeJoinCursor cursor = new MergeJoinCursor(con,
+                "SELECT username, name FROM roles ORDER BY username DESC", "name", 0)) {
+
+            assertNull(cursor.next("presto"));
+            assertFalse(cursor.isOrdered());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.github.piantino.keycloak.sync;
+
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.CREDENTIAL;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.JDBC_URL;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.MAX_SIZE;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.PRINCIPAL;
+import static io.agroal.api.configuration.supplier.AgroalPropertiesReader.PROVIDER_CLASS_NAME;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+
+import com.github.piantino.keycloak.DbUserProviderFactory;
+import com.github.piantino.keycloak.datasource.DataSouceConfiguration;
+
+public class OutboxStateTest {
+
+    private static final int OUTBOX_ROWS = 95;
+
+    /**
+     * Reads of each outbox id, by the H2 function of the outbox query.
+     */
+    private static final Map<Long, AtomicInteger> READS = new ConcurrentHashMap<>();
+
+    private final FakeSessions sessions = new FakeSessions();
+    private final KeycloakSessionFactory sessionFactory = sessions.sessionFactory();
+
+    public static long read(long id) {
+        READS.computeIfAbsent(id, key -> new AtomicInteger()).incrementAndGet();
+        return id;
+    }
+
+    @Test
+    public void claimsOnePollAtATime() {
+        OutboxState first = OutboxState.claim(sessionFactory, "claim", 0, 60);
+        assertNotNull(first);
+        assertNull(OutboxState.claim(sessionFactory, "claim", 0, 60), "Claimed by the first poll");
+        assertNotNull(OutboxState.claim(sessionFactory, "other", 0, 60), "Another provider");
+
+        first.release();
+        OutboxState second = OutboxState.claim(sessionFactory, "claim", 0, 60);
+        assertNotNull(second);
+
+        // The claim of a dead node expires
+        sessions.advance(61);
+        assertNotNull(OutboxState.claim(sessionFactory, "claim", 0, 60));
+    }
+
+    @Test
+    public void keepsTheLastIdOutOfTheSettings() {
+        List<Long> saved = new ArrayList<>();
+        OutboxState state = OutboxState.claim(sessionFactory, "state", 0, 60);
+        state.advance(10);
+        state.advance(5);
+        assertEquals(10, state.getLastId());
+
+        // Saved at once, then each few minutes
+        state.checkpoint(saved::add);
+        state.advance(20);
+        state.checkpoint(saved::add);
+        state.release();
+        assertEquals(List.of(10L), saved);
+
+        state = OutboxState.claim(sessionFactory, "state", 10, 60);
+        assertEquals(20, state.getLastId(), "Not the settings");
+        state.checkpoint(saved::add);
+        Time.setOffset(OutboxState.CHECKPOINT_SECONDS);
+        try {
+            state.checkpoint(saved::add);
+            state.checkpoint(saved::add);
+        } finally {
+            Time.setOffset(0);
+        }
+        state.release();
+        assertEquals(List.of(10L, 20L), saved);
+    }
+
+    @Test
+    public void startsFromTheSettingsChangedByAnAdmin() {
+        OutboxState state = OutboxState.claim(sessionFactory, "reset", 0, 60);
+        state.advance(10);
+        state.checkpoint(id -> {
+        });
+        state.release();
+
+        // Saved, the model isn't reloaded yet
+        state = OutboxState.claim(sessionFactory, "reset", 0, 60);
+        assertEquals(10, state.getLastId());
+        state.release();
+
+        state = OutboxState.claim(sessionFactory, "reset", 10, 60);
+        state.advance(30);
+        state.release();
+
+        // Deleted, read from the start
+        state = OutboxState.claim(sessionFactory, "reset", 0, 60);
+        assertEquals(0, state.getLastId());
+        state.release();
+
+        state = OutboxState.claim(sessionFactory, "reset", 25, 60);
+        assertEquals(25, state.getLastId());
+        state.release();
+    }
+
+    @Test
+    public void pollsTheOutboxOnceFromManyThreads() throws Exception {
+        String url = "jdbc:h2:mem:outbox-state;DB_CLOSE_DELAY=-1";
+        try (Connection con = DriverManager.getConnection(url, "sa", "");
+                Statement st = con.createStatement()) {
+            st.execute("CREATE ALIAS READ_ID FOR \"" + OutboxStateTest.class.getName() + ".read\"");
+            // Rows without username, only the ids are checked
+            st.execute("CREATE TABLE outbox (id BIGINT PRIMARY KEY, username VARCHAR(40))");
+            st.execute("INSERT INTO outbox (id) SELECT x FROM SYSTEM_RANGE(1, " + OUTBOX_ROWS + ")");
+        }
+        UserStorageProviderModel model = new UserStorageProviderModel();
+        model.setId("outbox-model");
+        model.setParentId("outbox-realm");
+        model.getConfig().putSingle(PROVIDER_CLASS_NAME, "org.h2.Driver");
+        model.getConfig().putSingle(JDBC_URL, url);
+        model.getConfig().putSingle(PRINCIPAL, "sa");
+        model.getConfig().putSingle(CREDENTIAL, "");
+        model.getConfig().putSingle(MAX_SIZE, "10");
+        model.getConfig().putSingle(DataSouceConfiguration.OUTBOX_SQL,
+                "SELECT READ_ID(o.id) AS id, username FROM outbox o WHERE o.id > ? ORDER BY o.id");
+        model.getConfig().putSingle(DataSouceConfiguration.OUTBOX_BATCH_SIZE, "10");
+
+        DbUserProviderFactory factory = new DbUserProviderFactory();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> polls = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                polls.add(threads.submit(() -> factory.pollOutbox(sessionFactory, "outbox-realm", model)));
+            }
+            for (Future<?> poll : polls) {
+                poll.get();
+            }
+        } finally {
+            threads.shutdown();
+        }
+
+        assertEquals(OUTBOX_ROWS, READS.size());
+        READS.forEach((id, reads) -> assertEquals(1, reads.get(), "Reads of " + id));
+
+        OutboxState state = OutboxState.claim(sessionFactory, "outbox-model", 0, 60);
+        assertEquals(OUTBOX_ROWS, state.getLastId());
+        state.release();
+    }
+}
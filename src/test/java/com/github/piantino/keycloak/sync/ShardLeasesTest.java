@@ -0,0 +1,158 @@
+package com.github.piantino.keycloak.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.storage.user.SynchronizationResult;
+
+public class ShardLeasesTest {
+
+    private final FakeSessions sessions = new FakeSessions();
+
+    @Test
+    public void findsThePublishedRun() {
+        ShardLeases leases = ShardLeases.publish(sessions.sessionFactory(), "model", "run1", 4, 3600);
+
+        ShardLeases found = ShardLeases.find(sessions.sessionFactory(), "model");
+
+        assertEquals("run1", found.getRunId());
+        assertEquals(4, found.getShards());
+        assertTrue(leases.isActive());
+        assertNull(ShardLeases.find(sessions.sessionFactory(), "other"));
+    }
+
+    @Test
+    public void claimsAShardOnce() {
+        ShardLeases node1 = ShardLeases.publish(sessions.sessionFactory(), "model", "run1", 2, 3600);
+        ShardLeases node2 = ShardLeases.find(sessions.sessionFactory(), "model");
+
+        assertTrue(node1.claim(0, "node1", 60));
+        assertFalse(node2.claim(0, "node2", 60));
+        assertTrue(node2.claim(1, "node2", 60));
+    }
+
+    @Test
+    public void claimsAgainAnExpiredLease() {
+        ShardLeases node1 = ShardLeases.publish(sessions.sessionFactory(), "model", "run1", 1, 3600);
+        ShardLeases node2 = ShardLeases.find(sessions.sessionFactory(), "model");
+        assertTrue(node1.claim(0, "node1", 60));
+
+        // The node died without completing the shard
+        sessions.advance(61);
+
+        assertTrue(node2.claim(0, "node2", 60));
+    }
+
+    @Test
+    public void renewsTheLeaseOfItsNode() {
+        ShardLeases node1 = ShardLeases.publish(sessions.sessionFactory(), "model", "run1", 1, 3600);
+        ShardLeases node2 = ShardLeases.find(sessions.sessionFactory(), "model");
+        assertTrue(node1.claim(0, "node1", 60));
+
+        // Longer than the lease, renewed before it expires
+        sessions.advance(40);
+        assertTrue(node1.renew(0, "node1", 60));
+        sessions.advance(40);
+        assertFalse(node2.claim(0, "node2", 60));
+        assertFalse(node2.renew(0, "node2", 60), "Lease of another node");
+    }
+
+    @Test
+    public void stopsRenewingALeaseClaimedByAnotherNode() {
+        ShardLeases node1 = ShardLeases.publish(sessions.sessionFactory(), "model", "run1", 2, 3600);
+        ShardLeases node2 = ShardLeases.find(sessions.sessionFactory(), "model");
+        assertTrue(node1.claim(0, "node1", 60));
+        assertTrue(node1.claim(1, "node1", 60));
+        sessions.advance(61);
+
+        assertTrue(node2.claim(0, "node2", 60));
+        assertFalse(node1.renew(0, "node1", 60));
+
+        // Expired without another claim, claimed again
+        assertTrue(node1.renew(1, "node1", 60));
+        assertFalse(node2.claim(1, "node2", 60));
+    }
+
+    @Test
+    public void doesNotClaimACompletedShard() {
+        ShardLeases node1 = ShardLeases.publish(sessions.sessionFactory(), "model", "run1", 1, 3600);
+        ShardLeases node2 = ShardLeases.find(sessions.sessionFactory(), "model");
+        assertTrue(node1.claim(0, "node1", 60));
+
+        node1.complete(0, "node1", result(2, 1), new SinceWatermark());
+
+        assertFalse(node2.claim(0, "node2", 60));
+        sessions.advance(61);
+        assertFalse(node2.claim(0, "node2", 60));
+    }
+
+    @Test
+    public void sumsTheResults() {
+        ShardLeases leases = ShardLeases.publish(sessions.sessionFactory(), "model", "run1", 3, 3600);
+        SinceWatermark first = new SinceWatermark();
+        first.offer(Timestamp.valueOf("2024-01-01 10:00:00"), "bobby");
+        SinceWatermark second = new SinceWatermark();
+        second.offer(Timestamp.valueOf("2024-01-01 10:00:00"), "eric");
+
+        leases.complete(0, "node1", result(2, 1), first);
+        leases.complete(1, "node2", result(3, 0), second);
+
+        Map<Integer, Map<String, String>> results = leases.getResults();
+        SinceWatermark watermark = new SinceWatermark();
+        SynchronizationResult sum = ShardLeases.sum(results, watermark);
+
+        assertEquals(2, results.size());
+        assertEquals(5, sum.getAdded());
+        assertEquals(1, sum.getUpdated());
+        assertEquals("eric", watermark.getUsername());
+        assertNull(ShardLeases.getError(results));
+    }
+
+    @Test
+    public void reportsTheFailedShard() {
+        ShardLeases leases = ShardLeases.publish(sessions.sessionFactory(), "model", "run1", 2, 3600);
+
+        leases.complete(0, "node1", result(2, 1), new SinceWatermark());
+        leases.fail(1, "node2", "connection refused");
+
+        Map<Integer, Map<String, String>> results = leases.getResults();
+
+        assertEquals("shard 1 in node2: connection refused", ShardLeases.getError(results));
+        assertEquals(2, ShardLeases.sum(results, new SinceWatermark()).getAdded());
+    }
+
+    @Test
+    public void finishesOnlyItsRun() {
+        ShardLeases run1 = ShardLeases.publish(sessions.sessionFactory(), "model", "run1", 1, 3600);
+        ShardLeases run2 = ShardLeases.publish(sessions.sessionFactory(), "model", "run2", 1, 3600);
+
+        assertFalse(run1.isActive());
+        run1.finish();
+        assertTrue(run2.isActive());
+
+        run2.finish();
+        assertNull(ShardLeases.find(sessions.sessionFactory(), "model"));
+    }
+
+    @Test
+    public void expiresTheRun() {
+        ShardLeases.publish(sessions.sessionFactory(), "model", "run1", 1, 3600);
+
+        sessions.advance(3600);
+
+        assertNull(ShardLeases.find(sessions.sessionFactory(), "model"));
+    }
+
+    private static SynchronizationResult result(int added, int updated) {
+        SynchronizationResult result = new SynchronizationResult();
+        result.setAdded(added);
+        result.setUpdated(updated);
+        return result;
+    }
+}
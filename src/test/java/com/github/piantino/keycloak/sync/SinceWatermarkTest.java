@@ -0,0 +1,63 @@
+package com.github.piantino.keycloak.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+
+import org.junit.jupiter.api.Test;
+
+public class SinceWatermarkTest {
+
+    private static final Timestamp T1 = Timestamp.valueOf("2024-01-01 10:00:00");
+    private static final Timestamp T2 = Timestamp.valueOf("2024-01-01 10:00:01");
+
+    @Test
+    public void keepsTheGreatestRow() {
+        SinceWatermark watermark = new SinceWatermark();
+        assertTrue(watermark.isEmpty());
+
+        watermark.offer(T1, "eric");
+        watermark.offer(T1, "bobby");
+        assertEquals("eric", watermark.getUsername());
+
+        watermark.offer(T2.toLocalDateTime(), "anna");
+        watermark.offer(T1, "zed");
+        watermark.offer("not a date", "zed");
+
+        assertEquals(T2, watermark.getUpdated());
+        assertEquals("anna", watermark.getUsername());
+    }
+
+    @Test
+    public void parsesItsString() {
+        SinceWatermark watermark = new SinceWatermark();
+        watermark.offer(T1, "bobby|x");
+
+        SinceWatermark parsed = SinceWatermark.parse(watermark.toString());
+
+        assertEquals(T1, parsed.getUpdated());
+        assertEquals("bobby|x", parsed.getUsername());
+        assertNull(SinceWatermark.parse(" "));
+        assertNull(SinceWatermark.parse(T1.toString()).getUsername());
+    }
+
+    @Test
+    public void comparesTheRows() {
+        SinceWatermark first = SinceWatermark.parse(T1 + "|bobby");
+        SinceWatermark second = SinceWatermark.parse(T1 + "|eric");
+        SinceWatermark time = new SinceWatermark(T1);
+
+        assertTrue(second.isAfter(first));
+        assertFalse(first.isAfter(second));
+        assertFalse(first.isAfter(first));
+        assertTrue(first.isAfter(time));
+        assertTrue(first.isAfter(null));
+        assertFalse(new SinceWatermark().isAfter(null));
+        assertTrue(SinceWatermark.parse(LocalDateTime.of(2024, 1, 1, 10, 0, 1).toString().replace('T', ' '))
+                .isAfter(second));
+    }
+}
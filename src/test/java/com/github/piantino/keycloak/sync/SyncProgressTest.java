@@ -0,0 +1,80 @@
+package com.github.piantino.keycloak.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import com.github.piantino.keycloak.sync.SyncProgress.Status;
+
+public class SyncProgressTest {
+
+    @Test
+    public void startsOneBulkSyncByRealm() {
+        SyncProgress full = SyncProgress.startExclusive("full-1", "exclusive-realm", SyncType.FULL);
+        assertNotNull(full);
+
+        assertNull(SyncProgress.startExclusive("since-1", "exclusive-realm", SyncType.SINCE));
+        assertNull(SyncProgress.startExclusive("full-2", "exclusive-realm", SyncType.FULL));
+
+        // Another realm, and the syncs of usernames, aren't blocked
+        SyncProgress other = SyncProgress.startExclusive("full-3", "other-realm", SyncType.FULL);
+        assertNotNull(other);
+        SyncProgress usernames = SyncProgress.start("usernames-1", "exclusive-realm", SyncType.USERNAMES);
+
+        full.finish(new SynchronizationResult());
+        other.finish(new SynchronizationResult());
+        usernames.finish(new SynchronizationResult());
+
+        SyncProgress since = SyncProgress.startExclusive("since-2", "exclusive-realm", SyncType.SINCE);
+        assertNotNull(since);
+        since.fail(new IllegalStateException("A sync is already running in the cluster"));
+    }
+
+    @Test
+    public void failsTheSyncStoppedByAnError() {
+        SyncProgress full = SyncProgress.startExclusive("full-5", "error-realm", SyncType.FULL);
+        try {
+            throw new StackOverflowError();
+        } catch (StackOverflowError e) {
+            // Not caught by the sync
+        } finally {
+            full.failIfRunning();
+        }
+        assertEquals(Status.FAILED, full.getStatus());
+        assertNotNull(full.getError());
+
+        SyncProgress since = SyncProgress.startExclusive("since-4", "error-realm", SyncType.SINCE);
+        assertNotNull(since);
+        since.finish(new SynchronizationResult());
+        since.failIfRunning();
+        assertEquals(Status.FINISHED, since.getStatus());
+        assertEquals(2, SyncProgress.getHistory("error-realm").size());
+    }
+
+    @Test
+    public void keepsTheFinishedBulkSyncs() {
+        SyncProgress full = SyncProgress.startExclusive("full-4", "history-realm", SyncType.FULL);
+        full.cancel();
+        full.finish(new SynchronizationResult());
+
+        SyncProgress since = SyncProgress.start("since-3", "history-realm", SyncType.SINCE);
+        since.fail(new IllegalStateException("Ignored"));
+
+        SyncProgress.start("outbox-1", "history-realm", SyncType.OUTBOX).finish(new SynchronizationResult());
+
+        assertEquals(2, SyncProgress.getHistory("history-realm").size());
+        assertSame(since, SyncProgress.getHistory("history-realm").get(0));
+        assertEquals(Status.CANCELLED, full.getStatus());
+        assertEquals(Status.FAILED, since.getStatus());
+        assertEquals("Ignored", since.getError());
+
+        assertSame(full, SyncProgress.find("history-realm", "full-4"));
+        assertNull(SyncProgress.find("other-realm", "full-4"));
+        assertFalse(SyncProgress.NODE.isBlank());
+    }
+}
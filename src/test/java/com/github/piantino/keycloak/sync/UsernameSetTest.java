@@ -0,0 +1,44 @@
+package com.github.piantino.keycloak.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class UsernameSetTest {
+
+    @Test
+    public void containsTheUsernamesAdded() {
+        UsernameSet usernames = new UsernameSet();
+        for (int i = 0; i < 5000; i++) {
+            usernames.add("user" + i);
+        }
+
+        assertEquals(5000, usernames.size());
+        assertTrue(usernames.contains("user0"));
+        assertTrue(usernames.contains("user4999"));
+        assertFalse(usernames.contains("user5000"));
+        assertTrue(usernames.contains("User0"), "Keycloak usernames are in lower case");
+    }
+
+    @Test
+    public void addsAfterLookup() {
+        UsernameSet usernames = new UsernameSet();
+        usernames.add("bobby");
+        assertFalse(usernames.contains("eric"));
+
+        usernames.add("eric");
+
+        assertTrue(usernames.contains("eric"));
+        assertTrue(usernames.contains("bobby"));
+    }
+
+    @Test
+    public void isEmpty() {
+        UsernameSet usernames = new UsernameSet();
+
+        assertEquals(0, usernames.size());
+        assertFalse(usernames.contains("bobby"));
+    }
+}
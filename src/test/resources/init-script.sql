@@ -11,6 +11,7 @@ CREATE TABLE db_user_users (
     enabled          boolean     NOT NULL DEFAULT true,
     temp_password    varchar(40),
     required_actions varchar(80),
+    password_hash    varchar(200),
     updated          timestamp   NOT NULL DEFAULT NOW(),
     -- Custom attributes
     ability          varchar(40)
@@ -119,3 +120,8 @@ insert into db_user_groups (username, gid) VALUES ('uni', 2);
 insert into db_user_groups (username, gid) VALUES ('uni', 3);
 insert into db_user_groups (username, gid) VALUES ('master', 21);
 insert into db_user_groups (username, gid) VALUES ('master', 31);
+
+CREATE TABLE db_user_changes (
+    id       integer PRIMARY KEY GENERATED BY DEFAULT AS IDENTITY,
+    username varchar(40) NOT NULL
+);
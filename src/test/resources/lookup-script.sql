@@ -0,0 +1,7 @@
+SET TIMEZONE TO 'America/Sao_Paulo';
+
+INSERT INTO db_user_users (username, email, email_verified, first_name, last_name, temp_password)
+    VALUES ('venger', 'venger@sorcerer.com', 'y', 'Venger', 'Sorcerer', 'ShadowDemon');
+
+INSERT INTO db_user_users (username, email, email_verified, first_name, last_name, temp_password)
+    VALUES ('tiamat', 'tiamat@dragon.com', 'y', 'Tiamat', 'Dragon', 'FiveHeads');
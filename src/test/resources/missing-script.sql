@@ -0,0 +1,8 @@
+SET TIMEZONE TO 'America/Sao_Paulo';
+
+INSERT INTO db_user_users (username, email, email_verified, first_name, last_name)
+    VALUES ('kobold', 'kobold@cave.com', 'y', 'Kobold', 'Minion');
+
+-- Keycloak keeps the username in lower case
+INSERT INTO db_user_users (username, email, email_verified, first_name, last_name)
+    VALUES ('Strongbow', 'strongbow@cave.com', 'y', 'Strongbow', 'Dwarf');
@@ -0,0 +1,3 @@
+SET TIMEZONE TO 'America/Sao_Paulo';
+
+DELETE FROM db_user_users WHERE username = 'kobold';
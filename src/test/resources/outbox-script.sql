@@ -0,0 +1,8 @@
+SET TIMEZONE TO 'America/Sao_Paulo';
+
+INSERT INTO db_user_users (username, email, email_verified, first_name, last_name, temp_password)
+    VALUES ('kelek', 'kelek@sorcerer.com', 'y', 'Kelek', 'Sorcerer', 'DarkWand');
+
+INSERT INTO db_user_changes (username) VALUES ('kelek');
+INSERT INTO db_user_changes (username) VALUES ('kelek');
+INSERT INTO db_user_changes (username) VALUES ('nobody');
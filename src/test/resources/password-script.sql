@@ -0,0 +1,5 @@
+SET TIMEZONE TO 'America/Sao_Paulo';
+
+-- ShadowDemon, PBKDF2 in passlib format
+UPDATE db_user_users SET password_hash = '$pbkdf2-sha256$29000$3CSPJ4jl5QHzvYNdT7NMdw$cHq5OpGpfTWZQV.f6SBBAdfdCzNxtLHAGF0Vz6UNyxE'
+    WHERE username = 'venger';
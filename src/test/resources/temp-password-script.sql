@@ -0,0 +1,4 @@
+SET TIMEZONE TO 'America/Sao_Paulo';
+
+INSERT INTO db_user_users (username, email, email_verified, first_name, last_name, temp_password)
+    VALUES ('dungeon', 'dungeon@master.com', 'y', 'Dungeon', 'Master', 'MagicalGifts');
@@ -0,0 +1,3 @@
+SET TIMEZONE TO 'America/Sao_Paulo';
+
+UPDATE db_user_users SET first_name = 'Sheila the Thief', updated = NOW() WHERE username = 'sheila';